@@ -0,0 +1,84 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tc65sh.util.ByteArray;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ByteArrayBenchmark {
+
+	/** total bytes appended, in 512 byte chunks like a serial download */
+	@Param({"65536", "1048576"})
+	public int totalLength;
+
+	private byte[] chunk;
+	private ByteArray full;
+	private ByteArray frame;
+
+	@Setup
+	public void setup() {
+		chunk = new byte[512];
+		new Random(42).nextBytes(chunk);
+		full = new ByteArray();
+		for( int i=0 ; i<totalLength/chunk.length ; i++ ) {
+			full.append(chunk);
+		}
+		frame = new ByteArray(chunk);
+	}
+
+	@Benchmark
+	public ByteArray append() {
+		ByteArray b = new ByteArray();
+		for( int i=0 ; i<totalLength/chunk.length ; i++ ) {
+			b.append(chunk);
+		}
+		return b;
+	}
+
+	@Benchmark
+	public int subArray() {
+		int sum = 0;
+		for( int i=0 ; i+512<=full.length() ; i+=512 ) {
+			sum += full.subArray(i, 512).length();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public String toHexString() {
+		return frame.toHexString();
+	}
+
+}
@@ -0,0 +1,70 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tc65sh.device.FileInfo;
+import org.tc65sh.device.FolderListing;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FolderListingBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	public int entries;
+
+	private String xml;
+
+	@Setup
+	public void setup() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<?xml version=\"1.0\"?>\n");
+		sb.append("<!DOCTYPE folder-listing SYSTEM \"obex-folder-listing.dtd\">\n");
+		sb.append("<folder-listing version=\"1.0\">\n");
+		for( int i=0 ; i<entries ; i++ ) {
+			if ( i % 10 == 0 ) {
+				sb.append("<folder name=\"dir"+i+"\" modified=\"20110313T071320\"/>\n");
+			} else {
+				sb.append("<file name=\"file"+i+".txt\" size=\""+(i*37)+"\" modified=\"20110313T071320\"/>\n");
+			}
+		}
+		sb.append("</folder-listing>\n");
+		xml = sb.toString();
+	}
+
+	@Benchmark
+	public List<FileInfo> parse() {
+		return FolderListing.parse(xml);
+	}
+
+}
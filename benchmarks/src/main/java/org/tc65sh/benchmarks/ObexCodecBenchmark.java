@@ -0,0 +1,66 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.benchmarks;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tc65sh.device.Obex;
+import org.tc65sh.util.ByteArray;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ObexCodecBenchmark {
+
+	private String filename = "application-with-a-long-name.jar";
+	private Date date = new Date(1300000000000L);
+	private String xmlDate = "20110313T071320";
+	private int value = 0x1234;
+
+	@Benchmark
+	public ByteArray encodeUtf16String() {
+		return Obex.encodeUtf16String(filename);
+	}
+
+	@Benchmark
+	public ByteArray encodeDateTime() {
+		return Obex.encodeDateTime(date);
+	}
+
+	@Benchmark
+	public byte[] shortToBytes() {
+		return Obex.shortToBytes(value);
+	}
+
+	@Benchmark
+	public Date decodeXmlDateTime() {
+		return Obex.decodeXmlDateTime(xmlDate);
+	}
+
+}
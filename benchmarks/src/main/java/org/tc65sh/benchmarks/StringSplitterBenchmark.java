@@ -0,0 +1,52 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tc65sh.util.StringSplitter;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StringSplitterBenchmark {
+
+	private String plain = "put D:/temp/device_test.txt test.txt";
+	private String quoted = "put \"D:/my documents/device test.txt\" test.txt";
+
+	@Benchmark
+	public String[] splitPlain() {
+		return StringSplitter.split(plain);
+	}
+
+	@Benchmark
+	public String[] splitQuoted() {
+		return StringSplitter.split(quoted);
+	}
+
+}
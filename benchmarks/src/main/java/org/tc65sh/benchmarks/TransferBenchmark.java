@@ -0,0 +1,377 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.benchmarks;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.tc65sh.device.Device;
+import org.tc65sh.device.FileInfo;
+import org.tc65sh.emulator.EmulatedFileSystem;
+import org.tc65sh.emulator.EmulatedLink;
+import org.tc65sh.emulator.Tc65Emulator;
+import org.tc65sh.util.Log;
+
+/**
+ * Runs put, get, getd, ls and AT command workloads through the whole
+ * Device stack against the TC65 emulator on an emulated link, and writes
+ * bytes/sec, round trips, latency percentiles and allocation per workload
+ * to a JSON file.
+ *
+ * java -cp target/benchmarks.jar org.tc65sh.benchmarks.TransferBenchmark [OPTIONS]
+ */
+public class TransferBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		new TransferBenchmark().exec(args);
+	}
+
+	private static final String EMULATOR_THREAD_NAME = "tc65sh-emulator";
+
+	private int baudrate = 115200;
+	private double rttMillis = 0;
+	private double jitterMillis = 0;
+	private double dropProbability = 0;
+	private double garbleProbability = 0;
+	private long seed = 1;
+	private int maxPacketLength = Device.MAX_OBEX_MAX_PACKET_LENGTH;
+	private boolean singleResponseMode = false;
+	private int fileSizeKb = 64;
+	private int fileCount = 10;
+	private int iterations = 5;
+	private String outFile = "transfer-results.json";
+
+	private EmulatedFileSystem fs;
+	private Device device;
+	private Tc65Emulator emulator;
+	private int sessions = 0;
+	private long closedSessionRequests = 0; // requests served by earlier emulators
+
+	private static class Result {
+		String workload;
+		int ops;
+		int failures;
+		long bytes;
+		long totalNanos;
+		long requests;
+		long allocatedBytes;
+		List<Long> latencies = new ArrayList<Long>();
+	}
+
+	private interface Workload {
+		/** Runs one operation and returns the number of payload bytes transferred. */
+		long run() throws IOException;
+	}
+
+	public void exec(String[] args) throws Exception {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--baud")) {
+				baudrate = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--rtt-ms")) {
+				rttMillis = Double.parseDouble(args[i + 1]);
+			} else if (args[i].equals("--jitter-ms")) {
+				jitterMillis = Double.parseDouble(args[i + 1]);
+			} else if (args[i].equals("--drop")) {
+				dropProbability = Double.parseDouble(args[i + 1]);
+			} else if (args[i].equals("--garble")) {
+				garbleProbability = Double.parseDouble(args[i + 1]);
+			} else if (args[i].equals("--seed")) {
+				seed = Long.parseLong(args[i + 1]);
+			} else if (args[i].equals("--max-packet")) {
+				maxPacketLength = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--srm")) {
+				singleResponseMode = true;
+			} else if (args[i].equals("--size-kb")) {
+				fileSizeKb = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--files")) {
+				fileCount = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--iterations")) {
+				iterations = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--out")) {
+				outFile = args[i + 1];
+			} else if (args[i].equals("--help")) {
+				printUsage();
+				return;
+			}
+		}
+		Log.logLevel = Log.LOG_NONE;
+
+		fs = new EmulatedFileSystem();
+		final byte[] content = new byte[fileSizeKb * 1024];
+		new Random(seed).nextBytes(content);
+		for (int i = 0; i < fileCount; i++) {
+			fs.putFile("getd/file" + i + ".bin", content);
+		}
+		connect();
+
+		List<Result> results = new ArrayList<Result>();
+		results.add(measure("put", new Workload() {
+			public long run() throws IOException {
+				FileInfo fi = new FileInfo(false, "bench.bin", content.length, new Date());
+				return device.obexPutFile(fi, ByteBuffer.wrap(content));
+			}
+		}));
+		results.add(measure("get", new Workload() {
+			public long run() throws IOException {
+				return device.obexGetFile("bench.bin", new NullChannel());
+			}
+		}));
+		results.add(measure("getd", new Workload() {
+			public long run() throws IOException {
+				return getDirectory("getd");
+			}
+		}));
+		results.add(measure("ls", new Workload() {
+			public long run() throws IOException {
+				device.obexGetFolderListing();
+				return 0;
+			}
+		}));
+		results.add(measure("at", new Workload() {
+			public long run() throws IOException {
+				device.executeAtCommand("ATI");
+				return 0;
+			}
+		}));
+		device.disconnect();
+
+		printResults(results);
+		writeJson(results);
+	}
+
+	/**
+	 * Opens an OBEX session on a new emulator serving the same file system.
+	 * Each session gets its own link seeds, so a retried operation does not
+	 * meet the same errors.
+	 */
+	private void connect() throws IOException {
+		EmulatedLink toDevice = createLink(seed + 2 * sessions);
+		EmulatedLink fromDevice = createLink(seed + 2 * sessions + 1);
+		sessions++;
+		emulator = new Tc65Emulator(fs, toDevice, fromDevice, maxPacketLength, true);
+		device = new Device();
+		device.setSingleResponseMode(singleResponseMode);
+		device.connect(emulator);
+		device.initDevice();
+		device.obexOpenObexMode();
+	}
+
+	/**
+	 * Replaces the session after a failed operation, which may have left
+	 * unread frames, an unfinished OBEX operation or another current folder
+	 * behind.
+	 */
+	private void reconnect() throws IOException {
+		try {
+			device.disconnect();
+		} catch (Exception e) {
+			// the link is broken anyway
+		}
+		emulator.close();
+		closedSessionRequests += emulator.getRequestCount();
+		connect();
+	}
+
+	private long requestCount() {
+		return closedSessionRequests + emulator.getRequestCount();
+	}
+
+	private EmulatedLink createLink(long linkSeed) {
+		EmulatedLink link = new EmulatedLink(baudrate, 0);
+		link.setDelay((long) (rttMillis * 1000000 / 2), (long) (jitterMillis * 1000000));
+		link.setErrorRates(dropProbability, garbleProbability, linkSeed);
+		return link;
+	}
+
+	private long getDirectory(String dirname) throws IOException {
+		long bytes = 0;
+		device.obexChangeDir(dirname);
+		try {
+			for (FileInfo fi : device.obexGetFolderListing()) {
+				if (fi.directory) {
+					bytes += getDirectory(fi.name);
+				} else {
+					bytes += device.obexGetFile(fi.name, new NullChannel());
+				}
+			}
+		} finally {
+			device.obexChangeDir("..");
+		}
+		return bytes;
+	}
+
+	/**
+	 * Runs the workload for all iterations. The session is replaced after
+	 * each failure so the next operation starts clean, the time for that
+	 * counts towards the total.
+	 */
+	private Result measure(String name, Workload workload) throws IOException {
+		Result r = new Result();
+		r.workload = name;
+		long allocBefore = allocatedBytes();
+		long requestsBefore = requestCount();
+		long t0 = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			long t1 = System.nanoTime();
+			try {
+				r.bytes += workload.run();
+				r.latencies.add(System.nanoTime() - t1);
+			} catch (IOException e) {
+				r.failures++;
+				reconnect();
+			}
+			r.ops++;
+		}
+		r.totalNanos = System.nanoTime() - t0;
+		r.requests = requestCount() - requestsBefore;
+		r.allocatedBytes = allocatedBytes() - allocBefore;
+		Collections.sort(r.latencies);
+		return r;
+	}
+
+	/**
+	 * Bytes allocated by all threads except the emulator, -1 if the JVM
+	 * cannot tell.
+	 */
+	private long allocatedBytes() {
+		java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if (!(mx instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		com.sun.management.ThreadMXBean smx = (com.sun.management.ThreadMXBean) mx;
+		long sum = 0;
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (!EMULATOR_THREAD_NAME.equals(t.getName())) {
+				long allocated = smx.getThreadAllocatedBytes(t.getId());
+				if (allocated > 0) {
+					sum += allocated;
+				}
+			}
+		}
+		return sum;
+	}
+
+	private static double percentileMillis(List<Long> sorted, int percentile) {
+		if (sorted.isEmpty()) {
+			return -1;
+		}
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(index, 0)) / 1000000.0;
+	}
+
+	private static double bytesPerSecond(Result r) {
+		return r.totalNanos > 0 ? r.bytes * 1000000000.0 / r.totalNanos : 0;
+	}
+
+	private void printResults(List<Result> results) {
+		System.out.println(String.format(Locale.ROOT, "%-6s %5s %5s %12s %10s %10s %10s %14s", "op", "ops", "fail", "bytes/s", "rt/op", "p50 ms", "p99 ms", "alloc/op"));
+		for (Result r : results) {
+			System.out.println(String.format(Locale.ROOT, "%-6s %5d %5d %12.0f %10.1f %10.2f %10.2f %14d",
+					r.workload, r.ops, r.failures, bytesPerSecond(r), (double) r.requests / r.ops,
+					percentileMillis(r.latencies, 50), percentileMillis(r.latencies, 99), r.allocatedBytes / r.ops));
+		}
+	}
+
+	private void writeJson(List<Result> results) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"config\": {");
+		sb.append("\"baudrate\": ").append(baudrate);
+		sb.append(", \"rttMillis\": ").append(rttMillis);
+		sb.append(", \"jitterMillis\": ").append(jitterMillis);
+		sb.append(", \"dropProbability\": ").append(dropProbability);
+		sb.append(", \"garbleProbability\": ").append(garbleProbability);
+		sb.append(", \"seed\": ").append(seed);
+		sb.append(", \"maxPacketLength\": ").append(maxPacketLength);
+		sb.append(", \"singleResponseMode\": ").append(singleResponseMode);
+		sb.append(", \"fileSizeKb\": ").append(fileSizeKb);
+		sb.append(", \"files\": ").append(fileCount);
+		sb.append(", \"iterations\": ").append(iterations);
+		sb.append(", \"javaVersion\": \"").append(System.getProperty("java.version")).append("\"");
+		sb.append("},\n");
+		sb.append("  \"results\": [\n");
+		for (int i = 0; i < results.size(); i++) {
+			Result r = results.get(i);
+			sb.append("    {\"workload\": \"").append(r.workload).append("\"");
+			sb.append(", \"ops\": ").append(r.ops);
+			sb.append(", \"failures\": ").append(r.failures);
+			sb.append(", \"bytes\": ").append(r.bytes);
+			sb.append(", \"bytesPerSecond\": ").append(String.format(Locale.ROOT, "%.1f", bytesPerSecond(r)));
+			sb.append(", \"roundTripsPerOp\": ").append(String.format(Locale.ROOT, "%.2f", (double) r.requests / r.ops));
+			sb.append(", \"p50Millis\": ").append(String.format(Locale.ROOT, "%.3f", percentileMillis(r.latencies, 50)));
+			sb.append(", \"p99Millis\": ").append(String.format(Locale.ROOT, "%.3f", percentileMillis(r.latencies, 99)));
+			sb.append(", \"allocatedBytes\": ").append(r.allocatedBytes);
+			sb.append("}");
+			sb.append(i < results.size() - 1 ? ",\n" : "\n");
+		}
+		sb.append("  ]\n");
+		sb.append("}\n");
+		Writer w = new OutputStreamWriter(new FileOutputStream(outFile), "UTF-8");
+		try {
+			w.write(sb.toString());
+		} finally {
+			w.close();
+		}
+		System.out.println("results written to " + outFile);
+	}
+
+	private void printUsage() {
+		System.out.println("options:");
+		System.out.println("  --baud <baudrate>       emulated line speed, 0 for no limit (default 115200)");
+		System.out.println("  --rtt-ms <millis>       round trip time added by the link (default 0)");
+		System.out.println("  --jitter-ms <millis>    random extra delay per chunk (default 0)");
+		System.out.println("  --drop <probability>    chance that a byte is lost (default 0)");
+		System.out.println("  --garble <probability>  chance that a byte is corrupted (default 0)");
+		System.out.println("  --seed <seed>           seed for content, jitter and errors (default 1)");
+		System.out.println("  --max-packet <bytes>    max OBEX packet length of the emulator");
+		System.out.println("  --srm                   use OBEX single response mode");
+		System.out.println("  --size-kb <kb>          file size for put, get and getd (default 64)");
+		System.out.println("  --files <n>             number of files for getd (default 10)");
+		System.out.println("  --iterations <n>        operations per workload (default 5)");
+		System.out.println("  --out <file>            JSON result file (default transfer-results.json)");
+	}
+
+	/**
+	 * Discards everything, so downloads are measured without disk I/O.
+	 */
+	private static class NullChannel implements WritableByteChannel {
+
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			src.position(src.limit());
+			return n;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+
+}
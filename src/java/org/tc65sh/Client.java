@@ -0,0 +1,87 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import org.tc65sh.ui.DaemonUserInterface;
+
+/**
+ * Thin client for a tc65sh daemon: sends the commands to the daemon on a
+ * localhost port and prints its output. The exit code is the one of the
+ * daemon, 2 if the daemon cannot be reached.
+ *
+ * tc65sh -cl <port> -c "<commands>"
+ */
+public class Client {
+
+	public static void main(String[] args) {
+		int port = -1;
+		String commands = null;
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("-cl") || args[i].equals("--client")) {
+				port = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-c") || args[i].equals("--commands")) {
+				commands = args[i + 1];
+			}
+		}
+		if (port < 0 || commands == null) {
+			System.out.println("usage: tc65sh -cl <daemonPort> -c <commands>");
+			System.exit(2);
+		}
+		System.exit(run(port, commands));
+	}
+
+	/**
+	 * Runs the commands on the daemon and returns its exit code.
+	 */
+	public static int run(int port, String commands) {
+		Socket socket = null;
+		try {
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			OutputStream out = socket.getOutputStream();
+			out.write((commands.replace('\n', ';') + "\n").getBytes("UTF-8"));
+			out.flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith(DaemonUserInterface.EXIT_MARKER)) {
+					return Integer.parseInt(line.substring(DaemonUserInterface.EXIT_MARKER.length()).trim());
+				}
+				System.out.println(line);
+			}
+			System.out.println("Error: daemon closed the connection");
+			return 1;
+		} catch (IOException e) {
+			System.out.println("Error: cannot reach daemon on port " + port + ": " + e.getMessage());
+			return 2;
+		} finally {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+}
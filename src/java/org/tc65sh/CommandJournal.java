@@ -0,0 +1,132 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.tc65sh.util.Log;
+import org.tc65sh.util.StringSplitter;
+
+/**
+ * Journal of the finished commands of a command file, one line per
+ * command: the stamp of its input file, the occurrence of the command in
+ * the file and the command, separated by tabs. The stamp is the size and
+ * modification time of the local file of a put, "-" for commands without
+ * one.
+ *
+ * On resume a command counts as done if the journal lists the same
+ * occurrence of it with the same stamp. cd is always run again since it
+ * only sets the current folder of the session, "put -" since stdin
+ * cannot be compared and sync since it only uploads changes anyway. The
+ * journal is only appended to while resuming, later lines win, so it
+ * keeps all finished commands however a run ends. It is deleted once all
+ * commands succeeded, a run without resume starts a new one.
+ */
+public class CommandJournal {
+
+	private static final String NO_INPUT = "-";
+
+	private final File file;
+	private final Map<String,String> doneStamps = new HashMap<String,String>();
+	private final Map<String,Integer> occurrences = new HashMap<String,Integer>();
+	private final Writer out;
+
+	public CommandJournal(File file, boolean resume) throws IOException {
+		this.file = file;
+		boolean append = resume && file.exists();
+		if ( append ) {
+			load();
+			Log.info("resuming, " + doneStamps.size() + " commands done according to " + file);
+		} else if ( resume ) {
+			Log.info("nothing to resume, no journal " + file);
+		}
+		out = new OutputStreamWriter(new FileOutputStream(file, append), "UTF-8");
+		if ( ! append ) {
+			out.write("# tc65sh journal: size and modification time of the input, occurrence, command\n");
+			out.flush();
+		}
+	}
+
+	private void load() throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while( (line=in.readLine()) != null ) {
+				if ( line.startsWith("#") ) continue;
+				String[] fields = line.split("\t", 3);
+				if ( fields.length < 3 ) continue; // cut off by a crash
+				doneStamps.put(fields[1] + "\t" + fields[2], fields[0]);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * True if the command was finished before and its input did not change
+	 * since. Has to be called for each command before it runs, it counts
+	 * the occurrences.
+	 */
+	public boolean isDone(String command) {
+		Integer n = occurrences.get(command);
+		n = n == null ? 1 : n + 1;
+		occurrences.put(command, n);
+		if ( mustRepeat(command) ) return false;
+		String stamp = doneStamps.get(n + "\t" + command);
+		return stamp != null && stamp.equals(getStamp(command));
+	}
+
+	public void commandDone(String command) throws IOException {
+		if ( mustRepeat(command) ) return;
+		Integer n = occurrences.get(command);
+		out.write(getStamp(command) + "\t" + (n == null ? 1 : n) + "\t" + command + "\n");
+		out.flush();
+	}
+
+	/**
+	 * Deletes the journal after the last command succeeded.
+	 */
+	public void finish() throws IOException {
+		out.close();
+		if ( ! file.delete() ) {
+			throw new IOException("cannot delete " + file);
+		}
+	}
+
+	private static boolean mustRepeat(String command) {
+		String tok[] = StringSplitter.split(command);
+		if ( tok[0].equals("cd") || tok[0].equals("sync") ) return true;
+		return tok[0].equals("put") && (tok.length < 2 || tok[1].equals("-"));
+	}
+
+	private static String getStamp(String command) {
+		String tok[] = StringSplitter.split(command);
+		if ( ! tok[0].equals("put") || tok.length < 2 ) return NO_INPUT;
+		File input = new File(tok[1]);
+		if ( ! input.isFile() ) return "missing";
+		return input.length() + " " + input.lastModified();
+	}
+
+}
@@ -0,0 +1,202 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.tc65sh.device.Device;
+import org.tc65sh.device.FileInfo;
+import org.tc65sh.device.TreeIndex;
+import org.tc65sh.util.Log;
+
+/**
+ * Copies a device folder with all subfolders into a local directory,
+ * skipping files that are already there. A file is skipped if the local
+ * copy has the size from the listing and either the manifest of an
+ * earlier run recorded the same size and date, or the local modification
+ * time equals the device date. Downloaded files get the device date as
+ * modification time.
+ *
+ * Every finished file is appended to the manifest at once, so an
+ * interrupted mirror continues with the first unfinished file. Files
+ * are downloaded to a temporary name and renamed when complete.
+ */
+public class DirectoryMirror {
+
+	public static final String MANIFEST_FILENAME = ".tc65sh-mirror";
+
+	private static final String PART_SUFFIX = ".part";
+	private static final long MTIME_TOLERANCE_MILLIS = 2000;
+
+	private final Device device;
+	private final File localDir;
+	private final boolean full;
+	private Map<String,String> manifest = new TreeMap<String,String>();
+	private Writer manifestOut;
+	private int downloadedCount = 0;
+	private int skippedCount = 0;
+	private long downloadedBytes = 0;
+
+	/**
+	 * @param full download every file, ignoring local copies and manifest
+	 */
+	public DirectoryMirror(Device device, File localDir, boolean full) {
+		this.device = device;
+		this.localDir = localDir;
+		this.full = full;
+	}
+
+	/**
+	 * Mirrors the device folder deviceDir, a name in the current folder.
+	 * The current folder is restored afterwards.
+	 */
+	public void mirror(String deviceDir) throws IOException {
+		String startPath = device.getCurrentPath();
+		try {
+			device.obexChangeDir(deviceDir);
+			localDir.mkdirs();
+			File manifestFile = new File(localDir, MANIFEST_FILENAME);
+			loadManifest(manifestFile);
+			manifestOut = new OutputStreamWriter(new FileOutputStream(manifestFile, true), "UTF-8");
+			try {
+				mirrorFolder(localDir, "");
+			} finally {
+				manifestOut.close();
+			}
+			saveManifest(manifestFile);
+		} finally {
+			TreeIndex.changeToPath(device, startPath);
+		}
+	}
+
+	public int getDownloadedCount() {
+		return downloadedCount;
+	}
+
+	public long getDownloadedBytes() {
+		return downloadedBytes;
+	}
+
+	public int getSkippedCount() {
+		return skippedCount;
+	}
+
+	private void mirrorFolder(File dir, String relPath) throws IOException {
+		dir.mkdirs();
+		List<FileInfo> listing = device.obexGetFolderListing();
+		for( FileInfo info : listing ) {
+			if ( info.directory ) continue;
+			String rel = relPath.length() == 0 ? info.name : relPath + "/" + info.name;
+			File f = new File(dir, info.name);
+			if ( ! full && isUpToDate(f, rel, info) ) {
+				manifest.put(rel, manifestEntry(info));
+				skippedCount++;
+				continue;
+			}
+			Log.info("copying " + info.name + " to " + dir);
+			downloadedBytes += download(info, f);
+			downloadedCount++;
+			String entry = manifestEntry(info);
+			manifest.put(rel, entry);
+			manifestOut.write(rel + "\t" + entry + "\n");
+			manifestOut.flush();
+		}
+		for( FileInfo info : listing ) {
+			if ( ! info.directory ) continue;
+			String rel = relPath.length() == 0 ? info.name : relPath + "/" + info.name;
+			device.obexChangeDir(info.name);
+			mirrorFolder(new File(dir, info.name), rel);
+			device.obexChangeDir("..");
+		}
+	}
+
+	private boolean isUpToDate(File f, String rel, FileInfo info) {
+		if ( ! f.isFile() || f.length() != info.filesize ) return false;
+		if ( manifestEntry(info).equals(manifest.get(rel)) ) return true;
+		return info.date != null && Math.abs(f.lastModified() - info.date.getTime()) <= MTIME_TOLERANCE_MILLIS;
+	}
+
+	private long download(FileInfo info, File f) throws IOException {
+		File part = new File(f.getPath() + PART_SUFFIX);
+		FileOutputStream out = new FileOutputStream(part);
+		long count;
+		try {
+			count = device.obexGetFile(info.name, out.getChannel());
+		} catch (IOException e) {
+			out.close();
+			part.delete();
+			throw e;
+		}
+		out.close();
+		if ( f.exists() && ! f.delete() ) {
+			throw new IOException("cannot replace " + f);
+		}
+		if ( ! part.renameTo(f) ) {
+			throw new IOException("cannot rename " + part + " to " + f);
+		}
+		if ( info.date != null ) {
+			f.setLastModified(info.date.getTime());
+		}
+		return count;
+	}
+
+	private String manifestEntry(FileInfo info) {
+		// size and device date
+		return info.filesize + "\t" + (info.date != null ? info.date.getTime() : -1);
+	}
+
+	private void loadManifest(File manifestFile) throws IOException {
+		manifest.clear();
+		if ( full || ! manifestFile.exists() ) return;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), "UTF-8"));
+		try {
+			String line;
+			while( (line = in.readLine()) != null ) {
+				int i = line.indexOf('\t');
+				if ( line.startsWith("#") || i < 0 ) continue;
+				manifest.put(line.substring(0, i), line.substring(i+1)); // later lines win
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Rewrites the manifest without the entries superseded during the run.
+	 */
+	private void saveManifest(File manifestFile) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(manifestFile), "UTF-8");
+		try {
+			out.write("# tc65sh mirror manifest\n");
+			for( Map.Entry<String,String> entry : manifest.entrySet() ) {
+				out.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,392 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.tc65sh.device.Device;
+import org.tc65sh.device.FileInfo;
+import org.tc65sh.device.TreeIndex;
+import org.tc65sh.util.ByteArray;
+import org.tc65sh.util.Log;
+
+/**
+ * Brings a device folder up to date with a local directory: creates
+ * missing folders, uploads new and changed files and optionally deletes
+ * files the local directory does not have. A file counts as unchanged if
+ * its size matches and either its CRC32 matches the one in the manifest
+ * file left on the device by the last sync, or, without manifest entry,
+ * its modification time matches. Names are compared ignoring case like
+ * the flash file system does, existing device names keep their spelling.
+ */
+public class DirectorySync {
+
+	public static final String MANIFEST_FILENAME = "sync.mf";
+
+	public static final int ACTION_MKDIR = 1;
+	public static final int ACTION_PUT = 2;
+	public static final int ACTION_DELETE = 3;
+
+	/** Device dates have a resolution of seconds, FAT of two seconds */
+	private static final long MTIME_TOLERANCE_MILLIS = 2000;
+
+	public static class Action {
+
+		public final int type;
+		public final String folderPath;
+		public final String name;
+		public final File localFile;
+		public final String reason;
+		/** Report of the UploadVerifier once a put was executed */
+		public String verification = null;
+		/** The file as written to the device once a put was executed */
+		public FileInfo uploaded = null;
+
+		Action(int type, String folderPath, String name, File localFile, String reason) {
+			this.type = type;
+			this.folderPath = folderPath;
+			this.name = name;
+			this.localFile = localFile;
+			this.reason = reason;
+		}
+
+		public String getPath() {
+			return TreeIndex.childPath(folderPath, name);
+		}
+
+		@Override
+		public String toString() {
+			switch ( type ) {
+			case ACTION_MKDIR:
+				return "mkdir " + getPath();
+			case ACTION_PUT:
+				return "put   " + getPath() + " (" + reason + (localFile != null ? ", " + localFile.length() + " bytes" : "") + ")";
+			default:
+				return "rm    " + getPath();
+			}
+		}
+
+	}
+
+	private final Device device;
+	private final File localDir;
+	private final String deviceDir;
+	private final boolean deleteOrphans;
+	private UploadVerifier verifier = null;
+	private String basePath;
+	private List<Action> actions = new ArrayList<Action>();
+	private Map<String,String> manifest = new HashMap<String,String>();
+	private boolean manifestFound = false;
+	private boolean manifestComplete = true; // all unchanged files were checked against the manifest
+	private int unchangedCount = 0;
+
+	/**
+	 * @param deviceDir folder relative to the current device folder, may
+	 * contain '/', null or empty for the current folder
+	 */
+	public DirectorySync(Device device, File localDir, String deviceDir, boolean deleteOrphans) {
+		this.device = device;
+		this.localDir = localDir;
+		this.deviceDir = deviceDir;
+		this.deleteOrphans = deleteOrphans;
+	}
+
+	/**
+	 * Uploads are verified by verifier, if not null.
+	 */
+	public void setVerifier(UploadVerifier verifier) {
+		this.verifier = verifier;
+	}
+
+	/**
+	 * Compares the local directory with the device and returns what has to
+	 * be done. Only folder listings and the manifest are read from the device.
+	 */
+	public List<Action> plan() throws IOException {
+		if ( ! localDir.isDirectory() ) {
+			throw new IOException("not a directory: " + localDir);
+		}
+		actions.clear();
+		manifest.clear();
+		manifestFound = false;
+		manifestComplete = true;
+		unchangedCount = 0;
+		String startPath = device.getCurrentPath();
+		try {
+			String folderPath = startPath;
+			List<FileInfo> listing = device.obexGetFolderListing();
+			if ( deviceDir != null ) {
+				for( String name : deviceDir.replace('\\', '/').split("/") ) {
+					if ( name.length() == 0 ) continue;
+					FileInfo fi = find(listing, name);
+					if ( fi != null && fi.directory ) {
+						name = fi.name;
+						device.obexChangeDir(name);
+						listing = device.obexGetFolderListing();
+					} else {
+						if ( fi != null ) {
+							planDelete(fi, folderPath);
+						}
+						actions.add(new Action(ACTION_MKDIR, folderPath, name, null, null));
+						listing = null;
+					}
+					folderPath = TreeIndex.childPath(folderPath, name);
+				}
+			}
+			basePath = folderPath;
+			if ( listing != null && find(listing, MANIFEST_FILENAME) != null ) {
+				manifestFound = true;
+				loadManifest();
+			}
+			planFolder(localDir, "", folderPath, listing);
+		} finally {
+			TreeIndex.changeToPath(device, startPath);
+		}
+		return actions;
+	}
+
+	public int getUnchangedCount() {
+		return unchangedCount;
+	}
+
+	/**
+	 * Runs the planned actions and writes the new manifest, which is left
+	 * alone if nothing changed and it already covers all files. Calls the
+	 * listener after each action. The current device folder is restored
+	 * afterwards.
+	 */
+	public void execute(ActionListener listener) throws IOException {
+		String startPath = device.getCurrentPath();
+		try {
+			for( Action action : actions ) {
+				TreeIndex.changeToPath(device, action.folderPath);
+				switch ( action.type ) {
+				case ACTION_MKDIR:
+					device.obexMakeDir(action.name);
+					break;
+				case ACTION_PUT:
+					putFile(action);
+					break;
+				default:
+					device.obexDeleteFile(action.name);
+				}
+				if ( listener != null ) {
+					listener.done(action);
+				}
+			}
+			if ( actions.isEmpty() && manifestFound && manifestComplete ) {
+				Log.debug(getClass(), "nothing changed, keeping the manifest");
+				return;
+			}
+			TreeIndex.changeToPath(device, basePath);
+			ByteArray content = createManifest();
+			FileInfo fi = new FileInfo(false, MANIFEST_FILENAME, content.length(), new Date());
+			device.obexPutFile(fi, content.toByteBuffer());
+			if ( listener != null ) {
+				Action action = new Action(ACTION_PUT, basePath, MANIFEST_FILENAME, null, "manifest");
+				action.uploaded = fi;
+				listener.done(action);
+			}
+		} finally {
+			TreeIndex.changeToPath(device, startPath);
+		}
+	}
+
+	public interface ActionListener {
+		void done(Action action);
+	}
+
+	private void planFolder(File dir, String relPath, String folderPath, List<FileInfo> listing) throws IOException {
+		File[] files = dir.listFiles();
+		if ( files == null ) {
+			throw new IOException("cannot list " + dir);
+		}
+		Arrays.sort(files);
+		List<String> localNames = new ArrayList<String>();
+		for( File f : files ) {
+			String name = f.getName();
+			String rel = relPath.length() == 0 ? name : relPath + "/" + name;
+			localNames.add(name);
+			FileInfo remote = find(listing, name);
+			if ( f.isDirectory() ) {
+				if ( remote != null && remote.directory ) {
+					device.obexChangeDir(remote.name);
+					planFolder(f, rel, TreeIndex.childPath(folderPath, remote.name), device.obexGetFolderListing());
+					device.obexChangeDir("..");
+				} else {
+					if ( remote != null ) {
+						planDelete(remote, folderPath);
+					}
+					actions.add(new Action(ACTION_MKDIR, folderPath, name, null, null));
+					planFolder(f, rel, TreeIndex.childPath(folderPath, name), null);
+				}
+			} else if ( f.isFile() ) {
+				if ( remote != null && remote.directory ) {
+					planDelete(remote, folderPath);
+					remote = null;
+				}
+				String reason = changeReason(f, rel, remote);
+				if ( reason != null ) {
+					actions.add(new Action(ACTION_PUT, folderPath, name, f, reason));
+				} else {
+					unchangedCount++;
+				}
+			}
+		}
+		if ( deleteOrphans && listing != null ) {
+			for( FileInfo remote : listing ) {
+				if ( containsIgnoreCase(localNames, remote.name) ) continue;
+				if ( relPath.length() == 0 && remote.name.equalsIgnoreCase(MANIFEST_FILENAME) ) continue;
+				planDelete(remote, folderPath);
+			}
+		}
+	}
+
+	/**
+	 * Plans deleting a file, or a folder with everything in it.
+	 */
+	private void planDelete(FileInfo remote, String folderPath) throws IOException {
+		if ( remote.directory ) {
+			String childPath = TreeIndex.childPath(folderPath, remote.name);
+			String current = device.getCurrentPath();
+			TreeIndex.changeToPath(device, childPath);
+			List<FileInfo> listing = device.obexGetFolderListing();
+			for( FileInfo fi : listing ) {
+				planDelete(fi, childPath);
+			}
+			TreeIndex.changeToPath(device, current);
+		}
+		actions.add(new Action(ACTION_DELETE, folderPath, remote.name, null, null));
+	}
+
+	/**
+	 * Why the local file has to be uploaded, null if it is up to date.
+	 */
+	private String changeReason(File f, String rel, FileInfo remote) throws IOException {
+		if ( remote == null ) return "new";
+		if ( remote.filesize != f.length() ) return "size";
+		String entry = manifest.get(rel);
+		if ( entry != null ) {
+			return entry.equals(manifestEntry(f)) ? null : "content";
+		}
+		manifestComplete = false;
+		if ( remote.date == null || Math.abs(remote.date.getTime() - f.lastModified()) > MTIME_TOLERANCE_MILLIS ) {
+			return "modified";
+		}
+		return null;
+	}
+
+	/**
+	 * Uploads the local file of action, stores the report of the verifier,
+	 * if any, in action.verification.
+	 */
+	private void putFile(Action action) throws IOException {
+		FileInputStream in = new FileInputStream(action.localFile);
+		try {
+			FileChannel channel = in.getChannel();
+			FileInfo fi = new FileInfo(false, action.name, (int) channel.size(), new Date(action.localFile.lastModified()));
+			if ( verifier != null ) {
+				action.verification = verifier.put(fi, channel).report;
+			} else {
+				MappedByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				device.obexPutFile(fi, content);
+			}
+			action.uploaded = fi;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void loadManifest() throws IOException {
+		ByteArray content = device.obexGetFile(MANIFEST_FILENAME).content;
+		for( String line : content.toString("UTF-8").split("\n") ) {
+			// path, size and crc32
+			int i = line.indexOf('\t');
+			if ( line.startsWith("#") || i < 0 ) continue;
+			manifest.put(line.substring(0, i), line.substring(i+1));
+		}
+		Log.debug(getClass(), "manifest has " + manifest.size() + " entries");
+	}
+
+	private ByteArray createManifest() throws IOException {
+		ByteArray content = new ByteArray();
+		content.append("# tc65sh sync manifest\n", "UTF-8");
+		appendManifest(content, localDir, "");
+		return content;
+	}
+
+	private void appendManifest(ByteArray content, File dir, String relPath) throws IOException {
+		File[] files = dir.listFiles();
+		if ( files == null ) return;
+		Arrays.sort(files);
+		for( File f : files ) {
+			String rel = relPath.length() == 0 ? f.getName() : relPath + "/" + f.getName();
+			if ( f.isDirectory() ) {
+				appendManifest(content, f, rel);
+			} else if ( f.isFile() ) {
+				content.append(rel + "\t" + manifestEntry(f) + "\n", "UTF-8");
+			}
+		}
+	}
+
+	private String manifestEntry(File f) throws IOException {
+		return f.length() + "\t" + Long.toHexString(crc32(f));
+	}
+
+	private static long crc32(File f) throws IOException {
+		CRC32 crc = new CRC32();
+		FileInputStream in = new FileInputStream(f);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			while( channel.read(buffer) > 0 ) {
+				crc.update(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	private static FileInfo find(List<FileInfo> listing, String name) {
+		if ( listing == null ) return null;
+		for( FileInfo fi : listing ) {
+			if ( fi.name.equalsIgnoreCase(name) ) return fi;
+		}
+		return null;
+	}
+
+	private static boolean containsIgnoreCase(List<String> names, String name) {
+		for( String n : names ) {
+			if ( n.equalsIgnoreCase(name) ) return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,240 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+
+import org.tc65sh.device.SerialTransport;
+import org.tc65sh.ui.RedirectingUserInterface;
+import org.tc65sh.util.Log;
+
+/**
+ * Runs the same commands on many devices at once, one session per port
+ * on a thread of its own, at most jobs sessions at a time. The output of
+ * each session goes to a log file per port, a summary table to stdout
+ * and to summary.txt.
+ *
+ * Sessions run on virtual threads on JVMs that do not pin them while
+ * they wait in synchronized code (Java 24 and later), otherwise on
+ * platform threads.
+ */
+public class FleetRunner {
+
+	public static final int DEFAULT_JOBS = 8;
+	public static final String DEFAULT_OUT_DIR = "fleet";
+
+	private static final int MIN_UNPINNED_VIRTUAL_THREADS_VERSION = 24;
+
+	public static class Result {
+
+		public final String port;
+		public final String portId;
+		public boolean success = false;
+		public long millis = 0;
+		public int commandCount = 0;
+		public String error = null;
+
+		Result(String port) {
+			this.port = port;
+			this.portId = port.replaceAll("[^A-Za-z0-9._-]+", "_").replaceAll("^_+", "");
+		}
+
+	}
+
+	private final Main template;
+	private final int jobs;
+	private final File outDir;
+
+	public FleetRunner(Main template, int jobs, File outDir) {
+		if ( jobs < 1 ) throw new RuntimeException("invalid number of fleet jobs " + jobs);
+		this.template = template;
+		this.jobs = jobs;
+		this.outDir = outDir;
+	}
+
+	/**
+	 * Runs all sessions, prints the summary and returns the number of
+	 * failed sessions.
+	 */
+	public int run(List<String> ports) throws IOException, InterruptedException {
+		if ( ports.isEmpty() ) {
+			throw new IOException("no ports for fleet mode");
+		}
+		outDir.mkdirs();
+		SerialTransport.registerPorts(ports);
+		final Semaphore permits = new Semaphore(jobs);
+		List<Result> results = new ArrayList<Result>();
+		List<Thread> threads = new ArrayList<Thread>();
+		boolean virtual = isVirtualThreadsUsable();
+		Log.info("running " + ports.size() + " devices, " + jobs + " at a time, on " + (virtual ? "virtual" : "platform") + " threads");
+		for( String port : ports ) {
+			final Result result = new Result(port);
+			results.add(result);
+			Runnable session = new Runnable() {
+				public void run() {
+					try {
+						permits.acquire();
+					} catch (InterruptedException e) {
+						result.error = "interrupted";
+						return;
+					}
+					try {
+						runDevice(result);
+					} finally {
+						permits.release();
+					}
+				}
+			};
+			Thread thread = newThread(session, "tc65sh-fleet-" + result.portId, virtual);
+			threads.add(thread);
+			thread.start();
+		}
+		for( Thread thread : threads ) {
+			thread.join();
+		}
+		return printSummary(results);
+	}
+
+	private void runDevice(Result result) {
+		long t1 = System.currentTimeMillis();
+		PrintStream out = null;
+		RedirectingUserInterface ui = null;
+		try {
+			out = new PrintStream(new FileOutputStream(new File(outDir, result.portId + ".log")), true, "UTF-8");
+			Log.setThreadOutput(out);
+			ui = new RedirectingUserInterface(template.createBatchUserInterface(), out, result.portId);
+			template.forPort(result.port, result.portId).runSession(ui);
+			result.success = true;
+		} catch (Exception e) {
+			result.error = e.getMessage() != null ? e.getMessage() : e.toString();
+			Log.info("session failed", e);
+		} finally {
+			result.millis = System.currentTimeMillis() - t1;
+			if ( ui != null ) {
+				result.commandCount = ui.getCommandCount();
+			}
+			Log.setThreadOutput(null);
+			if ( out != null ) {
+				out.close();
+			}
+		}
+	}
+
+	private int printSummary(List<Result> results) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ROOT, "%-24s %-7s %9s %9s  %s%n", "port", "result", "time s", "commands", "error"));
+		int failures = 0;
+		long maxMillis = 0;
+		for( Result r : results ) {
+			if ( ! r.success ) failures++;
+			maxMillis = Math.max(maxMillis, r.millis);
+			sb.append(String.format(Locale.ROOT, "%-24s %-7s %9.1f %9d  %s%n", r.port, r.success ? "OK" : "FAILED", r.millis / 1000.0, r.commandCount, r.error != null ? r.error : ""));
+		}
+		sb.append(String.format(Locale.ROOT, "%d devices, %d ok, %d failed, longest %.1f s%n", results.size(), results.size() - failures, failures, maxMillis / 1000.0));
+		System.out.print(sb);
+		PrintStream out = new PrintStream(new FileOutputStream(new File(outDir, "summary.txt")), false, "UTF-8");
+		try {
+			out.print(sb);
+		} finally {
+			out.close();
+		}
+		return failures;
+	}
+
+	/**
+	 * Splits a comma separated port list and expands * and ? in the last
+	 * part of each path, e.g. "/dev/ttyUSB*".
+	 */
+	public static List<String> expandPorts(String spec) {
+		List<String> ports = new ArrayList<String>();
+		for( String part : spec.split(",") ) {
+			part = part.trim();
+			if ( part.length() == 0 ) continue;
+			int i = part.lastIndexOf('/');
+			if ( i < 0 || (part.indexOf('*') < 0 && part.indexOf('?') < 0) ) {
+				ports.add(part);
+				continue;
+			}
+			File dir = new File(i == 0 ? "/" : part.substring(0, i));
+			Pattern pattern = globToPattern(part.substring(i+1));
+			String[] names = dir.list();
+			if ( names == null ) continue;
+			Arrays.sort(names);
+			for( String name : names ) {
+				if ( pattern.matcher(name).matches() ) {
+					ports.add(new File(dir, name).getPath());
+				}
+			}
+		}
+		return ports;
+	}
+
+	private static Pattern globToPattern(String glob) {
+		StringBuilder sb = new StringBuilder();
+		for( char c : glob.toCharArray() ) {
+			if ( c == '*' ) {
+				sb.append(".*");
+			} else if ( c == '?' ) {
+				sb.append('.');
+			} else {
+				sb.append(Pattern.quote("" + c));
+			}
+		}
+		return Pattern.compile(sb.toString());
+	}
+
+	/**
+	 * Before Java 24 a virtual thread waiting in synchronized code blocks
+	 * its carrier thread, and Device waits for responses that way.
+	 */
+	private static boolean isVirtualThreadsUsable() {
+		try {
+			Object version = Runtime.class.getMethod("version").invoke(null);
+			int feature = (Integer) version.getClass().getMethod("feature").invoke(version);
+			return feature >= MIN_UNPINNED_VIRTUAL_THREADS_VERSION;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * A virtual thread if requested and available, looked up by reflection
+	 * so the code still builds for older Java versions.
+	 */
+	private static Thread newThread(Runnable runnable, String name, boolean virtual) {
+		if ( virtual ) {
+			try {
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+				return (Thread) builderClass.getMethod("unstarted", Runnable.class).invoke(builder, runnable);
+			} catch (Exception e) {
+				Log.debug(FleetRunner.class, "no virtual threads: " + e);
+			}
+		}
+		return new Thread(runnable, name);
+	}
+
+}
@@ -0,0 +1,580 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.tc65sh.device.Device;
+import org.tc65sh.device.FileInfo;
+import org.tc65sh.device.ObexException;
+import org.tc65sh.device.TreeIndex;
+import org.tc65sh.ui.CommandPlanner;
+import org.tc65sh.util.FileUtils;
+import org.tc65sh.util.Log;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP API to the file system of the device:
+ *
+ * GET /ls/{folder} lists a folder as JSON.
+ * GET /files/{path} downloads a file, chunked.
+ * PUT /files/{path} uploads a file.
+ * DELETE /files/{path} deletes a file.
+ * POST /at runs the AT command in the request body.
+ * POST /shutdown ends the gateway, only for local clients.
+ *
+ * Paths are relative to the root folder, "a:/" may be prepended. File
+ * content is streamed between the socket and OBEX, it is never held in
+ * memory as a whole. Requests are served on threads of their own, but
+ * all device work runs on a single thread, one request after the other.
+ * The device thread never touches a socket: file content passes through
+ * a Pipe, and a client that stalls for IDLE_TIMEOUT_MILLIS fails its
+ * request instead of blocking the others.
+ *
+ * There is no authentication, by default only local clients can connect.
+ */
+public class HttpGateway {
+
+	public static final long IDLE_TIMEOUT_MILLIS = 30000;
+
+	private static final int MAX_AT_REQUEST_LENGTH = 4096;
+	private static final int PIPE_CHUNK_SIZE = 8192;
+	private static final int PIPE_CAPACITY = 16; // chunks
+
+	/**
+	 * Ends a request with an HTTP status other than 200.
+	 */
+	private static class StatusException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		final int status;
+
+		StatusException(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+
+	}
+
+	/**
+	 * Sends the response headers with the first byte, so errors before it
+	 * can still be reported with a status code.
+	 */
+	private static class ResponseChannel implements WritableByteChannel {
+
+		private final HttpExchange exchange;
+		private WritableByteChannel body = null;
+
+		ResponseChannel(HttpExchange exchange) {
+			this.exchange = exchange;
+		}
+
+		boolean isStarted() {
+			return body != null;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			if ( body == null ) {
+				exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+				exchange.sendResponseHeaders(200, 0); // chunked
+				body = Channels.newChannel(exchange.getResponseBody());
+			}
+			return body.write(src);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+			// closed with the exchange
+		}
+
+	}
+
+	/**
+	 * Hands chunks of file content between a request thread and the device
+	 * thread. Either side may fail it, which ends the other side too.
+	 */
+	private static class Pipe {
+
+		private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+		private boolean ended = false;
+		private IOException failure = null;
+
+		/**
+		 * Waits for room up to timeoutMillis, 0 waits as long as it takes.
+		 */
+		synchronized void write(byte[] chunk, long timeoutMillis) throws IOException {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while( failure == null && chunks.size() >= PIPE_CAPACITY ) {
+				await(deadline, timeoutMillis, "client does not read");
+			}
+			if ( failure != null ) throw failure;
+			chunks.add(chunk);
+			notifyAll();
+		}
+
+		synchronized void end() {
+			ended = true;
+			notifyAll();
+		}
+
+		synchronized void fail(Exception e) {
+			if ( failure == null ) {
+				failure = e instanceof IOException ? (IOException) e : new IOException(e.toString());
+			}
+			notifyAll();
+		}
+
+		/**
+		 * The next chunk, null after the last one. Waits up to timeoutMillis,
+		 * 0 waits as long as it takes.
+		 */
+		synchronized byte[] read(long timeoutMillis) throws IOException {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while( failure == null && chunks.isEmpty() && ! ended ) {
+				await(deadline, timeoutMillis, "client sends nothing");
+			}
+			if ( failure != null ) throw failure;
+			if ( chunks.isEmpty() ) return null;
+			notifyAll();
+			return chunks.removeFirst();
+		}
+
+		private void await(long deadline, long timeoutMillis, String problem) throws IOException {
+			long millis = 0;
+			if ( timeoutMillis > 0 ) {
+				millis = deadline - System.currentTimeMillis();
+				if ( millis <= 0 ) {
+					IOException e = new IOException(problem + " for " + timeoutMillis / 1000 + " s");
+					failure = e;
+					notifyAll();
+					throw e;
+				}
+			}
+			try {
+				wait(millis);
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted");
+			}
+		}
+
+		/**
+		 * The device side of an upload.
+		 */
+		ReadableByteChannel source() {
+			return new ReadableByteChannel() {
+				private ByteBuffer current = ByteBuffer.allocate(0);
+				public int read(ByteBuffer dst) throws IOException {
+					if ( ! current.hasRemaining() ) {
+						byte[] chunk = Pipe.this.read(IDLE_TIMEOUT_MILLIS);
+						if ( chunk == null ) return -1;
+						current = ByteBuffer.wrap(chunk);
+					}
+					int n = Math.min(current.remaining(), dst.remaining());
+					ByteBuffer part = current.duplicate();
+					part.limit(part.position() + n);
+					dst.put(part);
+					current.position(current.position() + n);
+					return n;
+				}
+				public boolean isOpen() {
+					return true;
+				}
+				public void close() {
+				}
+			};
+		}
+
+		/**
+		 * The device side of a download.
+		 */
+		WritableByteChannel sink() {
+			return new WritableByteChannel() {
+				public int write(ByteBuffer src) throws IOException {
+					int n = src.remaining();
+					byte[] chunk = new byte[n];
+					src.get(chunk);
+					Pipe.this.write(chunk, IDLE_TIMEOUT_MILLIS);
+					return n;
+				}
+				public boolean isOpen() {
+					return true;
+				}
+				public void close() {
+				}
+			};
+		}
+
+	}
+
+	private final Device device;
+	private final TreeIndex treeIndex;
+	private final HttpServer server;
+	private final ExecutorService deviceExecutor;
+	private final ExecutorService requestExecutor;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	/**
+	 * @param bindAddress null for the loopback address
+	 */
+	public HttpGateway(Device device, TreeIndex treeIndex, InetAddress bindAddress, int port) throws IOException {
+		this.device = device;
+		this.treeIndex = treeIndex;
+		deviceExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "tc65sh-http-device");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		requestExecutor = Executors.newCachedThreadPool();
+		if ( bindAddress == null ) {
+			bindAddress = InetAddress.getLoopbackAddress();
+		}
+		server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+		server.setExecutor(requestExecutor);
+		server.createContext("/ls/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange, "/ls/");
+			}
+		});
+		server.createContext("/files/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange, "/files/");
+			}
+		});
+		server.createContext("/at", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange, "/at");
+			}
+		});
+		server.createContext("/shutdown", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange, "/shutdown");
+			}
+		});
+	}
+
+	/**
+	 * Serves requests until stop() is called. Returns once the device
+	 * operation in progress is finished, so the device can be
+	 * disconnected.
+	 */
+	public void run() throws InterruptedException {
+		server.start();
+		Log.info("http gateway listening on " + server.getAddress());
+		stopped.await();
+		Log.info("http gateway shutting down");
+		server.stop(1);
+		requestExecutor.shutdown();
+		deviceExecutor.shutdown();
+		if ( ! deviceExecutor.awaitTermination(IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) ) {
+			Log.info("device operation still running after " + IDLE_TIMEOUT_MILLIS + " ms");
+		}
+	}
+
+	/**
+	 * Makes run() return, does not wait.
+	 */
+	public void stop() {
+		stopped.countDown();
+	}
+
+	private void serve(HttpExchange exchange, String context) throws IOException {
+		String method = exchange.getRequestMethod();
+		String path = exchange.getRequestURI().getPath();
+		Log.debug(getClass(), "{} {}", method, path);
+		ResponseChannel response = new ResponseChannel(exchange);
+		try {
+			String devicePath = path.length() > context.length() ? path.substring(context.length()) : "";
+			if ( context.equals("/ls/") && method.equals("GET") ) {
+				list(exchange, devicePath);
+			} else if ( context.equals("/files/") && method.equals("GET") ) {
+				getFile(devicePath, response);
+				if ( ! response.isStarted() ) {
+					exchange.sendResponseHeaders(200, -1); // empty file
+				}
+			} else if ( context.equals("/files/") && method.equals("PUT") ) {
+				putFile(exchange, devicePath);
+			} else if ( context.equals("/files/") && method.equals("DELETE") ) {
+				deleteFile(devicePath);
+				exchange.sendResponseHeaders(204, -1);
+			} else if ( context.equals("/at") && path.equals("/at") && method.equals("POST") ) {
+				executeAtCommand(exchange);
+			} else if ( context.equals("/shutdown") && path.equals("/shutdown") && method.equals("POST") ) {
+				shutdown(exchange);
+			} else if ( path.equals(context) || context.equals("/at") || context.equals("/shutdown") ) {
+				throw new StatusException(405, "method " + method + " not allowed for " + path);
+			} else {
+				throw new StatusException(404, "no such resource " + path);
+			}
+		} catch (StatusException e) {
+			sendText(exchange, e.status, "Error: " + e.getMessage());
+		} catch (Exception e) {
+			if ( response.isStarted() ) {
+				// a server error closes the connection without the final chunk,
+				// so the client sees the download as incomplete
+				throw new IOException("download of " + path + " failed: " + e.getMessage());
+			}
+			Log.debug(getClass(), "request failed", e);
+			boolean notFound = e instanceof ObexException && ((ObexException) e).isNotFound();
+			sendText(exchange, notFound ? 404 : 502, "Error: " + e.getMessage());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void list(HttpExchange exchange, final String folder) throws Exception {
+		List<FileInfo> files = onDevice(new Callable<List<FileInfo>>() {
+			public List<FileInfo> call() throws Exception {
+				TreeIndex.changeToPath(device, folder);
+				return device.obexGetFolderListing();
+			}
+		});
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+		StringBuilder sb = new StringBuilder("[");
+		for( FileInfo fi : files ) {
+			if ( sb.length() > 1 ) sb.append(",");
+			sb.append("\n  {\"name\": \"").append(escapeJson(fi.name)).append("\"");
+			sb.append(", \"directory\": ").append(fi.directory);
+			sb.append(", \"size\": ").append(fi.filesize);
+			if ( fi.date != null ) {
+				sb.append(", \"date\": \"").append(df.format(fi.date)).append("\"");
+			}
+			sb.append("}");
+		}
+		sb.append("\n]\n");
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		byte[] body = sb.toString().getBytes("UTF-8");
+		exchange.sendResponseHeaders(200, body.length);
+		exchange.getResponseBody().write(body);
+	}
+
+	private void getFile(String path, WritableByteChannel response) throws Exception {
+		final String folder = getFolder(path);
+		final String name = getName(path);
+		final Pipe pipe = new Pipe();
+		Future<Long> result = deviceExecutor.submit(new Callable<Long>() {
+			public Long call() throws Exception {
+				try {
+					TreeIndex.changeToPath(device, folder);
+					long count = device.obexGetFile(name, pipe.sink());
+					pipe.end();
+					return count;
+				} catch (Exception e) {
+					pipe.fail(e);
+					throw e;
+				}
+			}
+		});
+		try {
+			byte[] chunk;
+			while( (chunk = pipe.read(0)) != null ) {
+				ByteBuffer bb = ByteBuffer.wrap(chunk);
+				while( bb.hasRemaining() ) {
+					response.write(bb);
+				}
+			}
+		} catch (IOException e) {
+			pipe.fail(e); // lets the device side abort the GET
+		}
+		await(result);
+	}
+
+	private void putFile(final HttpExchange exchange, String path) throws Exception {
+		final String folder = getFolder(path);
+		final String name = getName(path);
+		String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+		final int filesize = contentLength != null ? Integer.parseInt(contentLength.trim()) : -1;
+		final Pipe pipe = new Pipe();
+		Future<Long> result = deviceExecutor.submit(new Callable<Long>() {
+			public Long call() throws Exception {
+				try {
+					TreeIndex.changeToPath(device, folder);
+					FileInfo fi = new FileInfo(false, name, filesize, new Date());
+					long count = device.obexPutFile(fi, pipe.source());
+					treeIndex.update(device.getCurrentPath(), new FileInfo(false, name, (int) count, fi.date));
+					saveIndex();
+					return count;
+				} catch (Exception e) {
+					pipe.fail(e); // stops the request thread
+					throw e;
+				}
+			}
+		});
+		try {
+			InputStream body = exchange.getRequestBody();
+			byte[] b = new byte[PIPE_CHUNK_SIZE];
+			int n;
+			while( (n = body.read(b)) >= 0 ) {
+				if ( n > 0 ) {
+					pipe.write(Arrays.copyOf(b, n), 0);
+				}
+			}
+			pipe.end();
+		} catch (IOException e) {
+			pipe.fail(e); // lets the device side abort the PUT
+		}
+		long count = await(result);
+		sendText(exchange, 201, count + " bytes written to " + path);
+	}
+
+	private void deleteFile(String path) throws Exception {
+		final String folder = getFolder(path);
+		final String name = getName(path);
+		onDevice(new Callable<Void>() {
+			public Void call() throws Exception {
+				TreeIndex.changeToPath(device, folder);
+				device.obexDeleteFile(name);
+				treeIndex.remove(device.getCurrentPath(), name);
+				saveIndex();
+				return null;
+			}
+		});
+	}
+
+	private void executeAtCommand(HttpExchange exchange) throws Exception {
+		final String command = readText(exchange.getRequestBody()).trim();
+		if ( ! CommandPlanner.isAtCommand(command) || command.indexOf('\n') >= 0 || command.indexOf('\r') >= 0 ) {
+			throw new StatusException(400, "the body must be one AT command");
+		}
+		String result = onDevice(new Callable<String>() {
+			public String call() throws Exception {
+				return device.executeAtCommand(command);
+			}
+		});
+		sendText(exchange, 200, result);
+	}
+
+	private void shutdown(HttpExchange exchange) throws Exception {
+		if ( ! exchange.getRemoteAddress().getAddress().isLoopbackAddress() ) {
+			throw new StatusException(403, "shutdown is only allowed for local clients");
+		}
+		sendText(exchange, 202, "shutting down");
+		stop();
+	}
+
+	/**
+	 * The gateway may also end by the process being killed, so changes
+	 * of the index are saved at once.
+	 */
+	private void saveIndex() {
+		if ( ! treeIndex.isBuilt() ) return;
+		try {
+			treeIndex.save();
+		} catch (IOException e) {
+			Log.info("cannot save the tree index: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Runs task on the device thread and waits for the result.
+	 */
+	private <T> T onDevice(Callable<T> task) throws Exception {
+		return await(deviceExecutor.submit(task));
+	}
+
+	private static <T> T await(Future<T> result) throws Exception {
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if ( cause instanceof Exception ) throw (Exception) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	private String getFolder(String path) throws StatusException {
+		getName(path); // validates the path
+		int i = path.lastIndexOf('/');
+		return i < 0 ? "" : path.substring(0, i);
+	}
+
+	private String getName(String path) throws StatusException {
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		if ( name.length() == 0 || ! FileUtils.isFileName(name) || path.contains("..") ) {
+			throw new StatusException(400, "invalid file path " + path);
+		}
+		return name;
+	}
+
+	private static String readText(InputStream in) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		byte[] b = new byte[512];
+		int n;
+		while( (n = in.read(b)) > 0 ) {
+			buffer.write(b, 0, n);
+			if ( buffer.size() > MAX_AT_REQUEST_LENGTH ) {
+				throw new IOException("request body too long");
+			}
+		}
+		return buffer.toString("ISO-8859-1");
+	}
+
+	private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+		byte[] body = (text + "\n").getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+	}
+
+	private static String escapeJson(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for( char c : s.toCharArray() ) {
+			if ( c == '"' || c == '\\' ) {
+				sb.append('\\').append(c);
+			} else if ( c < 0x20 ) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+}
@@ -16,21 +16,39 @@
 package org.tc65sh;
 
 import org.tc65sh.device.Device;
-import org.tc65sh.device.FileHolder;
 import org.tc65sh.device.FileInfo;
+import org.tc65sh.device.TreeIndex;
+import org.tc65sh.device.CaptureTransport;
+import org.tc65sh.device.ReplayTransport;
+import org.tc65sh.device.SerialTransport;
+import org.tc65sh.device.Transport;
+import org.tc65sh.device.WireCapture;
+import org.tc65sh.emulator.EmulatedFileSystem;
+import org.tc65sh.emulator.Tc65Emulator;
 import org.tc65sh.ui.*;
-import org.tc65sh.util.ByteArray;
 import org.tc65sh.util.FileUtils;
+import org.tc65sh.util.FlightRecording;
 import org.tc65sh.util.Log;
+import org.tc65sh.util.Metrics;
 import org.tc65sh.util.StringSplitter;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 public class Main {
 
@@ -39,6 +57,10 @@ public class Main {
 	private static final String DEFAULT_PORTNAME = "COM1";
 	private static final int DEFAULT_BAUDRATE = 115200;
 	private static final char DEFAULT_FLOWCONTROL = Device.FLOWCONTROL_RTSCTS;
+	private static final String STDIN_FILENAME = "-";
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = 15000;
+	private static final List<String> COMMAND_NAMES = Arrays.asList("cd", "pwd", "mkdir", "ls", "dir", "index", "find", "du", "rm", "del", "put", "sync", "get",
+			"getd", "cat", "erasedisk", "sleep", "help", "stats");
 
 	public static void main(String[] args) {
 		try {
@@ -51,9 +73,13 @@ public class Main {
 					new Main().printUsage();
 					System.exit(0);
 				}
+				if ("--client".equals(arg) || "-cl".equals(arg)) {
+					Client.main(args);
+				}
 			}
-			new Main().exec(args);
-			System.exit(0);
+			Main main = new Main();
+			main.exec(args);
+			System.exit(main.exitCode);
 		} catch (Exception e) {
 			Log.info("PANIC", e);
 		}
@@ -63,6 +89,33 @@ public class Main {
 	private int baudrate = DEFAULT_BAUDRATE;
 	private char flowControl = DEFAULT_FLOWCONTROL;
 	private int sysstartWaitSec = 0; // 0 means "do not wait for SYSSTART"
+	private int maxPacketLength = -1; // -1 means "as reported by the device"
+	private boolean singleResponseMode = false;
+	private boolean emulator = false;
+	private long emulatorLatencyMicros = 0;
+	private int emulatorMaxPacketLength = Device.MAX_OBEX_MAX_PACKET_LENGTH;
+	private File indexDir = new File(System.getProperty("user.home"), ".tc65sh" + File.separator + "index");
+	private TreeIndex treeIndex;
+	private File commandFile = null;
+	private String commandString = null;
+	private String fleetPorts = null;
+	private int fleetJobs = FleetRunner.DEFAULT_JOBS;
+	private File fleetOutDir = new File(FleetRunner.DEFAULT_OUT_DIR);
+	private int exitCode = 0;
+	private boolean reorderAtCommands = false;
+	private File metricsOutFile = null;
+	private File flightRecordingFile = null;
+	private final CountDownLatch finished = new CountDownLatch(1); // exec is done
+	private File captureFile = null;
+	private File replayFile = null;
+	private double replaySpeed = 1;
+	private int httpPort = 0; // 0 means "no http gateway"
+	private InetAddress httpBindAddress = null; // null means loopback
+	private File journalFile = null;
+	private boolean resume = false;
+	private CommandJournal journal = null;
+	private double verifyRate = -1; // -1 means "do not verify uploads"
+	private UploadVerifier verifier = null;
 
 	public void exec(String[] args) throws Exception {
 		Log.logLevel = Log.LOG_INFO;
@@ -79,44 +132,291 @@ public class Main {
 				Log.logLevel = Log.LOG_DEBUG;
 			} else if (args[i].equals("-q") || args[i].equals("--quiet")) {
 				Log.logLevel = Log.LOG_NONE;
+			} else if (args[i].equals("-lf") || args[i].equals("--log-file")) {
+				Log.setLogFile(new File(args[i + 1]), Log.DEFAULT_LOG_FILE_SIZE, Log.DEFAULT_LOG_FILE_COUNT);
 			} else if (args[i].equals("-w") || args[i].equals("--wait")) {
 				sysstartWaitSec = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-mp") || args[i].equals("--max-packet")) {
+				maxPacketLength = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-srm") || args[i].equals("--single-response-mode")) {
+				singleResponseMode = true;
+			} else if (args[i].equals("-e") || args[i].equals("--emulator")) {
+				emulator = true;
+			} else if (args[i].equals("-el") || args[i].equals("--emulator-latency")) {
+				emulatorLatencyMicros = Long.parseLong(args[i + 1]);
+			} else if (args[i].equals("-emp") || args[i].equals("--emulator-max-packet")) {
+				emulatorMaxPacketLength = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-ix") || args[i].equals("--index-dir")) {
+				indexDir = new File(args[i + 1]);
+			} else if (args[i].equals("-ra") || args[i].equals("--reorder-at")) {
+				reorderAtCommands = true;
+			} else if (args[i].equals("-mo") || args[i].equals("--metrics-out")) {
+				metricsOutFile = new File(args[i + 1]);
+			} else if (args[i].equals("-jfr") || args[i].equals("--flight-recording")) {
+				flightRecordingFile = new File(args[i + 1]);
+			} else if (args[i].equals("-cap") || args[i].equals("--capture")) {
+				captureFile = new File(args[i + 1]);
+			} else if (args[i].equals("-vf") || args[i].equals("--verify")) {
+				verifyRate = Double.parseDouble(args[i + 1]);
+			} else if (args[i].equals("-re") || args[i].equals("--resume")) {
+				resume = true;
+			} else if (args[i].equals("-rp") || args[i].equals("--replay")) {
+				replayFile = new File(args[i + 1]);
+			} else if (args[i].equals("-rs") || args[i].equals("--replay-speed")) {
+				replaySpeed = Double.parseDouble(args[i + 1]);
+			} else if (args[i].equals("-fl") || args[i].equals("--fleet")) {
+				fleetPorts = args[i + 1];
+			} else if (args[i].equals("-fj") || args[i].equals("--fleet-jobs")) {
+				fleetJobs = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-fo") || args[i].equals("--fleet-out")) {
+				fleetOutDir = new File(args[i + 1]);
 			} else if (args[i].equals("-f") || args[i].equals("--file")) {
 				Log.info("processing command file " + args[i + 1]);
-				ui = new CommandFileUserInterface(new File(args[i + 1]));
+				commandFile = new File(args[i + 1]);
+				commandString = null;
+				ui = new CommandFileUserInterface(commandFile);
 			} else if (args[i].equals("-c") || args[i].equals("--commands")) {
 				Log.info("processing commands " + args[i + 1]);
-				ui = new CommandLineUserInterface(args[i + 1]);
+				commandString = args[i + 1];
+				commandFile = null;
+				ui = new CommandLineUserInterface(commandString);
 			} else if (args[i].equals("-t") || args[i].equals("--telnet")) {
 				ui = new TelnetUserInterface(Integer.parseInt(args[i + 1]));
+			} else if (args[i].equals("-D") || args[i].equals("--daemon")) {
+				ui = new DaemonUserInterface(Integer.parseInt(args[i + 1]));
+			} else if (args[i].equals("-H") || args[i].equals("--http")) {
+				httpPort = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-Hb") || args[i].equals("--http-bind")) {
+				httpBindAddress = InetAddress.getByName(args[i + 1]);
 			}
 		}
 
-		Device device = new Device();
+		if (ui instanceof BatchUserInterface) {
+			((BatchUserInterface) ui).planCommands(reorderAtCommands);
+		}
+		if (ui instanceof CommandFileUserInterface) {
+			journalFile = new File(commandFile.getPath() + ".journal");
+		}
+		FlightRecording flightRecording = null;
+		if (flightRecordingFile != null) {
+			flightRecording = new FlightRecording(flightRecordingFile);
+			flightRecording.start();
+		}
 		try {
+			if (fleetPorts != null) {
+				if (commandFile == null && commandString == null) {
+					Log.info("fleet mode needs a command file (-f) or commands (-c)");
+					exitCode = 1;
+					return;
+				}
+				FleetRunner fleet = new FleetRunner(this, fleetJobs, fleetOutDir);
+				int failures = fleet.run(FleetRunner.expandPorts(fleetPorts));
+				exitCode = failures > 0 ? 1 : 0;
+				return;
+			}
+			try {
+				runSession(ui);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		} finally {
+			try {
+				if (flightRecording != null) {
+					flightRecording.stop();
+				}
+				if (metricsOutFile != null) {
+					writeMetrics(metricsOutFile);
+				}
+			} finally {
+				finished.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Writes a snapshot of all metrics, as JSON if the file name ends with
+	 * .json, in the Prometheus text format otherwise.
+	 */
+	private void writeMetrics(File file) throws IOException {
+		String snapshot = file.getName().endsWith(".json") ? Metrics.toJson() : Metrics.toPrometheus();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(snapshot.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		Log.info("metrics written to " + file);
+	}
+
+	/**
+	 * A copy of the options of this instance for a session on another port.
+	 * The tree index of each port is kept in a folder of its own, because
+	 * devices of the same model answer ATI alike.
+	 */
+	Main forPort(String port, String portId) {
+		Main main = new Main();
+		main.portname = port;
+		main.baudrate = baudrate;
+		main.flowControl = flowControl;
+		main.sysstartWaitSec = sysstartWaitSec;
+		main.maxPacketLength = maxPacketLength;
+		main.singleResponseMode = singleResponseMode;
+		main.emulator = emulator;
+		main.emulatorLatencyMicros = emulatorLatencyMicros;
+		main.emulatorMaxPacketLength = emulatorMaxPacketLength;
+		main.indexDir = new File(indexDir, portId);
+		main.commandFile = commandFile;
+		main.commandString = commandString;
+		main.reorderAtCommands = reorderAtCommands;
+		if (captureFile != null) {
+			main.captureFile = new File(captureFile.getPath() + "." + portId);
+		}
+		main.replayFile = replayFile;
+		main.replaySpeed = replaySpeed;
+		if (journalFile != null) {
+			main.journalFile = new File(journalFile.getPath() + "." + portId);
+		}
+		main.resume = resume;
+		main.verifyRate = verifyRate;
+		return main;
+	}
+
+	/**
+	 * A new user interface for the commands given by -f or -c.
+	 */
+	UserInterface createBatchUserInterface() throws IOException {
+		BatchUserInterface ui;
+		if (commandFile != null) {
+			ui = new CommandFileUserInterface(commandFile);
+		} else {
+			ui = new CommandLineUserInterface(commandString);
+		}
+		ui.planCommands(reorderAtCommands);
+		return ui;
+	}
+
+	/**
+	 * Connects the device, runs the commands of ui and disconnects. Without
+	 * ui the interactive mode is started.
+	 */
+	void runSession(UserInterface ui) throws Exception {
+		Device device = new Device();
+		device.setObexMaxPacketLength(maxPacketLength);
+		device.setSingleResponseMode(singleResponseMode);
+		Transport transport;
+		if (replayFile != null) {
+			transport = new ReplayTransport(replayFile, replaySpeed);
+		} else if (emulator) {
+			Log.info("connecting emulated device with " + baudrate + " baud");
+			transport = new Tc65Emulator(new EmulatedFileSystem(), baudrate, emulatorLatencyMicros * 1000, emulatorMaxPacketLength, true);
+		} else {
 			Log.info("connecting " + portname + " with " + baudrate + " baud, flowControl " + flowControl);
-			device.connect(portname, baudrate, flowControl);
+			transport = new SerialTransport(portname, baudrate, flowControl);
+		}
+		if (captureFile != null) {
+			transport = new CaptureTransport(transport, new WireCapture(captureFile));
+		}
+		device.connect(transport);
+		try {
 			if (sysstartWaitSec > 0) {
 				Log.info("waiting " + sysstartWaitSec + " sec for SYSSTART");
 				device.waitForSysstart(sysstartWaitSec * 1000);
 			}
 			Log.info("initializing device");
 			device.initDevice();
-			Log.info("forcing obex mode");
-			device.obexOpenObexMode();
+			if (verifyRate >= 0) {
+				verifier = new UploadVerifier(device, verifyRate);
+			}
+			treeIndex = new TreeIndex(TreeIndex.getIndexFile(indexDir, device.getIdentity()));
+			try {
+				treeIndex.load();
+			} catch (Exception e) {
+				Log.info("ignoring unreadable tree index: " + e.getMessage());
+				treeIndex.clear();
+			}
+			String firstCommand = ui instanceof BatchUserInterface ? ((BatchUserInterface) ui).peekCommand() : null;
+			if (firstCommand == null || !CommandPlanner.isAtCommand(firstCommand)) {
+				// not needed before AT commands, the first file command opens it
+				Log.info("forcing obex mode");
+				device.obexOpenObexMode();
+			}
+			if (httpPort > 0) {
+				runHttpGateway(device);
+				return;
+			}
 			if (ui == null) {
 				ui = new InteractiveUserInterface();
 				ui.println("starting interactive mode, type 'exit' to exit, 'help' for help.");
 			}
 			try {
-				doCommandLoop(device, ui);
-			} catch (Exception e) {
-				e.printStackTrace();
+				if (ui instanceof DaemonUserInterface || ui instanceof TelnetUserInterface) {
+					serveClients(device, ui);
+				} else {
+					if (journalFile != null) {
+						journal = new CommandJournal(journalFile, resume);
+					}
+					doCommandLoop(device, ui);
+					if (journal != null) {
+						journal.finish();
+					}
+				}
+			} finally {
+				if (treeIndex.isBuilt()) {
+					treeIndex.save();
+				}
 			}
+		} finally {
 			Log.info("disconnecting");
 			device.disconnect();
-		} catch (Exception e) {
-			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Serves the HTTP API until POST /shutdown or until the process is
+	 * terminated. On termination a shutdown hook stops the gateway and
+	 * waits until the session is closed, so the device is not left in
+	 * data mode.
+	 */
+	private void runHttpGateway(Device device) throws Exception {
+		final HttpGateway gateway = new HttpGateway(device, treeIndex, httpBindAddress, httpPort);
+		Thread hook = new Thread("tc65sh-shutdown") {
+			public void run() {
+				gateway.stop();
+				try {
+					if (!finished.await(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+						Log.info("session not closed after " + SHUTDOWN_TIMEOUT_MILLIS + " ms");
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				Log.flush();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(hook);
+		gateway.run();
+		try {
+			Runtime.getRuntime().removeShutdownHook(hook);
+		} catch (IllegalStateException e) {
+			// the hook is running and waits for us
+		}
+	}
+
+	/**
+	 * Runs client commands until shutdown. A failing command is reported
+	 * to its client only, a daemon client loses its remaining commands.
+	 */
+	private void serveClients(Device device, UserInterface ui) {
+		while (true) {
+			try {
+				doCommandLoop(device, ui);
+				return;
+			} catch (Exception e) {
+				Log.debug(getClass(), "command failed", e);
+				ui.println("Error: " + e.getMessage());
+				if (ui instanceof DaemonUserInterface) {
+					((DaemonUserInterface) ui).failCommands();
+				}
+			}
 		}
 	}
 
@@ -125,121 +425,215 @@ public class Main {
 		while ((cmdline = ui.readCommand()) != null) {
 			cmdline = cmdline.trim();
 			ui.echoCommand(cmdline);
-			String tok[] = StringSplitter.split(cmdline);
-			if (cmdline.startsWith("#") || cmdline.startsWith("//")) {
-				// do nothing, it's a comment
-			} else if (cmdline.startsWith("AT") || cmdline.startsWith("at")) {
-				String response = device.executeAtCommand(cmdline);
-				ui.println(response);
-			} else if (tok[0].equals("cd")) {
-				// cd <directory>
-				if (tok.length > 1) {
-					if (FileUtils.isFileName(tok[1])) {
-						device.obexChangeDir(tok[1]);
-					} else {
-						ui.println("Error: directory must not be a path!");
-					}
-				} else {
-					ui.println("Error: no directory");
+			if (cmdline.length() == 0 || cmdline.startsWith("#") || cmdline.startsWith("//")) {
+				continue; // do nothing, it's a comment
+			}
+			if (journal != null && journal.isDone(cmdline)) {
+				ui.println("skipped, done before");
+				continue;
+			}
+			String name = getCommandName(cmdline);
+			long t0 = System.nanoTime();
+			boolean success = false;
+			try {
+				doCommand(device, ui, cmdline);
+				success = true;
+				if (journal != null) {
+					journal.commandDone(cmdline);
 				}
-			} else if (tok[0].equals("mkdir")) {
-				// mkdir <directory>
-				if (tok.length > 1) {
-					if (FileUtils.isFileName(tok[1])) {
-						device.obexMakeDir(tok[1]);
-					} else {
-						ui.println("Error: directory must not be a path!");
-					}
+			} finally {
+				Metrics.histogram("tc65sh_command_seconds", "Duration of shell commands", "command", name).recordSince(t0);
+				if (!success) {
+					Metrics.counter("tc65sh_command_failures_total", "Shell commands that failed", "command", name).increment();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The metrics label of a command line, "other" for unknown commands so
+	 * typos do not create new metrics.
+	 */
+	private static String getCommandName(String cmdline) {
+		if (CommandPlanner.isAtCommand(cmdline)) {
+			return "at";
+		}
+		String name = StringSplitter.split(cmdline)[0];
+		return COMMAND_NAMES.contains(name) ? name : "other";
+	}
+
+	private void doCommand(Device device, UserInterface ui, String cmdline) throws Exception {
+		String tok[] = StringSplitter.split(cmdline);
+		if (CommandPlanner.isAtCommand(cmdline)) {
+			String response = device.executeAtCommand(cmdline);
+			ui.println(response);
+		} else if (tok[0].equals("cd")) {
+			// cd <directory>
+			if (tok.length > 1) {
+				if (FileUtils.isFileName(tok[1])) {
+					device.obexChangeDir(tok[1]);
 				} else {
-					ui.println("Error: no directory");
+					ui.println("Error: directory must not be a path!");
 				}
-			} else if (tok[0].equals("ls") || tok[0].equals("dir")) {
-				// ls
-				List<FileInfo> listing = device.obexGetFolderListing();
-				printFolderListing(listing, ui);
-			} else if (tok[0].equals("rm") || tok[0].equals("del")) {
-				// rm <deviceFilename>
-				if (tok.length > 1) {
-					if (FileUtils.isFileName(tok[1])) {
-						device.obexDeleteFile(tok[1]);
-					} else {
-						ui.println("Error: deviceFilename must not be a path!");
-					}
+			} else {
+				ui.println("Error: no directory");
+			}
+		} else if (tok[0].equals("pwd")) {
+			// pwd
+			ui.println(device.getCurrentPath());
+		} else if (tok[0].equals("mkdir")) {
+			// mkdir <directory>
+			if (tok.length > 1) {
+				if (FileUtils.isFileName(tok[1])) {
+					device.obexMakeDir(tok[1]);
+					treeIndex.update(device.getCurrentPath(), new FileInfo(true, tok[1], -1, new Date()));
 				} else {
-					ui.println("Error: no deviceFilename");
+					ui.println("Error: directory must not be a path!");
 				}
-			} else if (tok[0].equals("put")) {
-				// put <localFilePath> <optional: deviceFilename>
-				if (tok.length > 1) {
-					FileHolder fileHolder = loadLocalFile(tok[1]);
-					if (tok.length > 2) {
-						fileHolder.fileInfo.name = tok[2];
-					} else {
-						fileHolder.fileInfo.name = FileUtils.extractFilename(tok[1]);
-					}
-					if (FileUtils.isFileName(fileHolder.fileInfo.name)) {
-						device.obexDeleteFile(fileHolder.fileInfo.name);
-						device.obexPutFile(fileHolder);
-					} else {
-						ui.println("Error: deviceFilename must not be a path!");
-					}
+			} else {
+				ui.println("Error: no directory");
+			}
+		} else if ((tok[0].equals("ls") || tok[0].equals("dir")) && tok.length > 1 && tok[1].equals("-R")) {
+			// ls -R
+			TreeIndex.Node folder = lookupIndexedFolder(device, ui);
+			if (folder != null) {
+				printTree(folder, device.getCurrentPath(), ui);
+			}
+		} else if (tok[0].equals("ls") || tok[0].equals("dir")) {
+			// ls
+			List<FileInfo> listing = device.obexGetFolderListing();
+			printFolderListing(listing, ui);
+		} else if (tok[0].equals("index")) {
+			// index <optional: -f>
+			boolean full = tok.length > 1 && tok[1].equals("-f");
+			int count = treeIndex.refresh(device, full);
+			treeIndex.save();
+			ui.println("listed " + count + " folders, " + treeIndex.getRoot().totalSize() + " bytes indexed");
+		} else if (tok[0].equals("find")) {
+			// find <glob>
+			if (tok.length > 1) {
+				TreeIndex.Node folder = lookupIndexedFolder(device, ui);
+				if (folder != null) {
+					findInTree(folder, device.getCurrentPath(), globToPattern(tok[1]), ui);
+				}
+			} else {
+				ui.println("Error: no pattern");
+			}
+		} else if (tok[0].equals("du")) {
+			// du
+			TreeIndex.Node folder = lookupIndexedFolder(device, ui);
+			if (folder != null) {
+				printDiskUsage(folder, device.getCurrentPath(), ui);
+			}
+		} else if (tok[0].equals("rm") || tok[0].equals("del")) {
+			// rm <deviceFilename>
+			if (tok.length > 1) {
+				if (FileUtils.isFileName(tok[1])) {
+					device.obexDeleteFile(tok[1]);
+					treeIndex.remove(device.getCurrentPath(), tok[1]);
 				} else {
-					ui.println("Error: no localFilePath");
+					ui.println("Error: deviceFilename must not be a path!");
 				}
-			} else if (tok[0].equals("get")) {
-				// get <deviceFilename> <optional: localFilePath>
-				if (tok.length > 1) {
-					if (FileUtils.isFileName(tok[1])) {
-						FileHolder fh = device.obexGetFile(tok[1]);
-						if (tok.length > 2) {
-							fh.fileInfo.name = tok[2];
-						} else {
-							fh.fileInfo.name = tok[1];
-						}
-						saveLocalFile(fh);
-					} else {
-						ui.println("Error: deviceFilename must not be a path!");
-					}
+			} else {
+				ui.println("Error: no deviceFilename");
+			}
+		} else if (tok[0].equals("put")) {
+			// put <localFilePath> <optional: deviceFilename>
+			// put - <deviceFilename> reads the content from stdin
+			if (tok.length > 1) {
+				String deviceFilename;
+				if (tok.length > 2) {
+					deviceFilename = tok[2];
+				} else if (STDIN_FILENAME.equals(tok[1])) {
+					deviceFilename = null;
 				} else {
+					deviceFilename = FileUtils.extractFilename(tok[1]);
+				}
+				if (deviceFilename == null) {
 					ui.println("Error: no deviceFilename");
+				} else if (FileUtils.isFileName(deviceFilename)) {
+					putLocalFile(device, tok[1], deviceFilename, ui);
+				} else {
+					ui.println("Error: deviceFilename must not be a path!");
 				}
-			} else if (tok[0].equals("getd")) {
-				// getd <deviceFilename> <optional: localFilePath>
-				if (tok.length > 1) {
-					if (FileUtils.isFileName(tok[1])) {
-						if (tok.length > 2) {
-							getDirectory(device, tok[1], tok[2]);
-						} else {
-							getDirectory(device, tok[1], tok[1]);
-						}
-					} else {
-						ui.println("Error: deviceFilename must not be a path!");
-					}
+			} else {
+				ui.println("Error: no localFilePath");
+			}
+		} else if (tok[0].equals("sync")) {
+			// sync <optional: -n> <optional: -d> <localDir> <optional: deviceDir>
+			boolean dryRun = false;
+			boolean deleteOrphans = false;
+			List<String> params = new ArrayList<String>();
+			for (int i = 1; i < tok.length; i++) {
+				if (tok[i].equals("-n")) {
+					dryRun = true;
+				} else if (tok[i].equals("-d")) {
+					deleteOrphans = true;
 				} else {
-					ui.println("Error: no deviceFilename");
+					params.add(tok[i]);
 				}
-			} else if (tok[0].equals("cat")) {
-				// cat <deviceFilename>
-				if (tok.length > 1) {
-					if (FileUtils.isFileName(tok[1])) {
-						FileHolder fh = device.obexGetFile(tok[1]);
-						String catString = new String(fh.content.getBuffer());
-						ui.println(catString);
+			}
+			if (params.isEmpty()) {
+				ui.println("Error: no localDir");
+			} else {
+				syncDirectory(device, new File(params.get(0)), params.size() > 1 ? params.get(1) : null, deleteOrphans, dryRun, ui);
+			}
+		} else if (tok[0].equals("get")) {
+			// get <deviceFilename> <optional: localFilePath>
+			if (tok.length > 1) {
+				if (FileUtils.isFileName(tok[1])) {
+					if (tok.length > 2) {
+						getFilename(device, tok[1], tok[2]);
 					} else {
-						ui.println("Error: deviceFilename must not be a path!");
+						getFilename(device, tok[1], tok[1]);
 					}
+				} else {
+					ui.println("Error: deviceFilename must not be a path!");
 				}
-			} else if (tok[0].equals("erasedisk")) {
-				// erasedisk
-				device.obexEraseDisk();
-			} else if (tok[0].equals("sleep")) {
-				// sleep <milliseconds>
-				if (tok.length > 1) {
-					long millis = Long.parseLong(tok[1]);
-					Thread.sleep(millis);
+			} else {
+				ui.println("Error: no deviceFilename");
+			}
+		} else if (tok[0].equals("getd")) {
+			// getd <optional: -f> <deviceFilename> <optional: localFilePath>
+			boolean full = tok.length > 1 && tok[1].equals("-f");
+			int first = full ? 2 : 1;
+			if (tok.length > first) {
+				if (FileUtils.isFileName(tok[first])) {
+					String localDirname = tok.length > first + 1 ? tok[first + 1] : tok[first];
+					getDirectory(device, tok[first], localDirname, full, ui);
+				} else {
+					ui.println("Error: deviceFilename must not be a path!");
 				}
-			} else if (tok[0].equals("help")) {
-				printHelp(ui);
+			} else {
+				ui.println("Error: no deviceFilename");
+			}
+		} else if (tok[0].equals("cat")) {
+			// cat <deviceFilename>
+			if (tok.length > 1) {
+				if (FileUtils.isFileName(tok[1])) {
+					UserInterfaceOutputStream out = new UserInterfaceOutputStream(ui);
+					device.obexGetFile(tok[1], out);
+					out.close();
+				} else {
+					ui.println("Error: deviceFilename must not be a path!");
+				}
+			}
+		} else if (tok[0].equals("erasedisk")) {
+			// erasedisk
+			device.obexEraseDisk();
+			treeIndex.clear();
+		} else if (tok[0].equals("sleep")) {
+			// sleep <milliseconds>
+			if (tok.length > 1) {
+				long millis = Long.parseLong(tok[1]);
+				Thread.sleep(millis);
+			}
+		} else if (tok[0].equals("help")) {
+			printHelp(ui);
+
+		} else if (tok[0].equals("stats")) {
+			for (String line : Metrics.toText()) {
+				ui.println(line);
 			}
 		}
 	}
@@ -250,64 +644,55 @@ public class Main {
 			localFilename = deviceFilename;
 		}
 
-		FileHolder fh = device.obexGetFile(deviceFilename);
-		fh.fileInfo.name = localFilename;
-
-		saveLocalFile(fh);
-	}
-
-	private void getDirectory(Device device, String deviceFilename, String localDirname) throws IOException {
-
-		List<FileInfo> listing = null;
+		File f = new File(localFilename);
+		FileOutputStream out = new FileOutputStream(f);
 		try {
-			device.obexChangeDir(deviceFilename);
-			listing = device.obexGetFolderListing();
-		} catch (Exception e) {
-			e.printStackTrace();
-			return;
+			device.obexGetFile(deviceFilename, out.getChannel());
+		} catch (IOException e) {
+			out.close();
+			f.delete();
+			throw e;
 		}
+		out.close();
+	}
 
-		File dir = new File(localDirname);
-		dir.mkdirs();
-
-		for (FileInfo info : listing) {
-			if (info.directory) {
-				continue;
-			}
-
-			String localFilename = localDirname + File.separator + info.name;
-
-			System.out.println("Copying " + info.name + " to " + localDirname);
-			getFilename(device, info.name, localFilename);
-		}
-
-		for (FileInfo info : listing) {
-			if (!info.directory) {
-				continue;
-			}
-
-			String subDirname = info.name;
-			String localSubDirname = localDirname + File.separatorChar + subDirname;
-			getDirectory(device, subDirname, localSubDirname);
+	private void getDirectory(Device device, String deviceFilename, String localDirname, boolean full, UserInterface ui) throws IOException {
+		DirectoryMirror mirror = new DirectoryMirror(device, new File(localDirname), full);
+		try {
+			mirror.mirror(deviceFilename);
+		} finally {
+			// also after a failure, what was copied stays valid
+			ui.println(mirror.getDownloadedCount() + " files (" + mirror.getDownloadedBytes() + " bytes) copied, " + mirror.getSkippedCount() + " up to date");
 		}
-
-		device.obexChangeDir("..");
 	}
 
 	private void printHelp(UserInterface ui) {
 		ui.println("available commands:");
 		ui.println("  at<command>, e.g. at^scfg? shows current device settings");
 		ui.println("  cd <directory>");
+		ui.println("  pwd");
 		ui.println("  mkdir <directory>");
 		ui.println("  dir (or ls)");
+		ui.println("  ls -R (lists all subfolders, from the tree index)");
+		ui.println("  find <pattern> (* and ? allowed, from the tree index)");
+		ui.println("  du (folder sizes, from the tree index)");
+		ui.println("  index <optional: -f> (updates the tree index, -f rebuilds it)");
 		ui.println("  put <localFilepath> <optional: deviceFilename>");
+		ui.println("  put - <deviceFilename> (reads the content from stdin, batch mode only)");
 		ui.println("  get <deviceFilename> <optional: localFilepath>");
+		ui.println("  getd <optional: -f> <deviceDirectory> <optional: localDirectory>");
+		ui.println("       (copies new and changed files, -f copies all)");
+		ui.println("  sync <optional: -n> <optional: -d> <localDir> <optional: deviceDir>");
+		ui.println("       (uploads new and changed files, -n only shows the plan,");
+		ui.println("        -d deletes device files missing locally)");
 		ui.println("  cat <deviceFilename>");
 		ui.println("  rm (or del) <deviceFilename>");
 		ui.println("  erasedisk (Attention!! Clears all content!!)");
 		ui.println("  sleep <milliseconds>");
+		ui.println("  stats (command timings and transfer counters)");
 		ui.println("  help");
 		ui.println("  exit");
+		ui.println("  shutdown (telnet and daemon mode: disconnect and end TC65SH)");
 	}
 
 	private void printUsage() {
@@ -340,6 +725,11 @@ public class Main {
 		System.out.println("  -d --debug");
 		System.out.println("        Puts out messages useful for debugging");
 		System.out.println("");
+		System.out.println("  -lf --log-file <file>");
+		System.out.println("        Writes all messages to the file, debug messages only");
+		System.out.println("        there. The file is rotated every " + Log.DEFAULT_LOG_FILE_SIZE / (1024 * 1024) + " MB,");
+		System.out.println("        " + Log.DEFAULT_LOG_FILE_COUNT + " files are kept");
+		System.out.println("");
 		System.out.println("  -at --at-timeout");
 		System.out.println("        Sets the timeout for AT commands in milliseconds");
 		System.out.println("        Default is " + Device.DEFAULT_AT_COMMAND_RESPONSE_TIMEOUT + " ms");
@@ -348,13 +738,95 @@ public class Main {
 		System.out.println("        Sets the timeout for OBEX commands in milliseconds");
 		System.out.println("        Default is " + Device.DEFAULT_OBEX_RESPONSE_TIMEOUT + " ms");
 		System.out.println("");
+		System.out.println("  -mp --max-packet <bytes>");
+		System.out.println("        Sets the max OBEX packet length, for devices that");
+		System.out.println("        report a wrong value (" + Device.MIN_OBEX_MAX_PACKET_LENGTH + ".." + Device.MAX_OBEX_MAX_PACKET_LENGTH + ")");
+		System.out.println("        Default is the length reported by the device");
+		System.out.println("");
+		System.out.println("  -srm --single-response-mode");
+		System.out.println("        Asks the device for OBEX single response mode, so");
+		System.out.println("        transfers do not wait for every packet to be answered.");
+		System.out.println("        Falls back to normal mode if the device does not agree");
+		System.out.println("");
+		System.out.println("  -e --emulator");
+		System.out.println("        Talks to a built-in TC65 emulator with an in-memory");
+		System.out.println("        file system instead of a serial port. The emulated");
+		System.out.println("        line runs at the given baudrate");
+		System.out.println("");
+		System.out.println("  -el --emulator-latency <microseconds>");
+		System.out.println("        Additional emulated latency per byte. Default is 0");
+		System.out.println("");
+		System.out.println("  -emp --emulator-max-packet <bytes>");
+		System.out.println("        Max OBEX packet length of the emulator");
+		System.out.println("        Default is " + Device.MAX_OBEX_MAX_PACKET_LENGTH);
+		System.out.println("");
 		System.out.println("  -q --quiet");
 		System.out.println("        Say (almost) nothing");
 		System.out.println("");
+		System.out.println("  -ix --index-dir <directory>");
+		System.out.println("        Where the tree index of each device is stored");
+		System.out.println("        Default is " + indexDir);
+		System.out.println("");
+		System.out.println("  -ra --reorder-at");
+		System.out.println("        Runs AT commands of -f or -c before the file commands");
+		System.out.println("        around them, so the device switches between AT and");
+		System.out.println("        OBEX mode less often. Use only if the AT commands do");
+		System.out.println("        not depend on the file commands. sleep and commands");
+		System.out.println("        like ATD, ATZ or AT+CFUN are never moved");
+		System.out.println("");
+		System.out.println("  -mo --metrics-out <file>");
+		System.out.println("        Writes timings and counters to the file on exit, as");
+		System.out.println("        JSON if the name ends with .json, in the Prometheus");
+		System.out.println("        text format otherwise");
+		System.out.println("");
+		System.out.println("  -jfr --flight-recording <file>");
+		System.out.println("        Records JVM activity and serial, OBEX and AT events");
+		System.out.println("        with the Java Flight Recorder to the file, to be");
+		System.out.println("        opened with JDK Mission Control or 'jfr print'.");
+		System.out.println("        Needs Java 11 or later");
+		System.out.println("");
+		System.out.println("  -cap --capture <file>");
+		System.out.println("        Records all bytes sent to and received from the");
+		System.out.println("        device with timestamps to a binary capture file");
+		System.out.println("");
+		System.out.println("  -rp --replay <file>");
+		System.out.println("        Plays the device side of a capture file back instead");
+		System.out.println("        of talking to a device. Run the same commands as in");
+		System.out.println("        the captured session");
+		System.out.println("");
+		System.out.println("  -rs --replay-speed <factor>");
+		System.out.println("        Speed of the replay, 1 is the original timing, 10 ten");
+		System.out.println("        times faster, 0 without delays. Default is 1");
+		System.out.println("");
+		System.out.println("  -fl --fleet <ports>");
+		System.out.println("        Runs the commands of -f or -c on many devices at once.");
+		System.out.println("        Ports are separated by comma and may contain * and ?,");
+		System.out.println("        e.g. /dev/ttyUSB*. ${port} in a command is replaced");
+		System.out.println("        by the port name. Prints a summary at the end");
+		System.out.println("");
+		System.out.println("  -fj --fleet-jobs <count>");
+		System.out.println("        Max number of devices served at the same time");
+		System.out.println("        Default is " + FleetRunner.DEFAULT_JOBS);
+		System.out.println("");
+		System.out.println("  -fo --fleet-out <directory>");
+		System.out.println("        Where the log of each device and the summary go");
+		System.out.println("        Default is " + FleetRunner.DEFAULT_OUT_DIR);
+		System.out.println("");
 		System.out.println("  -f --file <commandFile>");
 		System.out.println("        Do not enter interactive mode but read commands");
 		System.out.println("        from a command file instead");
 		System.out.println("");
+		System.out.println("  -vf --verify <readBackRate>");
+		System.out.println("        Verifies uploads by put and sync: checksums the content");
+		System.out.println("        while sending and checks size and date in the listing.");
+		System.out.println("        A share of readBackRate (0..1) of the files is read back");
+		System.out.println("        and compared, files with a wrong size always");
+		System.out.println("");
+		System.out.println("  -re --resume");
+		System.out.println("        Commands of a command file that finished are listed");
+		System.out.println("        in <commandFile>.journal. With --resume those are");
+		System.out.println("        skipped, unless the local file of a put changed");
+		System.out.println("");
 		System.out.println("  -c --commands <commands>");
 		System.out.println("        Do not enter interactive mode but execute the given");
 		System.out.println("        commands. Commands are separated by semikolon.");
@@ -362,7 +834,27 @@ public class Main {
 		System.out.println("");
 		System.out.println("  -t --telnet <telnetPort>");
 		System.out.println("        Do not enter interactive mode but read commands");
-		System.out.println("        from a telnet connection (a TCP/IP socket).");
+		System.out.println("        from telnet connections (TCP/IP sockets). Many clients");
+		System.out.println("        may connect, their commands run one after the other.");
+		System.out.println("        'exit' closes a connection, 'shutdown' ends TC65SH");
+		System.out.println("");
+		System.out.println("  -D --daemon <port>");
+		System.out.println("        Keeps the device connected and runs the commands of");
+		System.out.println("        clients on a localhost port, until one sends 'shutdown'");
+		System.out.println("");
+		System.out.println("  -H --http <port>");
+		System.out.println("        Do not enter interactive mode but serve an HTTP API:");
+		System.out.println("        GET /ls/<folder>, GET|PUT|DELETE /files/<path>,");
+		System.out.println("        POST /at with the AT command as body. POST /shutdown or");
+		System.out.println("        terminating the process disconnects the device cleanly");
+		System.out.println("");
+		System.out.println("  -Hb --http-bind <address>");
+		System.out.println("        Address the HTTP API listens on. Default is the loopback");
+		System.out.println("        address, the API has no authentication");
+		System.out.println("");
+		System.out.println("  -cl --client <port> -c <commands>");
+		System.out.println("        Runs the commands on the daemon listening on port");
+		System.out.println("        and prints its output");
 		System.out.println("");
 		System.out.println("  -h --help");
 		System.out.println("        shows this help screen");
@@ -388,6 +880,112 @@ public class Main {
 		}
 	}
 
+	private void syncDirectory(Device device, File localDir, String deviceDir, boolean deleteOrphans, boolean dryRun, final UserInterface ui) throws IOException {
+		DirectorySync sync = new DirectorySync(device, localDir, deviceDir, deleteOrphans);
+		sync.setVerifier(verifier);
+		List<DirectorySync.Action> actions = sync.plan();
+		long bytes = 0;
+		for (DirectorySync.Action action : actions) {
+			ui.println("  " + action);
+			if (action.type == DirectorySync.ACTION_PUT) {
+				bytes += action.localFile.length();
+			}
+		}
+		ui.println(actions.size() + " actions, " + bytes + " bytes to upload, " + sync.getUnchangedCount() + " files unchanged");
+		if (dryRun) {
+			return;
+		}
+		sync.execute(new DirectorySync.ActionListener() {
+			public void done(DirectorySync.Action action) {
+				if (action.type == DirectorySync.ACTION_MKDIR) {
+					treeIndex.update(action.folderPath, new FileInfo(true, action.name, -1, new Date()));
+				} else if (action.type == DirectorySync.ACTION_DELETE) {
+					treeIndex.remove(action.folderPath, action.name);
+				} else if (action.uploaded != null) {
+					// also the manifest, which has no local file
+					if (action.verification != null) {
+						ui.println("  " + action.verification);
+					}
+					treeIndex.update(action.folderPath, action.uploaded);
+				}
+			}
+		});
+		ui.println("sync done");
+	}
+
+	/**
+	 * The index node of the current folder. The index is built on first
+	 * use, later it answers without talking to the device.
+	 */
+	private TreeIndex.Node lookupIndexedFolder(Device device, UserInterface ui) throws IOException {
+		if (!treeIndex.isBuilt()) {
+			ui.println("building tree index");
+			treeIndex.refresh(device, true);
+			treeIndex.save();
+		}
+		TreeIndex.Node folder = treeIndex.lookup(device.getCurrentPath());
+		if (folder == null || !folder.listed) {
+			ui.println("Error: " + device.getCurrentPath() + " is not indexed, run 'index' first");
+			return null;
+		}
+		return folder;
+	}
+
+	private void printTree(TreeIndex.Node folder, String path, UserInterface ui) {
+		ui.println(path + ":");
+		List<FileInfo> listing = new ArrayList<FileInfo>();
+		for (TreeIndex.Node child : folder.children.values()) {
+			listing.add(child.toFileInfo());
+		}
+		Collections.sort(listing);
+		printFolderListing(listing, ui);
+		for (TreeIndex.Node child : folder.children.values()) {
+			if (child.directory) {
+				ui.println("");
+				printTree(child, TreeIndex.childPath(path, child.name), ui);
+			}
+		}
+	}
+
+	private void findInTree(TreeIndex.Node folder, String path, Pattern pattern, UserInterface ui) {
+		for (TreeIndex.Node child : folder.children.values()) {
+			String childPath = TreeIndex.childPath(path, child.name);
+			if (pattern.matcher(child.name).matches()) {
+				ui.println(childPath);
+			}
+			if (child.directory) {
+				findInTree(child, childPath, pattern, ui);
+			}
+		}
+	}
+
+	private long printDiskUsage(TreeIndex.Node folder, String path, UserInterface ui) {
+		long sum = 0;
+		for (TreeIndex.Node child : folder.children.values()) {
+			if (child.directory) {
+				sum += printDiskUsage(child, TreeIndex.childPath(path, child.name), ui);
+			} else if (child.filesize > 0) {
+				sum += child.filesize;
+			}
+		}
+		ui.println(pad10("" + sum) + "   " + path);
+		return sum;
+	}
+
+	private Pattern globToPattern(String glob) {
+		StringBuilder sb = new StringBuilder();
+		for (char c : glob.toCharArray()) {
+			if (c == '*') {
+				sb.append(".*");
+			} else if (c == '?') {
+				sb.append('.');
+			} else {
+				sb.append(Pattern.quote("" + c));
+			}
+		}
+		return Pattern.compile(sb.toString(), Pattern.CASE_INSENSITIVE);
+	}
+
 	private String pad10(String s) {
 		while (s.length() < 10) {
 			s = " " + s;
@@ -395,23 +993,35 @@ public class Main {
 		return s;
 	}
 
-	private FileHolder loadLocalFile(String filepath) throws IOException {
-		File f = new File(filepath);
+	private void putLocalFile(Device device, String localFilePath, String deviceFilename, UserInterface ui) throws IOException {
+		if (STDIN_FILENAME.equals(localFilePath)) {
+			FileInfo fi = new FileInfo(false, deviceFilename, -1, new Date());
+			long count;
+			if (verifier != null) {
+				UploadVerifier.Result result = verifier.put(fi, Channels.newChannel(System.in));
+				ui.println(result.report);
+				count = result.count;
+			} else {
+				count = device.obexPutFile(fi, Channels.newChannel(System.in));
+			}
+			treeIndex.update(device.getCurrentPath(), new FileInfo(false, deviceFilename, (int) count, fi.date));
+			return;
+		}
+		File f = new File(localFilePath);
 		FileInputStream in = new FileInputStream(f);
-		byte[] buf = new byte[(int) f.length()];
-		in.read(buf);
-		in.close();
-		ByteArray content = new ByteArray(buf);
-		FileInfo fi = new FileInfo(false, f.getName(), (int) f.length(), new Date(f.lastModified()));
-		FileHolder fh = new FileHolder(fi, content);
-		return fh;
-	}
-
-	private void saveLocalFile(FileHolder fileHolder) throws IOException {
-		File f = new File(fileHolder.fileInfo.name);
-		FileOutputStream out = new FileOutputStream(f);
-		out.write(fileHolder.content.getBuffer());
-		out.close();
+		try {
+			FileChannel channel = in.getChannel();
+			FileInfo fi = new FileInfo(false, deviceFilename, (int) channel.size(), new Date(f.lastModified()));
+			if (verifier != null) {
+				ui.println(verifier.put(fi, channel).report);
+			} else {
+				MappedByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				device.obexPutFile(fi, content);
+			}
+			treeIndex.update(device.getCurrentPath(), fi);
+		} finally {
+			in.close();
+		}
 	}
 
 }
@@ -0,0 +1,218 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.tc65sh.device.Device;
+import org.tc65sh.device.FileInfo;
+import org.tc65sh.util.Metrics;
+
+/**
+ * Uploads files and checks that they arrived intact. The CRC32 and
+ * SHA-256 of the content are computed while it is sent. Afterwards the
+ * size and date are compared with a fresh listing of the folder. The file
+ * is read back and its checksums compared only for a share of the uploads
+ * given by readBackRate, spread evenly starting with the first one, or if
+ * the listed size is wrong.
+ */
+public class UploadVerifier {
+
+	private static final Metrics.Histogram VERIFY_SECONDS = Metrics.histogram("tc65sh_verify_seconds", "Time to verify an upload after it was sent");
+	private static final Metrics.Counter READ_BACKS = Metrics.counter("tc65sh_verify_read_backs_total", "Uploads read back for verification");
+	private static final Metrics.Counter FAILURES = Metrics.counter("tc65sh_verify_failures_total", "Uploads that failed verification");
+
+	/** Device dates have a resolution of seconds, FAT of two seconds */
+	private static final long MTIME_TOLERANCE_MILLIS = 2000;
+
+	public static class Result {
+
+		public final long count;
+		public final boolean readBack;
+		public final String report;
+
+		Result(long count, boolean readBack, String report) {
+			this.count = count;
+			this.readBack = readBack;
+			this.report = report;
+		}
+
+	}
+
+	/**
+	 * CRC32 and SHA-256 of the bytes passing a channel.
+	 */
+	private static class Checksums {
+
+		private final CRC32 crc = new CRC32();
+		private final MessageDigest sha;
+		private String shaHex = null;
+
+		Checksums() {
+			try {
+				sha = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		void update(ByteBuffer buffer, int start) {
+			ByteBuffer part = buffer.duplicate();
+			part.limit(buffer.position());
+			part.position(start);
+			crc.update(part.duplicate());
+			sha.update(part);
+		}
+
+		String getCrc32() {
+			return String.format("%08x", crc.getValue());
+		}
+
+		String getSha256() {
+			if ( shaHex == null ) {
+				StringBuilder sb = new StringBuilder();
+				for( byte b : sha.digest() ) {
+					sb.append(String.format("%02x", b & 0xFF));
+				}
+				shaHex = sb.toString();
+			}
+			return shaHex;
+		}
+
+		ReadableByteChannel wrap(final ReadableByteChannel in) {
+			return new ReadableByteChannel() {
+				public int read(ByteBuffer dst) throws IOException {
+					int start = dst.position();
+					int n = in.read(dst);
+					if ( n > 0 ) {
+						update(dst, start);
+					}
+					return n;
+				}
+				public boolean isOpen() {
+					return in.isOpen();
+				}
+				public void close() throws IOException {
+					in.close();
+				}
+			};
+		}
+
+		WritableByteChannel sink() {
+			return new WritableByteChannel() {
+				public int write(ByteBuffer src) {
+					int n = src.remaining();
+					int start = src.position();
+					src.position(src.limit());
+					update(src, start);
+					return n;
+				}
+				public boolean isOpen() {
+					return true;
+				}
+				public void close() {
+				}
+			};
+		}
+
+	}
+
+	private final Device device;
+	private final double readBackRate;
+	private int uploadCount = 0;
+
+	/**
+	 * @param readBackRate share of the uploads that are read back, 0 for
+	 * none, 1 for all
+	 */
+	public UploadVerifier(Device device, double readBackRate) {
+		if ( readBackRate < 0 || readBackRate > 1 ) {
+			throw new RuntimeException("invalid read-back rate " + readBackRate + ", must be between 0 and 1");
+		}
+		this.device = device;
+		this.readBackRate = readBackRate;
+	}
+
+	/**
+	 * Uploads everything readable from in to the current device folder and
+	 * verifies it, throws an IOException if the file on the device differs.
+	 */
+	public Result put(FileInfo fileInfo, ReadableByteChannel in) throws IOException {
+		Checksums sent = new Checksums();
+		long t1 = System.nanoTime();
+		long count = device.obexPutFile(fileInfo, sent.wrap(in));
+		long t2 = System.nanoTime();
+		uploadCount++;
+		boolean readBack = Math.ceil(uploadCount * readBackRate) > Math.ceil((uploadCount - 1) * readBackRate);
+		StringBuilder report = new StringBuilder();
+		report.append("verified ").append(fileInfo.name).append(": ").append(count).append(" bytes");
+		report.append(", crc32 ").append(sent.getCrc32()).append(", sha-256 ").append(sent.getSha256());
+
+		FileInfo listed = find(device.obexGetFolderListing(false), fileInfo.name);
+		if ( listed == null ) {
+			throw fail(fileInfo.name, "missing from the folder listing");
+		}
+		if ( listed.filesize != count ) {
+			report.append(", listed size ").append(listed.filesize);
+			readBack = true;
+		} else {
+			report.append(", size ok");
+		}
+		if ( fileInfo.date != null && listed.date != null && Math.abs(listed.date.getTime() - fileInfo.date.getTime()) > MTIME_TOLERANCE_MILLIS ) {
+			report.append(", date differs");
+		}
+
+		if ( readBack ) {
+			READ_BACKS.increment();
+			Checksums received = new Checksums();
+			long receivedCount = device.obexGetFile(fileInfo.name, received.sink());
+			if ( receivedCount != count ) {
+				throw fail(fileInfo.name, receivedCount + " of " + count + " bytes read back");
+			}
+			if ( ! received.getSha256().equals(sent.getSha256()) ) {
+				throw fail(fileInfo.name, "content read back differs, crc32 " + received.getCrc32());
+			}
+			report.append(", read back ok");
+		} else {
+			report.append(", not read back");
+		}
+
+		long t3 = System.nanoTime();
+		VERIFY_SECONDS.record(t3 - t2);
+		report.append(String.format(", %d ms verifying, %.0f%% of the upload time", (t3 - t2) / 1000000, 100.0 * (t3 - t2) / Math.max(1, t2 - t1)));
+		return new Result(count, readBack, report.toString());
+	}
+
+	private IOException fail(String name, String problem) {
+		FAILURES.increment();
+		return new IOException("verification of " + name + " failed: " + problem);
+	}
+
+	private static FileInfo find(List<FileInfo> listing, String name) {
+		for( FileInfo fi : listing ) {
+			if ( fi.name.equalsIgnoreCase(name) ) return fi;
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,84 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.device;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Records the traffic of another transport to a WireCapture.
+ */
+public class CaptureTransport implements Transport {
+
+	private final Transport transport;
+	private final WireCapture capture;
+	private final InputStream in;
+	private final OutputStream out;
+
+	public CaptureTransport(Transport transport, WireCapture capture) throws IOException {
+		this.transport = transport;
+		this.capture = capture;
+		in = new FilterInputStream(transport.getInputStream()) {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+			}
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if ( n > 0 ) {
+					CaptureTransport.this.capture.record(WireCapture.FROM_DEVICE, b, off, n);
+				}
+				return n;
+			}
+		};
+		out = new FilterOutputStream(transport.getOutputStream()) {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				CaptureTransport.this.capture.record(WireCapture.TO_DEVICE, b, off, len);
+				super.out.write(b, off, len);
+			}
+		};
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			transport.close();
+		} finally {
+			capture.close();
+		}
+	}
+
+}
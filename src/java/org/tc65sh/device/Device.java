@@ -15,75 +15,90 @@
 // 
 package org.tc65sh.device;
 
-import gnu.io.CommPort;
-import gnu.io.CommPortIdentifier;
-import gnu.io.SerialPort;
-
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import org.tc65sh.util.ByteArray;
 import org.tc65sh.util.Log;
+import org.tc65sh.util.Metrics;
 
 public class Device {
 	
-	public static final long DEFAULT_SLEEP_MILLIS = 10;
 	public static final long DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT = 5000;
 	public static final long DEFAULT_AT_COMMAND_RESPONSE_TIMEOUT = 15000;
 	public static final long DEFAULT_OBEX_RESPONSE_TIMEOUT = 5000;
 	public static final long DEFAULT_ERASE_DISK_TIMEOUT = 20000;
+	public static final int DEFAULT_OBEX_MAX_PACKET_LENGTH = 512;
+	public static final int MIN_OBEX_MAX_PACKET_LENGTH = 255;
+	public static final int MAX_OBEX_MAX_PACKET_LENGTH = 0xffff;
 	
 	public static final char FLOWCONTROL_NONE = 'n';
 	public static final char FLOWCONTROL_RTSCTS = 'r';
 	public static final char FLOWCONTROL_XONXOFF = 'x';
 	
-	private SerialPort serialPort;
+	private static final Metrics.Counter BYTES_SENT = Metrics.counter("tc65sh_bytes_sent_total", "Bytes written to the device");
+	private static final Metrics.Counter BYTES_RECEIVED = Metrics.counter("tc65sh_bytes_received_total", "Bytes read from the device");
+	private static final Metrics.Histogram OBEX_RESPONSE_SECONDS = Metrics.histogram("tc65sh_obex_response_seconds", "Time to receive an OBEX response");
+	private static final Metrics.Counter OBEX_TIMEOUTS = Metrics.counter("tc65sh_obex_timeouts_total", "OBEX responses that timed out");
+	private static final Metrics.Histogram AT_RESPONSE_SECONDS = Metrics.histogram("tc65sh_at_response_seconds", "Time to receive an AT response with OK");
+	private static final Metrics.Counter AT_TIMEOUTS = Metrics.counter("tc65sh_at_timeouts_total", "AT responses without OK in time");
+	private static final Metrics.Histogram OBEX_OPEN_SECONDS = Metrics.histogram("tc65sh_obex_open_seconds", "Time to switch from AT to OBEX mode");
+	private static final Metrics.Histogram OBEX_CLOSE_SECONDS = Metrics.histogram("tc65sh_obex_close_seconds", "Time to switch from OBEX to AT mode");
+	private static final Metrics.Counter ESCAPE_RETRIES = Metrics.counter("tc65sh_escape_retries_total", "+++ escapes repeated because no OK was received");
+	private static final Metrics.Gauge OBEX_SESSIONS = Metrics.gauge("tc65sh_obex_sessions", "Devices currently in OBEX mode");
+	
+	private Transport transport;
 	private InputStream serialIn;
 	private OutputStream serialOut;
+	private SerialReceiver receiver;
+	private ByteArray unread = new ByteArray();
+	private ObexFrameDecoder decoder = new ObexFrameDecoder();
 	private boolean inObexMode = false;
+	private int peerMaxPacketLength = -1;
+	private int maxPacketLengthOverride = -1;
+	private boolean singleResponseMode = false;
+	private List<String> currentFolders = new ArrayList<String>();
+	private FolderListingCache listingCache = new FolderListingCache();
+	private String identity = null;
 
 	public void connect(String portname, int baudrate, char flowControl) throws Exception {
 		Log.debug(this.getClass(), "connecting device "+portname+", "+baudrate+" baud");
-        boolean isCommonPortname = portname.contains("ttyS") || portname.contains("COM");
-		if ( ! isCommonPortname ) {
-            System.setProperty("gnu.io.rxtx.SerialPorts", portname);
-        }
-		System.setProperty("gnu.io.rxtx.NoVersionOutput", "true");
-		CommPortIdentifier commPortIdentifier = CommPortIdentifier.getPortIdentifier(portname);
-		CommPort commPort = commPortIdentifier.open("tc65sh", 2000);
-		serialPort = (SerialPort) commPort;
-		serialPort.setSerialPortParams(baudrate, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
-		serialPort.enableReceiveTimeout(2000);
-		if ( flowControl == FLOWCONTROL_NONE ) {
-			serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
-		} else if ( flowControl == FLOWCONTROL_RTSCTS) {
-			serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_RTSCTS_OUT | SerialPort.FLOWCONTROL_RTSCTS_IN);
-		} else if ( flowControl == FLOWCONTROL_XONXOFF) {
-			serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_XONXOFF_OUT | SerialPort.FLOWCONTROL_XONXOFF_IN);
-		} else {
-			throw new RuntimeException("invalid flowControl "+flowControl);
-		}
-		serialIn = serialPort.getInputStream();
-		serialOut = serialPort.getOutputStream();
+		connect(new SerialTransport(portname, baudrate, flowControl));
+	}
+	
+	public void connect(Transport transport) throws IOException {
+		this.transport = transport;
+		serialIn = transport.getInputStream();
+		serialOut = transport.getOutputStream();
+		receiver = new SerialReceiver(serialIn);
+		receiver.start();
 	}
 	
 	public void initDevice() throws IOException {
 		Log.debug(this.getClass(), "initializing device connection");
-		sendByteArray(new ByteArray("AT\r","ISO-8859-1"));
-		waitForATResponseWithOK(DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
-		sendByteArray(new ByteArray("ATE\r","ISO-8859-1"));
-		waitForATResponseWithOK(DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
-		sendByteArray(new ByteArray("AT\r","ISO-8859-1"));
-		waitForATResponseWithOK(DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
-		sendByteArray(new ByteArray("AT\r","ISO-8859-1"));
-		waitForATResponseWithOK(DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
-		sendByteArray(new ByteArray("ATI\r","ISO-8859-1"));
-		ByteArray response = waitForATResponseWithOK(DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
+		sendAtCommand("AT", DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
+		sendAtCommand("ATE", DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
+		sendAtCommand("AT", DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
+		sendAtCommand("AT", DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
+		ByteArray response = sendAtCommand("ATI", DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
 		Log.debug(this.getClass(), "" + response.toPrintableString());
+		identity = parseIdentity(response.toString("ISO-8859-1"));
+	}
+
+	/**
+	 * Manufacturer, model and revision as answered to ATI by initDevice,
+	 * joined into one line. Null before initDevice.
+	 */
+	public String getIdentity() {
+		return identity;
 	}
 	
 	public void waitForSysstart(long timeout) throws IOException {
@@ -92,13 +107,11 @@ public class Device {
 		long t1 = System.currentTimeMillis();
 		ByteArray byteArray = new ByteArray();
 		while( ! foundSysstart ) {
-			int readCount = receiveIntoByteArray(byteArray);
+			int readCount = receiveIntoByteArray(byteArray, timeout - (System.currentTimeMillis() - t1));
 			if ( readCount > 0 ) {
 				if ( byteArray.toPrintableString().contains("^SYSSTART") ) {
 					foundSysstart = true;
 				}
-			} else {
-				sleep(100);
 			}
 			long runtime = System.currentTimeMillis() - t1;
 			if ( runtime > timeout ) {
@@ -114,79 +127,106 @@ public class Device {
 		}
 		Log.debug(this.getClass(), "disconnecting device");
 		
-		serialIn.close();
-		serialOut.close();
-		serialPort.close();
+		receiver.stop();
+		transport.close();
 		
+		receiver = null;
+		currentFolders.clear();
+		listingCache.clear();
 		serialIn = null;
 		serialOut = null;
-		serialPort = null;
+		transport = null;
 	}
 
 	public void obexOpenObexMode() throws IOException {
 		openObexMode();
 	}
 
+	/**
+	 * Uses the given max packet length instead of the one reported by the
+	 * device, for devices that misreport it. -1 restores the default.
+	 */
+	public void setObexMaxPacketLength(int maxPacketLength) {
+		if ( maxPacketLength != -1 && (maxPacketLength < MIN_OBEX_MAX_PACKET_LENGTH || maxPacketLength > MAX_OBEX_MAX_PACKET_LENGTH) ) {
+			throw new RuntimeException("invalid obex max packet length "+maxPacketLength);
+		}
+		maxPacketLengthOverride = maxPacketLength;
+	}
+
+	/**
+	 * Asks the device for OBEX single response mode on each PUT and GET.
+	 * If the device confirms, PUT packets are streamed without waiting for
+	 * each CONTINUE and GET bodies arrive without a request per packet.
+	 * Otherwise every packet is acknowledged as usual.
+	 */
+	public void setSingleResponseMode(boolean singleResponseMode) {
+		this.singleResponseMode = singleResponseMode;
+	}
+
+	/**
+	 * Max length of an OBEX packet sent to the device: the override if set,
+	 * else the length the device reported in its CONNECT response, else
+	 * DEFAULT_OBEX_MAX_PACKET_LENGTH.
+	 */
+	public int getObexMaxPacketLength() {
+		if ( maxPacketLengthOverride > 0 ) return maxPacketLengthOverride;
+		if ( peerMaxPacketLength >= MIN_OBEX_MAX_PACKET_LENGTH ) return peerMaxPacketLength;
+		return DEFAULT_OBEX_MAX_PACKET_LENGTH;
+	}
+
+	/**
+	 * Path of the current folder on the device, e.g. "a:/data/logs".
+	 */
+	public String getCurrentPath() {
+		StringBuilder sb = new StringBuilder("a:");
+		for( String folder : currentFolders ) {
+			sb.append('/').append(folder);
+		}
+		if ( currentFolders.isEmpty() ) {
+			sb.append('/');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Listing of the current folder. It is fetched from the device once
+	 * per folder and session, later changes made through this Device are
+	 * applied to the cached copy.
+	 */
 	public List<FileInfo> obexGetFolderListing() throws IOException {
+		return obexGetFolderListing(true);
+	}
+
+	/**
+	 * With useCache false the listing is fetched from the device in any
+	 * case, e.g. to see what an upload really left there.
+	 */
+	public List<FileInfo> obexGetFolderListing(boolean useCache) throws IOException {
 		if ( ! inObexMode ) {
 			openObexMode();
 		}
+		List<FileInfo> cached = useCache ? listingCache.get(getCurrentPath()) : null;
+		if ( cached != null ) {
+			Log.debug(this.getClass(), "using cached listing of "+getCurrentPath());
+			return cached;
+		}
 		String typeUid = "x-obex/folder-listing";
 		ByteArray typeHeader = new ByteArray();
 		typeHeader.append(Obex.HEADER_TYPE);
 		typeHeader.append(Obex.shortToBytes(3+typeUid.length()));
 		typeHeader.append(typeUid, "ISO-8859-1");
+		appendSrmHeader(typeHeader);
 		ByteArray req = new ByteArray();
 		req.append(Obex.REQUEST_GET | Obex.REQUEST_FINAL);
 		req.append(Obex.shortToBytes(3+typeHeader.length()));
 		req.append(typeHeader);
-		sendByteArray(req);
+		sendObexRequest(req);
 		ByteArray body = receiveBodyToEnd();
-		Log.debug(this.getClass(), new String(body.getBuffer(), "ISO-8859-1"));
-		String xml = new String(body.getBuffer(), "ISO-8859-1");
-		String[] lines = xml.split("\n"); 
-		ArrayList<FileInfo> fileInfos = new ArrayList<FileInfo>(); 
-		for( String line : lines ) {
-			line = line.trim();
-			FileInfo fi = parseFolderListingLine(line);
-			if ( fi != null ) {
-				fileInfos.add(fi);
-			}
-		}
-		Collections.sort(fileInfos);
-		return fileInfos;
-	}
-
-
-	private FileInfo parseFolderListingLine(String line) {
-		FileInfo result = null;
-		if ( line.startsWith("<file ") ) {
-			result = new FileInfo(false,null,-1,null);
-		} else if ( line.startsWith("<folder ") ) {
-			result = new FileInfo(true,null,-1,null);
-		}		
-		if ( result != null ) {
-			result.name = extractXmlTagValue(line, "name");
-			String xmldate = extractXmlTagValue(line, "modified");
-			if ( xmldate != null ) {
-				result.date = Obex.decodeXmlDateTime(xmldate);
-			}
-			String ssize = extractXmlTagValue(line, "size");
-			if ( ssize != null ) {
-				result.filesize = Integer.parseInt(ssize);
-			}
-		}
-		return result;
-	}
-
-	private String extractXmlTagValue(String line, String tag) {
-		int i = line.indexOf(tag+"=\"");
-		if ( i < 0 ) return null;
-		i += 2 + tag.length();
-		int j = line.indexOf('\"', i);
-		if ( j < 0 ) return null;
-		String value = line.substring(i, j);
-		return value;
+		String xml = body.toString("ISO-8859-1");
+		Log.debug(this.getClass(), xml);
+		List<FileInfo> listing = FolderListing.parse(xml);
+		listingCache.put(getCurrentPath(), listing);
+		return listing;
 	}
 
 	public void obexDeleteFile(String filename) throws IOException {
@@ -202,9 +242,10 @@ public class Device {
 		req.append(Obex.REQUEST_PUT | Obex.REQUEST_FINAL);
 		req.append(Obex.shortToBytes(3+nameHeader.length()));
 		req.append(nameHeader);
-		sendByteArray(req);
-		ByteArray response = receiveObexResponse(DEFAULT_OBEX_RESPONSE_TIMEOUT);
+		sendObexRequest(req);
+		ObexFrameDecoder response = receiveObexResponse(DEFAULT_OBEX_RESPONSE_TIMEOUT);
 		validateResponseCode(response);
+		listingCache.remove(getCurrentPath(), filename);
 	}
 	
 
@@ -221,13 +262,26 @@ public class Device {
 		req.append(Obex.REQUEST_PUT | Obex.REQUEST_FINAL);
 		req.append(Obex.shortToBytes(3+appParamsHeader.length()));
 		req.append(appParamsHeader);
-		sendByteArray(req);
-		ByteArray response = receiveObexResponse(DEFAULT_ERASE_DISK_TIMEOUT); // may take a long time
+		sendObexRequest(req);
+		listingCache.clear();
+		ObexFrameDecoder response = receiveObexResponse(DEFAULT_ERASE_DISK_TIMEOUT); // may take a long time
 		validateResponseCode(response);
 	}
 	
 
 	public FileHolder obexGetFile(String filename) throws IOException {
+		ByteArray body = new ByteArray();
+		obexGetFile(filename, new ByteArrayChannel(body));
+		FileHolder result = new FileHolder(new FileInfo(false, filename, body.length(), null), body);
+		return result;
+	}
+	
+	/**
+	 * Streams the file into out as its body segments arrive and returns the
+	 * number of bytes received. If out is a FileChannel and the device sends
+	 * a Length header, the file is preallocated to that size.
+	 */
+	public long obexGetFile(String filename, WritableByteChannel out) throws IOException {
 		if ( ! inObexMode ) {
 			openObexMode();
 		}
@@ -236,38 +290,115 @@ public class Device {
 		header.append(Obex.HEADER_NAME);		
 		header.append(Obex.shortToBytes(3+obexFilename.length()));
 		header.append(obexFilename);
+		appendSrmHeader(header);
 		ByteArray req = new ByteArray();
 		req.append(Obex.REQUEST_GET | Obex.REQUEST_FINAL);  
 		req.append(Obex.shortToBytes(3+header.length()));
 		req.append(header);
-		sendByteArray(req);
-		ByteArray body = receiveBodyToEnd();
-		FileHolder result = new FileHolder(new FileInfo(false, filename, body.length(), null), body);
-		return result;
+		sendObexRequest(req);
+		return receiveBody(out);
+	}
+	
+	public long obexGetFile(String filename, OutputStream out) throws IOException {
+		return obexGetFile(filename, Channels.newChannel(out));
 	}
 	
 	public void obexPutFile(FileHolder file) throws IOException {
+		obexPutFile(file.fileInfo, file.content.toByteBuffer());
+	}
+	
+	/**
+	 * Sends the remaining bytes of content, e.g. a memory-mapped file.
+	 */
+	public long obexPutFile(FileInfo fileInfo, ByteBuffer content) throws IOException {
+		return obexPutFile(fileInfo, new ByteBufferChannel(content));
+	}
+	
+	/**
+	 * Sends everything readable from in. Each PUT frame is read directly
+	 * into the frame buffer. If fileInfo.filesize is -1 the size is
+	 * unknown and no Length header is sent. Returns the number of bytes sent.
+	 */
+	public long obexPutFile(FileInfo fileInfo, ReadableByteChannel in) throws IOException {
 		if ( ! inObexMode ) {
 			openObexMode();
 		}
-		int maxPartLength = 512;
-		int writeCount = 0;
+		long writeCount;
+		try {
+			writeCount = putFile(fileInfo, in);
+		} catch (IOException e) {
+			listingCache.invalidate(getCurrentPath());
+			throw e;
+		}
+		listingCache.update(getCurrentPath(), new FileInfo(false, fileInfo.name, (int) writeCount, fileInfo.date));
+		return writeCount;
+	}
+
+	private long putFile(FileInfo fileInfo, ReadableByteChannel in) throws IOException {
+		int packetLength = getObexMaxPacketLength();
+		long writeCount = 0;
 		long t1 = System.currentTimeMillis();
-		while( writeCount < file.content.length()) {
-			int contentPartLength = file.content.length() - writeCount;
-			boolean isLastPart;
-			boolean isFirstPart = writeCount == 0;
-			if ( contentPartLength > maxPartLength ) {
-				contentPartLength = maxPartLength;
-				isLastPart = false;
-			} else {
-				isLastPart = true;
+		ByteArray req = new ByteArray(packetLength);
+		boolean isFirstPart = true;
+		boolean isLastPart = false;
+		boolean srmActive = false;
+		boolean srmWait = false;
+		while( ! isLastPart ) {
+			req.clear();
+			req.append(Obex.REQUEST_PUT);
+			req.append(Obex.shortToBytes(0)); // frame length, set below
+			if ( isFirstPart ) {
+				appendPutHeaders(req, fileInfo);
+				appendSrmHeader(req);
+			}
+			int bodyHeaderIndex = req.length();
+			int maxPartLength = packetLength - bodyHeaderIndex - 3;
+			if ( maxPartLength < 1 ) {
+				throw new IOException("obex headers of "+fileInfo.name+" exceed the max packet length "+packetLength);
+			}
+			req.append(Obex.HEADER_BODY);
+			req.append(Obex.shortToBytes(0)); // header length, set below
+			int contentPartLength;
+			try {
+				contentPartLength = req.append(in, maxPartLength);
+			} catch (IOException e) {
+				if ( ! isFirstPart ) {
+					abortObexOperation();
+				}
+				throw e;
 			}
-			putFilePart(file, writeCount, contentPartLength, isFirstPart, isLastPart);
 			writeCount += contentPartLength;
+			isLastPart = contentPartLength < maxPartLength || writeCount == fileInfo.filesize;
+			if ( isLastPart ) {
+				req.set(0, Obex.REQUEST_PUT | Obex.REQUEST_FINAL);
+				req.set(bodyHeaderIndex, Obex.HEADER_END_OF_BODY);
+			}
+			setShort(req, 1, req.length());
+			setShort(req, bodyHeaderIndex+1, 3+contentPartLength);
+			if ( Log.isDebugEnabled() ) {
+				Log.debug(getClass(), "sending bytes "+(writeCount-contentPartLength)+".."+writeCount+" to "+fileInfo.name);
+			}
+			sendObexRequest(req);
+			ObexFrameDecoder response;
+			if ( srmActive && ! srmWait && ! isLastPart ) {
+				// single response mode: the device answers only on errors or to make us wait
+				response = pollObexResponse();
+			} else {
+				response = receiveObexResponse(DEFAULT_OBEX_RESPONSE_TIMEOUT);
+			}
+			if ( response != null ) {
+				validateResponseCode(response);
+				if ( isFirstPart ) {
+					srmActive = singleResponseMode && response.isSrmEnabled();
+					Log.debug(getClass(), "single response mode {}", srmActive ? "enabled" : "disabled");
+				}
+				srmWait = response.isSrmWait();
+			}
+			isFirstPart = false;
 		}
 		long t2 = System.currentTimeMillis();
-		Log.debug(getClass(), "sent "+file.content.length()+" bytes, "+(t2-t1)+" ms");
+		Log.debug(getClass(), "sent {} bytes, {} ms", writeCount, t2-t1);
+		return writeCount;
 	}
 	
 	
@@ -277,6 +408,7 @@ public class Device {
 		}
 		setPath(pathname,true);
 		setPath("..",false);
+		listingCache.addFolder(getCurrentPath(), pathname);
 	}
 	
 	public void obexChangeDir(String pathname) throws IOException {
@@ -290,25 +422,39 @@ public class Device {
 		if ( inObexMode ) {
 			closeObexMode();
 		}
-		ByteArray request = new ByteArray(atCommand,"ISO-8859-1");
-		request.append(13);
-		sendByteArray(request);
-		ByteArray response = waitForATResponseWithOK(DEFAULT_AT_COMMAND_RESPONSE_TIMEOUT, true);
-		return new String(response.getBuffer(),"ISO-8859-1");
+		listingCache.clear(); // the command may change the file system
+		ByteArray response = sendAtCommand(atCommand, DEFAULT_AT_COMMAND_RESPONSE_TIMEOUT, true);
+		return response.toString("ISO-8859-1");
 	}
 	
 	
 	
 	// private stuff
 
+	private String parseIdentity(String atiResponse) {
+		StringBuilder sb = new StringBuilder();
+		for( String line : atiResponse.split("[\r\n]+") ) {
+			line = line.trim();
+			if ( line.length() == 0 || line.equals("OK") || line.equalsIgnoreCase("ATI") ) continue;
+			if ( sb.length() > 0 ) {
+				sb.append(' ');
+			}
+			sb.append(line);
+		}
+		return sb.toString();
+	}
+
 	private void openObexMode() throws IOException {
 		Log.debug(this.getClass(), "opening obex mode");
-		sendByteArray(new ByteArray("AT\\Q3\r","ISO-8859-1"));
-		waitForATResponseWithOK(DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
-		sendByteArray(new ByteArray("AT^SQWE=0\r","ISO-8859-1"));
-		waitForATResponseWithOK(DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
-		sendByteArray(new ByteArray("AT^SQWE=3\r","ISO-8859-1"));
-		waitForATResponseWithOK(DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
+		long t0 = System.nanoTime();
+		DeviceEvents.ModeTransition event = null;
+		if ( DeviceEvents.ENABLED ) {
+			event = new DeviceEvents.ModeTransition();
+			event.begin();
+		}
+		sendAtCommand("AT\\Q3", DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
+		sendAtCommand("AT^SQWE=0", DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
+		sendAtCommand("AT^SQWE=3", DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
 		Log.debug(this.getClass(), "connecting obex");
 		ByteArray fsUid = new ByteArray(new byte[] { (byte) 0x6b, (byte) 0x01, (byte) 0xcb, (byte) 0x31, (byte) 0x41, (byte) 0x06, (byte) 0x11, (byte) 0xd4, (byte) 0x9a, (byte) 0x77, (byte) 0x00, (byte) 0x50, (byte) 0xda, (byte) 0x3f, (byte) 0x47, (byte) 0x1f });
 		ByteArray targetHeader = new ByteArray();
@@ -320,22 +466,38 @@ public class Device {
 		req.append(Obex.shortToBytes(7+targetHeader.length()));
 		req.append(0x13); // obex version
 		req.append(0x00); // flags
-		req.append(Obex.shortToBytes(0xffff)); // max packet length
+		req.append(Obex.shortToBytes(MAX_OBEX_MAX_PACKET_LENGTH)); // max packet length
 		req.append(targetHeader);
-		sendByteArray(req);
-		ByteArray response = receiveObexResponse(DEFAULT_OBEX_RESPONSE_TIMEOUT);
+		sendObexRequest(req);
+		ObexFrameDecoder response = receiveObexResponse(DEFAULT_OBEX_RESPONSE_TIMEOUT, true);
 		validateResponseCode(response);
+		peerMaxPacketLength = response.getMaxPacketLength();
+		currentFolders.clear(); // a new obex session starts in the root folder
+		Log.debug(this.getClass(), "device max packet length "+peerMaxPacketLength+", using "+getObexMaxPacketLength());
 		inObexMode = true;
+		OBEX_SESSIONS.add(1);
+		OBEX_OPEN_SECONDS.recordSince(t0);
+		if ( event != null ) {
+			event.from = "AT";
+			event.to = "OBEX";
+			event.commit();
+		}
 	}
 
 	
 	private void closeObexMode() throws IOException {
 		Log.debug(this.getClass(), "closing obex mode obex");
+		long t0 = System.nanoTime();
+		DeviceEvents.ModeTransition event = null;
+		if ( DeviceEvents.ENABLED ) {
+			event = new DeviceEvents.ModeTransition();
+			event.begin();
+		}
 		ByteArray req = new ByteArray();
 		req.append(Obex.REQUEST_DISCONNECT);
 		req.append(Obex.shortToBytes(3));
-		sendByteArray(req);
-		ByteArray response = receiveObexResponse(DEFAULT_OBEX_RESPONSE_TIMEOUT);
+		sendObexRequest(req);
+		ObexFrameDecoder response = receiveObexResponse(DEFAULT_OBEX_RESPONSE_TIMEOUT);
 		validateResponseCode(response);
 		Log.debug(this.getClass(), "escaping data mode");
 		boolean foundOK = false;
@@ -346,109 +508,186 @@ public class Device {
 			ByteArray plusResponse = waitForATResponseWithOK(1000, false);				
 			if ( plusResponse != null ) {
 				foundOK = true;
+			} else {
+				ESCAPE_RETRIES.increment();
 			}
 		}
-		sendByteArray(new ByteArray("ATE1\r","ISO-8859-1"));
-		waitForATResponseWithOK(DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
+		sendAtCommand("ATE1", DEFAULT_INTERNAL_AT_RESPONSE_TIMEOUT, true);
 		inObexMode = false;
+		peerMaxPacketLength = -1;
+		OBEX_SESSIONS.add(-1);
+		OBEX_CLOSE_SECONDS.recordSince(t0);
+		if ( event != null ) {
+			event.from = "OBEX";
+			event.to = "AT";
+			event.escapeAttempts = 5 - max;
+			event.commit();
+		}
 	}
 	
 	
-	private void putFilePart(FileHolder file, int contentPartOffset, int contentPartLength, boolean isFirstPart, boolean isLastPart) throws IOException {
-		Log.debug(getClass(), "sending bytes "+contentPartOffset+".."+(contentPartOffset+contentPartLength)+" to "+file.fileInfo.name);
-		ByteArray contentPart = file.content.subArray(contentPartOffset, contentPartLength);
-		ByteArray nameHeader = new ByteArray();
-		ByteArray lengthHeader = new ByteArray();
-		ByteArray timeHeader = new ByteArray();
-		if ( isFirstPart ) {
-			ByteArray obexFilename = Obex.encodeUtf16String(file.fileInfo.name);
-			// HEADER_NAME
-			nameHeader.append(Obex.HEADER_NAME);		
-			nameHeader.append(Obex.shortToBytes(3+obexFilename.length()));
-			nameHeader.append(obexFilename);
-			// HEADER_LENGTH
-			lengthHeader.append(Obex.HEADER_LENGTH);		
-			lengthHeader.append(Obex.intToBytes(file.fileInfo.filesize));
-			// HEADER_TIME
-			ByteArray obexTime = Obex.encodeDateTime(file.fileInfo.date);
-			timeHeader.append(Obex.HEADER_TIME);		
-			timeHeader.append(Obex.shortToBytes(3+obexTime.length()));
-			timeHeader.append(obexTime);
-		}
-		// HEADER_BODY
-		ByteArray bodyHeader = new ByteArray();
-		if ( isLastPart ) {
-			bodyHeader.append(Obex.HEADER_END_OF_BODY);		
-		} else {
-			bodyHeader.append(Obex.HEADER_BODY);		
+	private void appendPutHeaders(ByteArray req, FileInfo fileInfo) {
+		ByteArray obexFilename = Obex.encodeUtf16String(fileInfo.name);
+		// HEADER_NAME
+		req.append(Obex.HEADER_NAME);		
+		req.append(Obex.shortToBytes(3+obexFilename.length()));
+		req.append(obexFilename);
+		// HEADER_LENGTH
+		if ( fileInfo.filesize >= 0 ) {
+			req.append(Obex.HEADER_LENGTH);		
+			req.append(Obex.intToBytes(fileInfo.filesize));
 		}
-		bodyHeader.append(Obex.shortToBytes(3+contentPart.length()));
-		bodyHeader.append(contentPart);
-		// REQUEST_PUT
-		ByteArray req = new ByteArray();
-		if ( isLastPart ) {
-			req.append(Obex.REQUEST_PUT | Obex.REQUEST_FINAL );
-		} else {
-			req.append(Obex.REQUEST_PUT);
+		// HEADER_TIME
+		if ( fileInfo.date != null ) {
+			ByteArray obexTime = Obex.encodeDateTime(fileInfo.date);
+			req.append(Obex.HEADER_TIME);		
+			req.append(Obex.shortToBytes(3+obexTime.length()));
+			req.append(obexTime);
 		}
-		req.append(Obex.shortToBytes(3+nameHeader.length()+lengthHeader.length()+timeHeader.length()+bodyHeader.length()));
-		req.append(nameHeader);
-		req.append(lengthHeader);
-		req.append(timeHeader);
-		req.append(bodyHeader);
-		sendByteArray(req);
-		ByteArray response = receiveObexResponse(DEFAULT_OBEX_RESPONSE_TIMEOUT);
-		validateResponseCode(response);
+	}
+	
+	private void appendSrmHeader(ByteArray req) {
+		if ( singleResponseMode ) {
+			req.append(Obex.HEADER_SRM);
+			req.append(Obex.SRM_ENABLE);
+		}
+	}
+	
+	private void setShort(ByteArray byteArray, int index, int value) {
+		byteArray.set(index, value >> 8);
+		byteArray.set(index+1, value);
 	}
 	
 	
 	private ByteArray receiveBodyToEnd() throws IOException {
-		ByteArray response = receiveObexResponse(DEFAULT_OBEX_RESPONSE_TIMEOUT);
-		validateResponseCode(response);
 		ByteArray fullBody = new ByteArray();
-		ByteArray bodyPart = extractGetResponseBody(response); 
-		if ( bodyPart != null ) {
-			fullBody.append(bodyPart);
+		receiveBody(new ByteArrayChannel(fullBody));
+		return fullBody;
+	}
+
+	private long receiveBody(WritableByteChannel out) throws IOException {
+		ObexFrameDecoder response = receiveObexResponse(DEFAULT_OBEX_RESPONSE_TIMEOUT);
+		validateResponseCode(response);
+		long expectedLength = response.getLength();
+		FileChannel fileChannel = null;
+		long startPosition = 0;
+		if ( expectedLength > 0 && out instanceof FileChannel ) {
+			// reserve the space up front, the file is truncated to the real size at the end
+			fileChannel = (FileChannel) out;
+			startPosition = fileChannel.position();
+			fileChannel.write(ByteBuffer.wrap(new byte[1]), startPosition + expectedLength - 1);
 		}
-		while( isObexContinue(response) ) {
-			ByteArray req = new ByteArray();
-			req.append(Obex.REQUEST_GET);
-			req.append(Obex.shortToBytes(3));
-			sendByteArray(req);
+		boolean srmActive = singleResponseMode && response.isSrmEnabled();
+		Log.debug(getClass(), "single response mode {}", srmActive ? "enabled" : "disabled");
+		long receiveCount = writeBody(response, out);
+		while( response.isContinue() ) {
+			if ( ! srmActive || response.isSrmWait() ) {
+				ByteArray req = new ByteArray();
+				req.append(Obex.REQUEST_GET);
+				req.append(Obex.shortToBytes(3));
+				sendObexRequest(req);
+			}
 			response = receiveObexResponse(DEFAULT_OBEX_RESPONSE_TIMEOUT);
 			validateResponseCode(response);
-			bodyPart = extractGetResponseBody(response); 
-			if ( bodyPart != null ) {
-				fullBody.append(bodyPart);
+			receiveCount += writeBody(response, out);
+		}
+		if ( fileChannel != null ) {
+			fileChannel.truncate(startPosition + receiveCount);
+		}
+		return receiveCount;
+	}
+
+	private long writeBody(ObexFrameDecoder response, WritableByteChannel out) throws IOException {
+		List<ByteArray> segments = response.getBodySegments();
+		if ( segments.isEmpty() ) {
+			Log.debug(getClass(), "no BodyHeader found in response");
+		}
+		long writeCount = 0;
+		try {
+			for( ByteArray segment : segments ) {
+				ByteBuffer bb = segment.toByteBuffer();
+				while( bb.hasRemaining() ) {
+					out.write(bb);
+				}
+				writeCount += segment.length();
 			}
+		} catch (IOException e) {
+			if ( response.isContinue() ) {
+				abortObexOperation();
+			}
+			throw e;
 		}
-		return fullBody;
+		return writeCount;
 	}
 
-	
-	
+	/**
+	 * Ends an unfinished PUT or GET after the local side failed, so the
+	 * next request does not run inside it. GET responses the device sent
+	 * in single response mode before it saw the ABORT are skipped.
+	 */
+	private void abortObexOperation() {
+		try {
+			ByteArray req = new ByteArray();
+			req.append(Obex.REQUEST_ABORT);
+			req.append(Obex.shortToBytes(3));
+			sendObexRequest(req);
+			ObexFrameDecoder response;
+			do {
+				response = receiveObexResponse(DEFAULT_OBEX_RESPONSE_TIMEOUT);
+			} while( response.isContinue() || ! response.getBodySegments().isEmpty() );
+			Log.debug(getClass(), "obex operation aborted, response code {}", response.getResponseCode());
+		} catch (IOException e) {
+			Log.info("cannot abort the obex operation: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Sends an AT command line and waits for OK, see waitForATResponseWithOK.
+	 */
+	private ByteArray sendAtCommand(String command, long timeoutMillis, boolean responseRequired) throws IOException {
+		DeviceEvents.AtCommand event = null;
+		if ( DeviceEvents.ENABLED ) {
+			event = new DeviceEvents.AtCommand();
+			event.begin();
+		}
+		ByteArray request = new ByteArray(command,"ISO-8859-1");
+		request.append(13);
+		sendByteArray(request);
+		ByteArray response = null;
+		try {
+			response = waitForATResponseWithOK(timeoutMillis, responseRequired);
+			return response;
+		} finally {
+			if ( event != null ) {
+				event.command = command;
+				event.result = response != null ? "OK" : "timeout";
+				event.commit();
+			}
+		}
+	}
 
-	
 	private ByteArray waitForATResponseWithOK(long timeoutmillis, boolean responseRequired) throws IOException {
 		ByteArray response = new ByteArray();
+		long t0 = System.nanoTime();
 		long t1 = System.currentTimeMillis();
 		boolean foundOK = false;
 		while (!foundOK) {
-			receiveIntoByteArray(response);
+			receiveIntoByteArray(response, timeoutmillis - (System.currentTimeMillis() - t1));
 			if ( response.toPrintableString().contains("OK") ) {
 				foundOK = true;
 			} else {
 				long runtime = System.currentTimeMillis() - t1; 
 				if ( runtime > timeoutmillis) {
+					AT_TIMEOUTS.increment();
 					if ( responseRequired ) {
 						throw new IOException("response timeout waiting for OK after "+runtime+" ms and "+response.length()+" bytes");
 					} else {
 						return null;
 					}
 				}
-				sleep(DEFAULT_SLEEP_MILLIS);
 			}
 		}
+		AT_RESPONSE_SECONDS.recordSince(t0);
 		return response;
 	}
 
@@ -461,7 +700,7 @@ public class Device {
 			flags = Obex.FLAG_SETPATH_PARENT_FOLDER;
 		} else {
 			ByteArray obexPath = Obex.encodeUtf16String(pathname);
-			Log.debug(this.getClass(), "obexPath = "+obexPath.toPrintableString()+" " +obexPath.toHexString());
+			Log.debug(this.getClass(), "obexPath = {}", obexPath);
 			header.append(Obex.HEADER_NAME);
 			header.append(Obex.shortToBytes(obexPath.length()+3));
 			header.append(obexPath);
@@ -477,108 +716,202 @@ public class Device {
 		req.append(flags);
 		req.append(0x00);
 		req.append(header);
-		sendByteArray(req);
-		ByteArray response = receiveObexResponse(DEFAULT_OBEX_RESPONSE_TIMEOUT);
+		sendObexRequest(req);
+		ObexFrameDecoder response = receiveObexResponse(DEFAULT_OBEX_RESPONSE_TIMEOUT);
 		validateResponseCode(response);
-	}
-
-	
-	private ByteArray extractGetResponseBody(ByteArray response) {
-		ByteArray body = null;
-		int i = indexOfBodyHeader(response);
-		if ( i >= 0 ) {
-			Log.debug(getClass(), "indexOfBodyHeader = "+i);
-			body = response.subArray(i+3, response.length()-i-3);
+		if ( flags == Obex.FLAG_SETPATH_PARENT_FOLDER ) {
+			if ( ! currentFolders.isEmpty() ) {
+				currentFolders.remove(currentFolders.size()-1);
+			}
 		} else {
-			Log.debug(getClass(), "no BodyHeader found in response");
+			currentFolders.add(pathname);
 		}
-		return body;
 	}
 
-	private int indexOfBodyHeader(ByteArray response) {
-		int result = -1;
-		int i=3;
-		byte[] buf = response.getBuffer();
-		while( result == -1 && i < buf.length ) {
-			if ( buf[i] == Obex.HEADER_BODY ) {
-				result = i;
-			} else if ( buf[i] == Obex.HEADER_LENGTH ) {
-					i += 5;
-			} else {
-				int hdrLen = Obex.bytesToShort(buf[i+1],buf[i+2]);
-				i += hdrLen;
-			}
-		}
-		return result;
+	
+	private void validateResponseCode(ObexFrameDecoder response) throws IOException {		
+		int code = response.getResponseCode() & 0x7F; 
+		if ( (code & 0x70) == Obex.RESPONSE_SUCCESS ) return; // success, created, accepted, ...
+		if ( code == Obex.RESPONSE_CONTINUE ) return;
+		throw new ObexException(response.getResponseCode());
 	}
 
-	private boolean isObexContinue(ByteArray response) {
-		int code = response.getBuffer()[0]; 
-		return  (code & (int)Obex.RESPONSE_CONTINUE) == (int)Obex.RESPONSE_CONTINUE;
+	private ObexFrameDecoder receiveObexResponse(long timeoutMillis) throws IOException {
+		return receiveObexResponse(timeoutMillis, false);
 	}
 
-	private void validateResponseCode(ByteArray response) throws IOException {		
-		int code = response.getBuffer()[0]; 
-		if ( (code & (int)Obex.RESPONSE_SUCCESS) == (int)Obex.RESPONSE_SUCCESS ) return;
-		if ( (code & (int)Obex.RESPONSE_CONTINUE) == (int)Obex.RESPONSE_CONTINUE) return;
-		if ( (code & (int)Obex.RESPONSE_CREATED) == (int)Obex.RESPONSE_CREATED) return;
-		throw new IOException("response validation error, code="+code);
+	/**
+	 * Returns a response if the device has started to send one, null
+	 * otherwise. Does not wait if nothing has been received.
+	 */
+	private ObexFrameDecoder pollObexResponse() throws IOException {
+		if ( unread.length() == 0 ) {
+			receiveIntoByteArray(unread, 0);
+		}
+		if ( unread.length() == 0 ) {
+			return null;
+		}
+		return receiveObexResponse(DEFAULT_OBEX_RESPONSE_TIMEOUT);
 	}
 
-	private ByteArray receiveObexResponse(long timeoutMillis) throws IOException {
-		ByteArray response = new ByteArray();
+	private ObexFrameDecoder receiveObexResponse(long timeoutMillis, boolean connectResponse) throws IOException {
+		ByteArray response = new ByteArray(512);
+		decoder.reset(response, connectResponse);
+		DeviceEvents.ObexResponse event = null;
+		if ( DeviceEvents.ENABLED ) {
+			event = new DeviceEvents.ObexResponse();
+			event.begin();
+		}
+		long t0 = System.nanoTime();
 		long t1 = System.currentTimeMillis();
-		boolean complete = false;
-		while( ! complete ) {
-			receiveIntoByteArray(response);
-			if ( response.length() >= 3 ) {
-				int expectedFrameLength = Obex.bytesToInt(response.subArray(1,2).getBuffer());
-				if ( response.length() >= expectedFrameLength ) {
-					complete = true;
-				}
-			}
-			if ( ! complete ) {
-				long runtime = System.currentTimeMillis()-t1; 
-				if ( runtime > timeoutMillis ) {
-					throw new IOException("obex response timeout after "+runtime+" ms and "+response.length()+" bytes");
+		while( ! decoder.decode() ) {
+			long runtime = System.currentTimeMillis()-t1; 
+			if ( runtime > timeoutMillis ) {
+				OBEX_TIMEOUTS.increment();
+				if ( event != null ) {
+					event.length = response.length();
+					event.timedOut = true;
+					event.commit();
 				}
+				throw new IOException("obex response timeout after "+runtime+" ms and "+response.length()+" bytes");
 			}
+			receiveIntoByteArray(response, timeoutMillis - runtime);
+		}
+		if ( response.length() > decoder.getFrameLength() ) {
+			// bytes of the next frame, keep them for the next receive
+			int frameLength = decoder.getFrameLength();
+			unread.append(response.subArray(frameLength, response.length()-frameLength));
+		}
+		OBEX_RESPONSE_SECONDS.recordSince(t0);
+		if ( event != null ) {
+			event.responseCode = decoder.getResponseCode();
+			event.length = decoder.getFrameLength();
+			event.commit();
+		}
+		return decoder;
+	}
+
+	private void sendObexRequest(ByteArray req) throws IOException {
+		DeviceEvents.ObexRequest event = null;
+		if ( DeviceEvents.ENABLED ) {
+			event = new DeviceEvents.ObexRequest();
+			event.begin();
+		}
+		sendByteArray(req);
+		if ( event != null ) {
+			event.opcode = req.intAt(0);
+			event.operation = DeviceEvents.getOperationName(event.opcode);
+			event.length = req.length();
+			event.commit();
 		}
-		return response;
 	}
 
 	private void sendByteArray(ByteArray byteArray) throws IOException {
 		if ( Log.isDebugEnabled() ) {
-			Log.debug(this.getClass(), "send " + byteArray.length() + " bytes: " + byteArray.toHexString() + byteArray.toPrintableString());
+			// a copy, the hex dump is made later by the log writer
+			Log.debug(this.getClass(), "send {} bytes: {}", byteArray.length(), new ByteArray(byteArray.array(), byteArray.arrayOffset(), byteArray.length()));
+		}
+		DeviceEvents.SerialWrite event = null;
+		if ( DeviceEvents.ENABLED ) {
+			event = new DeviceEvents.SerialWrite();
+			event.begin();
 		}
-		byte[] buffer = byteArray.getBuffer();
-		serialOut.write(buffer);
+		byteArray.writeTo(serialOut);
 		serialOut.flush();
+		BYTES_SENT.add(byteArray.length());
+		if ( event != null ) {
+			event.length = byteArray.length();
+			event.commit();
+		}
 	}
 	
-	private int receiveIntoByteArray(ByteArray byteArray) throws IOException {
-		if ( serialIn.available() == 0 ) {
-			sleep(DEFAULT_SLEEP_MILLIS);
+	/**
+	 * Appends the bytes received so far to byteArray, waiting at most
+	 * waitMillis for data to arrive. Returns the number of bytes appended.
+	 */
+	private int receiveIntoByteArray(ByteArray byteArray, long waitMillis) throws IOException {
+		if ( unread.length() > 0 ) {
+			int count = unread.length();
+			byteArray.append(unread);
+			unread.clear();
+			return count;
 		}
-		byte[] buf = new byte[512];
-		int totalReadCount = 0;
-		while( serialIn.available() > 0 ) {
-			int readCount = serialIn.read(buf);
-			totalReadCount += readCount;
-			ByteArray temp = new ByteArray(buf, 0, readCount);
-			if ( Log.isDebugEnabled() ) {
-				Log.debug(this.getClass(), "received " + temp.length() + " bytes: " + temp.toHexString() + temp.toPrintableString());
-			}
-			byteArray.append(temp);
+		int start = byteArray.length();
+		DeviceEvents.SerialRead event = null;
+		if ( DeviceEvents.ENABLED ) {
+			event = new DeviceEvents.SerialRead();
+			event.begin();
+		}
+		int totalReadCount = receiver.receive(byteArray, Math.max(waitMillis, 0));
+		BYTES_RECEIVED.add(totalReadCount);
+		if ( event != null && totalReadCount > 0 ) {
+			event.length = totalReadCount;
+			event.commit();
+		}
+		if ( totalReadCount > 0 && Log.isDebugEnabled() ) {
+			ByteArray copy = new ByteArray(byteArray.array(), byteArray.arrayOffset() + start, totalReadCount);
+			Log.debug(this.getClass(), "received {} bytes: {}", totalReadCount, copy);
 		}
 		return totalReadCount;
 	}
 	
-	private void sleep( long millis ) {
-		try {
-			Thread.sleep(millis);
-		} catch (Exception e) {
-			// ignore
+	/**
+	 * Collects written bytes in a ByteArray.
+	 */
+	private static class ByteArrayChannel implements WritableByteChannel {
+		
+		private ByteArray target;
+		
+		ByteArrayChannel(ByteArray target) {
+			this.target = target;
+		}
+		
+		@Override
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			target.append(src);
+			return n;
+		}
+		
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+		
+		@Override
+		public void close() {
+		}
+	}
+	
+	/**
+	 * Reads the remaining bytes of a ByteBuffer.
+	 */
+	private static class ByteBufferChannel implements ReadableByteChannel {
+		
+		private ByteBuffer source;
+		
+		ByteBufferChannel(ByteBuffer source) {
+			this.source = source;
+		}
+		
+		@Override
+		public int read(ByteBuffer dst) {
+			if ( ! source.hasRemaining() ) return -1;
+			int n = Math.min(source.remaining(), dst.remaining());
+			ByteBuffer part = source.duplicate();
+			part.limit(part.position() + n);
+			dst.put(part);
+			source.position(source.position() + n);
+			return n;
+		}
+		
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+		
+		@Override
+		public void close() {
 		}
 	}
 }
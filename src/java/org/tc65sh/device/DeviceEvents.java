@@ -0,0 +1,157 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.device;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the device I/O. They show up in a
+ * recording next to GC and other JVM events, so a slow transfer can be
+ * blamed on the line, the device or the JVM.
+ *
+ * The event classes need Java 11. Device creates them only if ENABLED,
+ * older JVMs never load them.
+ */
+public abstract class DeviceEvents {
+
+	public static final boolean ENABLED = isFlightRecorderAvailable();
+
+	private static boolean isFlightRecorderAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	@Name("tc65sh.SerialWrite")
+	@Label("Serial Write")
+	@Category({ "TC65SH", "Serial" })
+	@Description("Bytes written and flushed to the device")
+	@StackTrace(false)
+	static class SerialWrite extends Event {
+
+		@Label("Bytes")
+		@DataAmount
+		int length;
+
+	}
+
+	@Name("tc65sh.SerialRead")
+	@Label("Serial Read")
+	@Category({ "TC65SH", "Serial" })
+	@Description("A burst of bytes received from the device, the duration includes the wait for the first byte")
+	@StackTrace(false)
+	static class SerialRead extends Event {
+
+		@Label("Bytes")
+		@DataAmount
+		int length;
+
+	}
+
+	@Name("tc65sh.ObexRequest")
+	@Label("OBEX Request")
+	@Category({ "TC65SH", "OBEX" })
+	@Description("An OBEX request sent to the device")
+	@StackTrace(false)
+	static class ObexRequest extends Event {
+
+		@Label("Operation")
+		String operation;
+
+		@Label("Opcode")
+		int opcode;
+
+		@Label("Length")
+		@DataAmount
+		int length;
+
+	}
+
+	@Name("tc65sh.ObexResponse")
+	@Label("OBEX Response")
+	@Category({ "TC65SH", "OBEX" })
+	@Description("Wait for and decoding of an OBEX response")
+	@StackTrace(false)
+	static class ObexResponse extends Event {
+
+		@Label("Response Code")
+		int responseCode;
+
+		@Label("Length")
+		@DataAmount
+		int length;
+
+		@Label("Timed Out")
+		boolean timedOut;
+
+	}
+
+	@Name("tc65sh.AtCommand")
+	@Label("AT Command")
+	@Category({ "TC65SH", "AT" })
+	@Description("An AT command and the wait for its OK")
+	@StackTrace(false)
+	static class AtCommand extends Event {
+
+		@Label("Command")
+		String command;
+
+		@Label("Result")
+		String result;
+
+	}
+
+	@Name("tc65sh.ModeTransition")
+	@Label("Mode Transition")
+	@Category({ "TC65SH", "AT" })
+	@Description("Switch of the device between AT and OBEX mode")
+	static class ModeTransition extends Event {
+
+		@Label("From")
+		String from;
+
+		@Label("To")
+		String to;
+
+		@Label("Escape Attempts")
+		int escapeAttempts;
+
+	}
+
+	static String getOperationName(int opcode) {
+		switch( opcode & 0x7F ) {
+			case 0x00: return "CONNECT";
+			case 0x01: return "DISCONNECT";
+			case 0x02: return "PUT";
+			case 0x03: return "GET";
+			case 0x05: return "SETPATH";
+			case 0x06: return "SETPATH2";
+			case 0x07: return "SESSION";
+			case 0x7F: return "ABORT";
+			default: return "0x" + Integer.toHexString(opcode);
+		}
+	}
+
+}
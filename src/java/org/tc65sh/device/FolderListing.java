@@ -0,0 +1,78 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.device;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parses the x-obex/folder-listing XML sent by the device.
+ */
+public abstract class FolderListing {
+
+	/**
+	 * Files and folders of the listing, sorted folders first.
+	 */
+	public static List<FileInfo> parse(String xml) {
+		String[] lines = xml.split("\n"); 
+		ArrayList<FileInfo> fileInfos = new ArrayList<FileInfo>(); 
+		for( String line : lines ) {
+			line = line.trim();
+			FileInfo fi = parseLine(line);
+			if ( fi != null ) {
+				fileInfos.add(fi);
+			}
+		}
+		Collections.sort(fileInfos);
+		return fileInfos;
+	}
+
+	/**
+	 * The file or folder described by a listing line, null for other lines.
+	 */
+	public static FileInfo parseLine(String line) {
+		FileInfo result = null;
+		if ( line.startsWith("<file ") ) {
+			result = new FileInfo(false,null,-1,null);
+		} else if ( line.startsWith("<folder ") ) {
+			result = new FileInfo(true,null,-1,null);
+		}		
+		if ( result != null ) {
+			result.name = extractXmlTagValue(line, "name");
+			String xmldate = extractXmlTagValue(line, "modified");
+			if ( xmldate != null ) {
+				result.date = Obex.decodeXmlDateTime(xmldate);
+			}
+			String ssize = extractXmlTagValue(line, "size");
+			if ( ssize != null ) {
+				result.filesize = Integer.parseInt(ssize);
+			}
+		}
+		return result;
+	}
+
+	private static String extractXmlTagValue(String line, String tag) {
+		int i = line.indexOf(tag+"=\"");
+		if ( i < 0 ) return null;
+		i += 2 + tag.length();
+		int j = line.indexOf('\"', i);
+		if ( j < 0 ) return null;
+		String value = line.substring(i, j);
+		return value;
+	}
+
+}
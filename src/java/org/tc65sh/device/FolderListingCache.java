@@ -0,0 +1,112 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.device;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Folder listings of the current session, keyed by folder path. Changes
+ * made through Device are applied to the cached listing, so it does not
+ * have to be fetched from the device again. The flash file system is not
+ * case sensitive, so neither are paths and names here.
+ */
+class FolderListingCache {
+
+	private final Map<String,List<FileInfo>> listings = new HashMap<String,List<FileInfo>>();
+
+	/**
+	 * A copy of the cached listing of path, null if there is none.
+	 */
+	List<FileInfo> get(String path) {
+		List<FileInfo> listing = listings.get(key(path));
+		if ( listing == null ) return null;
+		return copy(listing);
+	}
+
+	void put(String path, List<FileInfo> listing) {
+		listings.put(key(path), copy(listing));
+	}
+
+	/**
+	 * Adds or replaces an entry in the cached listing of path.
+	 */
+	void update(String path, FileInfo fileInfo) {
+		List<FileInfo> listing = listings.get(key(path));
+		if ( listing == null ) return;
+		remove(listing, fileInfo.name);
+		// listings from the device have a resolution of seconds
+		long millis = fileInfo.date != null ? fileInfo.date.getTime() : System.currentTimeMillis();
+		listing.add(new FileInfo(fileInfo.directory, fileInfo.name, fileInfo.filesize, new Date(millis / 1000 * 1000)));
+		Collections.sort(listing);
+	}
+
+	/**
+	 * Adds a folder to the cached listing of path unless it is there already.
+	 */
+	void addFolder(String path, String name) {
+		List<FileInfo> listing = listings.get(key(path));
+		if ( listing == null ) return;
+		for( FileInfo fi : listing ) {
+			if ( fi.name.equalsIgnoreCase(name) ) return;
+		}
+		listing.add(new FileInfo(true, name, -1, new Date()));
+		Collections.sort(listing);
+	}
+
+	/**
+	 * Removes an entry from the cached listing of path.
+	 */
+	void remove(String path, String name) {
+		List<FileInfo> listing = listings.get(key(path));
+		if ( listing == null ) return;
+		remove(listing, name);
+	}
+
+	void invalidate(String path) {
+		listings.remove(key(path));
+	}
+
+	void clear() {
+		listings.clear();
+	}
+
+	private void remove(List<FileInfo> listing, String name) {
+		for( int i=listing.size()-1 ; i>=0 ; i-- ) {
+			if ( listing.get(i).name.equalsIgnoreCase(name) ) {
+				listing.remove(i);
+			}
+		}
+	}
+
+	private static String key(String path) {
+		return path.toLowerCase(Locale.ROOT);
+	}
+
+	private static List<FileInfo> copy(List<FileInfo> listing) {
+		List<FileInfo> result = new ArrayList<FileInfo>(listing.size());
+		for( FileInfo fi : listing ) {
+			result.add(new FileInfo(fi.directory, fi.name, fi.filesize, fi.date));
+		}
+		return result;
+	}
+
+}
@@ -43,6 +43,14 @@ public abstract class Obex {
 	public static final byte HEADER_OBJECT_CLASS = (byte) 0x51;
 	public static final byte HEADER_SESSION_PARAMETERS = (byte) 0x52;
 	public static final byte HEADER_SESSION_SEQUENCE_NUMBER = (byte) 0x93;
+	public static final byte HEADER_SRM = (byte) 0x97;
+	public static final byte HEADER_SRM_PARAMETERS = (byte) 0x98;
+
+	/* single response mode (OBEX 1.4) */
+	public static final byte SRM_DISABLE = (byte) 0x00;
+	public static final byte SRM_ENABLE = (byte) 0x01;
+	public static final byte SRM_INDICATE = (byte) 0x02;
+	public static final byte SRMP_WAIT = (byte) 0x01;
 
 	public static final byte REQUEST_CONNECT = (byte)0x80;
     public static final byte REQUEST_DISCONNECT = (byte)0x81;
@@ -62,6 +70,7 @@ public abstract class Obex {
     public static final byte RESPONSE_CONTINUE = (byte)0x10;
     public static final byte RESPONSE_CREATED = (byte)0x21;
     public static final byte RESPONSE_BADREQUEST = (byte)0x40;
+    public static final byte RESPONSE_NOT_FOUND = (byte)0x44;
     public static final byte RESPONSE_FINAL = (byte)0x80;
     
 	public static ByteArray encodeUtf16String(String str) {
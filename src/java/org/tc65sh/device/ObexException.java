@@ -0,0 +1,45 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.device;
+
+import java.io.IOException;
+
+/**
+ * The device answered an OBEX request with an error response code.
+ */
+public class ObexException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int responseCode;
+
+	public ObexException(int responseCode) {
+		super("response validation error, code="+responseCode);
+		this.responseCode = responseCode;
+	}
+
+	/**
+	 * The response code without the final bit, e.g. Obex.RESPONSE_NOT_FOUND.
+	 */
+	public int getResponseCode() {
+		return responseCode & 0x7F;
+	}
+
+	public boolean isNotFound() {
+		return getResponseCode() == Obex.RESPONSE_NOT_FOUND;
+	}
+
+}
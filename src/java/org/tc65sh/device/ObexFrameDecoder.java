@@ -0,0 +1,224 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.device;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.tc65sh.util.ByteArray;
+
+/**
+ * Decodes one OBEX response frame while its bytes arrive. The opcode and
+ * frame length are read once, each header is parsed exactly once as soon
+ * as it is complete. Body and End-of-Body headers are kept as views into
+ * the frame buffer, they are not copied.
+ */
+public class ObexFrameDecoder {
+
+	private ByteArray frame;
+	private int fixedFieldsLength;
+	private int responseCode;
+	private int frameLength;
+	private int position;
+	private boolean complete;
+
+	private long length;
+	private long connectionId;
+	private int maxPacketLength;
+	private boolean endOfBody;
+	private int srm;
+	private int srmParameters;
+	private List<ByteArray> bodySegments = new ArrayList<ByteArray>();
+
+	/**
+	 * Starts decoding a new frame that will be received into frame.
+	 * connectResponse must be set for responses to CONNECT, which carry
+	 * version, flags and max packet length in front of the headers.
+	 */
+	public void reset(ByteArray frame, boolean connectResponse) {
+		this.frame = frame;
+		this.fixedFieldsLength = connectResponse ? 7 : 3;
+		responseCode = -1;
+		frameLength = -1;
+		position = 0;
+		complete = false;
+		length = -1;
+		connectionId = -1;
+		maxPacketLength = -1;
+		endOfBody = false;
+		srm = -1;
+		srmParameters = -1;
+		bodySegments.clear();
+	}
+
+	/**
+	 * Parses whatever has been appended to the frame buffer since the last
+	 * call. Returns true as soon as the frame is complete.
+	 */
+	public boolean decode() throws IOException {
+		if ( complete ) return true;
+		int available = frame.length();
+		if ( frameLength < 0 ) {
+			if ( available < 3 ) return false;
+			responseCode = frame.intAt(0);
+			frameLength = (frame.intAt(1) << 8) | frame.intAt(2);
+			if ( frameLength < fixedFieldsLength ) {
+				throw new IOException("invalid obex frame length "+frameLength);
+			}
+			frame.ensureCapacity(frameLength);
+			position = 3;
+		}
+		int end = Math.min(available, frameLength);
+		if ( position < fixedFieldsLength ) {
+			if ( end < fixedFieldsLength ) return false;
+			if ( fixedFieldsLength == 7 ) {
+				maxPacketLength = (frame.intAt(5) << 8) | frame.intAt(6);
+			}
+			position = fixedFieldsLength;
+		}
+		while( position < end ) {
+			int headerLength = headerLength(end);
+			if ( headerLength < 0 ) break;
+			if ( position + headerLength > frameLength ) {
+				throw new IOException("obex header 0x"+Integer.toHexString(frame.intAt(position))+" exceeds frame length "+frameLength);
+			}
+			decodeHeader(headerLength);
+			position += headerLength;
+		}
+		complete = position >= frameLength;
+		return complete;
+	}
+
+	/**
+	 * Length of the header starting at the current position, or -1 if not
+	 * enough bytes have arrived to tell. The two high bits of the header id
+	 * tell its encoding: 0x00 unicode and 0x40 byte sequence with a 2 byte
+	 * length, 0x80 one byte, 0xC0 four bytes.
+	 */
+	private int headerLength(int end) throws IOException {
+		int id = frame.intAt(position);
+		int headerLength;
+		switch ( id & 0xC0 ) {
+		case 0x80:
+			headerLength = 2;
+			break;
+		case 0xC0:
+			headerLength = 5;
+			break;
+		default:
+			if ( position + 3 > end ) return end < frameLength ? -1 : 3;
+			headerLength = (frame.intAt(position+1) << 8) | frame.intAt(position+2);
+			if ( headerLength < 3 ) {
+				throw new IOException("invalid length "+headerLength+" of obex header 0x"+Integer.toHexString(id));
+			}
+		}
+		if ( position + headerLength > end && end < frameLength ) {
+			return -1;
+		}
+		return headerLength;
+	}
+
+	private void decodeHeader(int headerLength) {
+		byte id = frame.byteAt(position);
+		if ( id == Obex.HEADER_BODY || id == Obex.HEADER_END_OF_BODY ) {
+			bodySegments.add(frame.subArray(position+3, headerLength-3));
+			if ( id == Obex.HEADER_END_OF_BODY ) {
+				endOfBody = true;
+			}
+		} else if ( id == Obex.HEADER_LENGTH ) {
+			length = readUnsignedInt(position+1);
+		} else if ( id == Obex.HEADER_CONNECTION_ID ) {
+			connectionId = readUnsignedInt(position+1);
+		} else if ( id == Obex.HEADER_SRM ) {
+			srm = frame.intAt(position+1);
+		} else if ( id == Obex.HEADER_SRM_PARAMETERS ) {
+			srmParameters = frame.intAt(position+1);
+		}
+	}
+
+	private long readUnsignedInt(int i) {
+		return ((long) frame.intAt(i) << 24) | (frame.intAt(i+1) << 16) | (frame.intAt(i+2) << 8) | frame.intAt(i+3);
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Response code including the final bit, -1 until known.
+	 */
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+	public int getFrameLength() {
+		return frameLength;
+	}
+
+	public boolean isContinue() {
+		return (responseCode & 0x7F) == Obex.RESPONSE_CONTINUE;
+	}
+
+	/**
+	 * Value of the Length header, -1 if the frame had none.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Value of the Connection-ID header, -1 if the frame had none.
+	 */
+	public long getConnectionId() {
+		return connectionId;
+	}
+
+	/**
+	 * Max packet length of the peer, only set in CONNECT responses.
+	 */
+	public int getMaxPacketLength() {
+		return maxPacketLength;
+	}
+
+	/**
+	 * Body and End-of-Body header contents in frame order, as views into
+	 * the frame buffer.
+	 */
+	public List<ByteArray> getBodySegments() {
+		return bodySegments;
+	}
+
+	public boolean isEndOfBody() {
+		return endOfBody;
+	}
+
+	/**
+	 * True if the frame carries an SRM header that enables single response mode.
+	 */
+	public boolean isSrmEnabled() {
+		return srm == Obex.SRM_ENABLE;
+	}
+
+	/**
+	 * True if the frame carries an SRM parameters header asking the other
+	 * side to wait for the next packet.
+	 */
+	public boolean isSrmWait() {
+		return srmParameters == Obex.SRMP_WAIT;
+	}
+
+}
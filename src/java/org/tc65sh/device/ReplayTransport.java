@@ -0,0 +1,199 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.device;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.tc65sh.util.Log;
+
+/**
+ * Plays the device side of a WireCapture back. A recorded response is
+ * sent only after tc65sh has written all bytes recorded before it, and
+ * after the recorded gap to the previous chunk divided by speed; speed 0
+ * sends it at once. The bytes written by tc65sh are compared with the
+ * recording, the first difference is logged: the replay only makes
+ * sense as long as tc65sh sends the same requests.
+ */
+public class ReplayTransport implements Transport {
+
+	private final List<WireCapture.Chunk> chunks;
+	private final double speed;
+	private final Object lock = new Object();
+	private int next = 0; // index of the next chunk to replay
+	private int nextPosition = 0; // bytes of chunks[next] already read or written
+	private long readyNanos; // when the previous chunk was done
+	private long hostByteCount = 0;
+	private boolean diverged = false;
+	private boolean closed = false;
+
+	private final InputStream in = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return readFromDevice(b, off, len);
+		}
+	};
+
+	private final OutputStream out = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			writeToDevice(b, off, len);
+		}
+	};
+
+	public ReplayTransport(File captureFile, double speed) throws IOException {
+		if ( speed < 0 ) throw new RuntimeException("invalid replay speed " + speed);
+		this.chunks = WireCapture.read(captureFile);
+		this.speed = speed;
+		this.readyNanos = System.nanoTime();
+		Log.info("replaying " + chunks.size() + " chunks of " + captureFile + (speed > 0 ? " at speed " + speed : " without delays"));
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	@Override
+	public void close() {
+		synchronized( lock ) {
+			closed = true;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Blocks until the next recorded response is due, like a serial port
+	 * without data. Returns -1 once closed.
+	 */
+	private int readFromDevice(byte[] b, int off, int len) throws IOException {
+		synchronized( lock ) {
+			while( true ) {
+				if ( closed ) return -1;
+				WireCapture.Chunk chunk = next < chunks.size() ? chunks.get(next) : null;
+				if ( chunk == null || chunk.direction != WireCapture.FROM_DEVICE ) {
+					waitNanos(0); // the end of the recording or tc65sh has to send first
+					continue;
+				}
+				long due = nextPosition > 0 ? 0 : readyNanos + getScaledGap(next) - System.nanoTime();
+				if ( due > 0 ) {
+					waitNanos(due);
+					continue;
+				}
+				int n = Math.min(len, chunk.data.length - nextPosition);
+				System.arraycopy(chunk.data, nextPosition, b, off, n);
+				nextPosition += n;
+				if ( nextPosition == chunk.data.length ) {
+					chunkDone();
+				}
+				return n;
+			}
+		}
+	}
+
+	private void writeToDevice(byte[] b, int off, int len) throws IOException {
+		synchronized( lock ) {
+			if ( closed ) throw new IOException("replay closed");
+			if ( diverged ) {
+				// any request lets the next recorded response through
+				skipRequest();
+				lock.notifyAll();
+				return;
+			}
+			int position = off;
+			while( position < off + len ) {
+				WireCapture.Chunk chunk = next < chunks.size() ? chunks.get(next) : null;
+				if ( chunk == null || chunk.direction != WireCapture.TO_DEVICE ) {
+					diverge("tc65sh sends more than recorded at byte " + hostByteCount);
+					break;
+				}
+				if ( chunk.data[nextPosition] != b[position] ) {
+					diverge("tc65sh sends other bytes than recorded at byte " + hostByteCount);
+					break;
+				}
+				position++;
+				hostByteCount++;
+				nextPosition++;
+				if ( nextPosition == chunk.data.length ) {
+					chunkDone();
+				}
+			}
+			lock.notifyAll();
+		}
+	}
+
+	private void chunkDone() {
+		next++;
+		nextPosition = 0;
+		readyNanos = System.nanoTime();
+	}
+
+	private void diverge(String message) {
+		diverged = true;
+		Log.info("replay diverges: " + message + ", the rest of the recording may not fit");
+		skipRequest();
+	}
+
+	/**
+	 * Skips the recorded request, so its response can still be replayed.
+	 */
+	private void skipRequest() {
+		boolean skipped = false;
+		while( next < chunks.size() && chunks.get(next).direction == WireCapture.TO_DEVICE ) {
+			next++;
+			skipped = true;
+		}
+		if ( skipped ) {
+			nextPosition = 0;
+			readyNanos = System.nanoTime();
+		}
+	}
+
+	private long getScaledGap(int index) {
+		if ( speed == 0 || index == 0 ) return 0;
+		return (long) ((chunks.get(index).nanos - chunks.get(index-1).nanos) / speed);
+	}
+
+	private void waitNanos(long nanos) throws IOException {
+		try {
+			if ( nanos <= 0 ) {
+				lock.wait();
+			} else {
+				lock.wait(nanos / 1000000, (int) (nanos % 1000000));
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted");
+		}
+	}
+
+}
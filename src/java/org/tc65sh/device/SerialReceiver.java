@@ -0,0 +1,113 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.device;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.tc65sh.util.ByteArray;
+import org.tc65sh.util.Log;
+
+/**
+ * Reads the serial input stream on a dedicated thread and wakes up
+ * callers waiting in receive() as soon as bytes arrive.
+ */
+class SerialReceiver implements Runnable {
+
+	private static final int READ_BUFFER_SIZE = 512;
+
+	private final InputStream in;
+	private final ByteArray pending = new ByteArray(4096);
+	private final Object lock = new Object();
+	private Thread thread;
+	private volatile boolean mustShutdown = false;
+	private IOException failure;
+
+	SerialReceiver(InputStream in) {
+		this.in = in;
+	}
+
+	void start() {
+		thread = new Thread(this, "tc65sh-serial-receiver");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void stop() {
+		mustShutdown = true;
+		if ( thread != null ) {
+			thread.interrupt();
+		}
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+	}
+
+	@Override
+	public void run() {
+		byte[] buf = new byte[READ_BUFFER_SIZE];
+		try {
+			while( ! mustShutdown ) {
+				int readCount = in.read(buf);
+				if ( readCount < 0 ) {
+					throw new IOException("serial input stream closed");
+				}
+				if ( readCount > 0 ) {
+					synchronized (lock) {
+						pending.append(buf, 0, readCount);
+						lock.notifyAll();
+					}
+				}
+			}
+		} catch (IOException e) {
+			if ( ! mustShutdown ) {
+				Log.debug(getClass(), "serial receiver stopped", e);
+				synchronized (lock) {
+					failure = e;
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves all received bytes into target, waiting at most timeoutMillis
+	 * for the first byte. Returns the number of bytes moved.
+	 */
+	int receive(ByteArray target, long timeoutMillis) throws IOException {
+		synchronized (lock) {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			long remaining = timeoutMillis;
+			while( pending.length() == 0 && failure == null && ! mustShutdown && remaining > 0 ) {
+				try {
+					lock.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				remaining = deadline - System.currentTimeMillis();
+			}
+			if ( pending.length() == 0 && failure != null ) {
+				throw failure;
+			}
+			int count = pending.length();
+			target.append(pending);
+			pending.clear();
+			return count;
+		}
+	}
+
+}
@@ -0,0 +1,107 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.device;
+
+import gnu.io.CommPort;
+import gnu.io.CommPortIdentifier;
+import gnu.io.SerialPort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.tc65sh.util.Log;
+
+/**
+ * Transport over a serial port, using RXTX.
+ */
+public class SerialTransport implements Transport {
+
+	private static final String SERIAL_PORTS_PROPERTY = "gnu.io.rxtx.SerialPorts";
+
+	private SerialPort serialPort;
+	private InputStream serialIn;
+	private OutputStream serialOut;
+
+	public SerialTransport(String portname, int baudrate, char flowControl) throws Exception {
+		Log.debug(this.getClass(), "opening serial port "+portname+", "+baudrate+" baud");
+		if ( ! isCommonPortname(portname) && System.getProperty(SERIAL_PORTS_PROPERTY) == null ) {
+			System.setProperty(SERIAL_PORTS_PROPERTY, portname);
+		}
+		System.setProperty("gnu.io.rxtx.NoVersionOutput", "true");
+		CommPortIdentifier commPortIdentifier = CommPortIdentifier.getPortIdentifier(portname);
+		CommPort commPort = commPortIdentifier.open("tc65sh", 2000);
+		serialPort = (SerialPort) commPort;
+		serialPort.setSerialPortParams(baudrate, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+		serialPort.enableReceiveTimeout(2000);
+		if ( flowControl == Device.FLOWCONTROL_NONE ) {
+			serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
+		} else if ( flowControl == Device.FLOWCONTROL_RTSCTS) {
+			serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_RTSCTS_OUT | SerialPort.FLOWCONTROL_RTSCTS_IN);
+		} else if ( flowControl == Device.FLOWCONTROL_XONXOFF) {
+			serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_XONXOFF_OUT | SerialPort.FLOWCONTROL_XONXOFF_IN);
+		} else {
+			serialPort.close();
+			throw new RuntimeException("invalid flowControl "+flowControl);
+		}
+		serialIn = serialPort.getInputStream();
+		serialOut = serialPort.getOutputStream();
+	}
+
+	/**
+	 * RXTX reads the list of ports with uncommon names (e.g. /dev/ttyUSB0)
+	 * only once, so all ports of a fleet have to be registered before the
+	 * first one is opened.
+	 */
+	public static void registerPorts(List<String> portnames) {
+		StringBuilder sb = new StringBuilder();
+		for( String portname : portnames ) {
+			if ( isCommonPortname(portname) ) continue;
+			if ( sb.length() > 0 ) sb.append(File.pathSeparator);
+			sb.append(portname);
+		}
+		if ( sb.length() > 0 ) {
+			System.setProperty(SERIAL_PORTS_PROPERTY, sb.toString());
+		}
+	}
+
+	private static boolean isCommonPortname(String portname) {
+		return portname.contains("ttyS") || portname.contains("COM");
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return serialIn;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return serialOut;
+	}
+
+	@Override
+	public void close() throws IOException {
+		serialIn.close();
+		serialOut.close();
+		serialPort.close();
+		serialIn = null;
+		serialOut = null;
+		serialPort = null;
+	}
+
+}
@@ -0,0 +1,39 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.device;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Byte stream connection between tc65sh and a device, e.g. a serial port.
+ */
+public interface Transport {
+
+	/**
+	 * Bytes sent by the device. read() may block until data arrives.
+	 */
+	public InputStream getInputStream() throws IOException;
+
+	/**
+	 * Bytes sent to the device.
+	 */
+	public OutputStream getOutputStream() throws IOException;
+
+	public void close() throws IOException;
+
+}
@@ -0,0 +1,305 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.device;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.tc65sh.util.Log;
+
+/**
+ * Index of all files and folders on a device, built by crawling the folder
+ * listings once and stored in a file per device. A refresh lists again
+ * only the folders whose modification date changed since the last crawl.
+ * Like the flash file system, names are not case sensitive.
+ */
+public class TreeIndex {
+
+	private static final String ROOT_PATH = "a:/";
+
+	public static class Node {
+
+		public final String name;
+		public final boolean directory;
+		public int filesize = -1;
+		public Date date = null;
+		public boolean listed = false;
+		public Map<String,Node> children = newChildren();
+
+		Node(String name, boolean directory) {
+			this.name = name;
+			this.directory = directory;
+		}
+
+		public FileInfo toFileInfo() {
+			return new FileInfo(directory, name, filesize, date);
+		}
+
+		/**
+		 * Sum of the sizes of all files below this node.
+		 */
+		public long totalSize() {
+			if ( ! directory ) return Math.max(filesize, 0);
+			long sum = 0;
+			for( Node child : children.values() ) {
+				sum += child.totalSize();
+			}
+			return sum;
+		}
+
+	}
+
+	private final File file;
+	private Node root = new Node("a:", true);
+	private int listedFolders = 0;
+
+	public TreeIndex(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * The index file of the device with the given identity in dir.
+	 */
+	public static File getIndexFile(File dir, String identity) {
+		String id = identity == null || identity.length() == 0 ? "unknown" : identity;
+		return new File(dir, id.replaceAll("[^A-Za-z0-9._-]+", "_") + ".idx");
+	}
+
+	public Node getRoot() {
+		return root;
+	}
+
+	/**
+	 * True if the root folder has been crawled at least once.
+	 */
+	public boolean isBuilt() {
+		return root.listed;
+	}
+
+	/**
+	 * The node at path, e.g. "a:/data/logs", null if the index does not
+	 * know it.
+	 */
+	public Node lookup(String path) {
+		Node node = root;
+		for( String name : splitPath(path) ) {
+			node = node.children.get(name);
+			if ( node == null ) return null;
+		}
+		return node;
+	}
+
+	/**
+	 * Crawls the device depth first and returns the number of folders
+	 * listed. Unless full is set, folders whose modification date did not
+	 * change keep their indexed content and are not entered. The current
+	 * folder of the device is restored afterwards.
+	 */
+	public int refresh(Device device, boolean full) throws IOException {
+		String startPath = device.getCurrentPath();
+		listedFolders = 0;
+		try {
+			changeToPath(device, ROOT_PATH);
+			refreshFolder(device, root, full);
+		} finally {
+			changeToPath(device, startPath);
+		}
+		Log.debug(getClass(), "listed "+listedFolders+" folders");
+		return listedFolders;
+	}
+
+	private void refreshFolder(Device device, Node folder, boolean full) throws IOException {
+		List<FileInfo> listing = device.obexGetFolderListing();
+		listedFolders++;
+		Map<String,Node> previous = folder.children;
+		folder.children = newChildren();
+		for( FileInfo fi : listing ) {
+			Node node = previous.get(fi.name);
+			boolean unchanged = node != null && node.directory && fi.directory && node.listed
+					&& node.date != null && node.date.equals(fi.date);
+			if ( full || ! unchanged ) {
+				node = new Node(fi.name, fi.directory);
+			}
+			node.filesize = fi.filesize;
+			node.date = fi.date;
+			folder.children.put(fi.name, node);
+		}
+		folder.listed = true;
+		for( Node child : folder.children.values() ) {
+			if ( child.directory && ! child.listed ) {
+				device.obexChangeDir(child.name);
+				refreshFolder(device, child, full);
+				device.obexChangeDir("..");
+			}
+		}
+	}
+
+	/**
+	 * Adds or replaces an entry of the folder at path, e.g. after a put.
+	 */
+	public void update(String path, FileInfo fileInfo) {
+		Node folder = lookup(path);
+		if ( folder == null || ! folder.listed ) return;
+		Node node = folder.children.get(fileInfo.name);
+		if ( node == null || node.directory != fileInfo.directory ) {
+			node = new Node(fileInfo.name, fileInfo.directory);
+			folder.children.put(fileInfo.name, node);
+			if ( fileInfo.directory ) {
+				node.listed = true; // a new folder is empty
+			}
+		}
+		node.filesize = fileInfo.filesize;
+		node.date = fileInfo.date != null ? fileInfo.date : new Date();
+	}
+
+	public void remove(String path, String name) {
+		Node folder = lookup(path);
+		if ( folder == null ) return;
+		folder.children.remove(name);
+	}
+
+	public void clear() {
+		root = new Node("a:", true);
+	}
+
+	public void load() throws IOException {
+		clear();
+		if ( ! file.exists() ) return;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while( (line = in.readLine()) != null ) {
+				if ( line.startsWith("#") || line.length() == 0 ) continue;
+				// type, size, date, listed, path
+				String[] fields = line.split("\t", 5);
+				if ( fields.length < 5 ) {
+					throw new IOException("invalid line in index file "+file+": "+line);
+				}
+				Node node;
+				if ( fields[4].equals(ROOT_PATH) ) {
+					node = root;
+				} else {
+					Node parent = lookup(parentPath(fields[4]));
+					if ( parent == null ) {
+						throw new IOException("invalid path in index file "+file+": "+fields[4]);
+					}
+					String name = fields[4].substring(fields[4].lastIndexOf('/')+1);
+					node = new Node(name, fields[0].equals("D"));
+					parent.children.put(name, node);
+				}
+				node.filesize = Integer.parseInt(fields[1]);
+				long millis = Long.parseLong(fields[2]);
+				node.date = millis >= 0 ? new Date(millis) : null;
+				node.listed = fields[3].equals("1");
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	public void save() throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if ( dir != null ) {
+			dir.mkdirs();
+		}
+		File tmp = new File(file.getPath()+".tmp");
+		Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+		try {
+			out.write("# tc65sh tree index\n");
+			save(out, root, ROOT_PATH);
+		} finally {
+			out.close();
+		}
+		if ( file.exists() && ! file.delete() ) {
+			throw new IOException("cannot replace index file "+file);
+		}
+		if ( ! tmp.renameTo(file) ) {
+			throw new IOException("cannot write index file "+file);
+		}
+	}
+
+	private void save(Writer out, Node node, String path) throws IOException {
+		out.write(node.directory ? "D" : "F");
+		out.write("\t"+node.filesize);
+		out.write("\t"+(node.date != null ? node.date.getTime() : -1));
+		out.write("\t"+(node.listed ? "1" : "0"));
+		out.write("\t"+path+"\n");
+		for( Node child : node.children.values() ) {
+			save(out, child, childPath(path, child.name));
+		}
+	}
+
+	/**
+	 * Path of name inside the folder at path.
+	 */
+	public static String childPath(String path, String name) {
+		return path.endsWith("/") ? path + name : path + "/" + name;
+	}
+
+	/**
+	 * Changes the current folder of the device to path, going up to the
+	 * nearest common folder first.
+	 */
+	public static void changeToPath(Device device, String path) throws IOException {
+		List<String> current = splitPath(device.getCurrentPath());
+		List<String> target = splitPath(path);
+		int common = 0;
+		while( common < current.size() && common < target.size() && current.get(common).equalsIgnoreCase(target.get(common)) ) {
+			common++;
+		}
+		for( int i=current.size() ; i>common ; i-- ) {
+			device.obexChangeDir("..");
+		}
+		for( int i=common ; i<target.size() ; i++ ) {
+			device.obexChangeDir(target.get(i));
+		}
+	}
+
+	private static Map<String,Node> newChildren() {
+		return new TreeMap<String,Node>(String.CASE_INSENSITIVE_ORDER);
+	}
+
+	private static String parentPath(String path) {
+		int i = path.lastIndexOf('/');
+		return i <= 2 ? ROOT_PATH : path.substring(0, i);
+	}
+
+	private static List<String> splitPath(String path) {
+		List<String> result = new ArrayList<String>();
+		String norm = path;
+		if ( norm.toLowerCase().startsWith("a:") ) {
+			norm = norm.substring(2);
+		}
+		for( String name : norm.split("/") ) {
+			if ( name.length() > 0 ) {
+				result.add(name);
+			}
+		}
+		return result;
+	}
+
+}
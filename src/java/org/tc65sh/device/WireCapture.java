@@ -0,0 +1,205 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.device;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.tc65sh.util.Log;
+
+/**
+ * Binary capture of the bytes exchanged with a device. The file starts
+ * with the 8 byte MAGIC and the start time in epoch milliseconds, followed
+ * by one record per chunk: direction (1 byte), nanoseconds since the start
+ * (8 bytes), length (4 bytes) and the bytes, all big endian.
+ *
+ * record() only copies the chunk, a background thread writes it to the
+ * file through a buffer.
+ */
+public class WireCapture {
+
+	public static final byte[] MAGIC = { 'T', 'C', '6', '5', 'C', 'A', 'P', 1 };
+	public static final byte TO_DEVICE = 1;
+	public static final byte FROM_DEVICE = 2;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int RECORD_HEADER_LENGTH = 13;
+
+	public static class Chunk {
+
+		public final byte direction;
+		public final long nanos;
+		public final byte[] data;
+
+		public Chunk(byte direction, long nanos, byte[] data) {
+			this.direction = direction;
+			this.nanos = nanos;
+			this.data = data;
+		}
+
+	}
+
+	private static final Chunk END = new Chunk((byte) 0, 0, new byte[0]);
+
+	private final File file;
+	private final FileChannel channel;
+	private final long startNanos = System.nanoTime();
+	private final LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+	private final Thread writer;
+	private IOException failure = null;
+
+	public WireCapture(File file) throws IOException {
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		channel = raf.getChannel();
+		ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 8);
+		header.put(MAGIC);
+		header.putLong(System.currentTimeMillis());
+		header.flip();
+		while( header.hasRemaining() ) {
+			channel.write(header);
+		}
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "tc65sh-capture");
+		writer.setDaemon(true);
+		writer.start();
+		Log.info("capturing device traffic to " + file);
+	}
+
+	public void record(byte direction, byte[] b, int off, int len) {
+		if ( len <= 0 ) return;
+		long nanos = System.nanoTime() - startNanos;
+		byte[] data = new byte[len];
+		System.arraycopy(b, off, data, 0, len);
+		queue.add(new Chunk(direction, nanos, data));
+	}
+
+	/**
+	 * Writes the remaining chunks and closes the file.
+	 */
+	public void close() throws IOException {
+		queue.add(END);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+		if ( failure != null ) {
+			throw failure;
+		}
+		Log.debug(getClass(), "capture {} closed", file);
+	}
+
+	private void writeLoop() {
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		try {
+			while( true ) {
+				Chunk chunk = queue.take();
+				if ( chunk == END ) break;
+				append(buffer, chunk);
+				// write when nothing else is waiting, so a crash loses little
+				if ( queue.isEmpty() ) {
+					drain(buffer);
+				}
+			}
+			drain(buffer);
+		} catch (IOException e) {
+			failure = e;
+			Log.info("capture to " + file + " failed: " + e.getMessage());
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+
+	private void append(ByteBuffer buffer, Chunk chunk) throws IOException {
+		if ( buffer.remaining() < RECORD_HEADER_LENGTH ) {
+			drain(buffer);
+		}
+		buffer.put(chunk.direction);
+		buffer.putLong(chunk.nanos);
+		buffer.putInt(chunk.data.length);
+		int position = 0;
+		while( position < chunk.data.length ) {
+			if ( ! buffer.hasRemaining() ) {
+				drain(buffer);
+			}
+			int n = Math.min(buffer.remaining(), chunk.data.length - position);
+			buffer.put(chunk.data, position, n);
+			position += n;
+		}
+	}
+
+	private void drain(ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while( buffer.hasRemaining() ) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * All chunks of a capture file in the order they were recorded.
+	 */
+	public static List<Chunk> read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			for( int i=0 ; i<MAGIC.length ; i++ ) {
+				if ( magic[i] != MAGIC[i] ) {
+					throw new IOException(file + " is not a tc65sh capture file");
+				}
+			}
+			in.readLong(); // start time
+			List<Chunk> chunks = new ArrayList<Chunk>();
+			while( true ) {
+				byte direction;
+				try {
+					direction = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				long nanos = in.readLong();
+				int length = in.readInt();
+				if ( (direction != TO_DEVICE && direction != FROM_DEVICE) || length < 0 ) {
+					throw new IOException("corrupt capture file " + file + " after " + chunks.size() + " chunks");
+				}
+				byte[] data = new byte[length];
+				in.readFully(data);
+				chunks.add(new Chunk(direction, nanos, data));
+			}
+			return chunks;
+		} finally {
+			in.close();
+		}
+	}
+
+}
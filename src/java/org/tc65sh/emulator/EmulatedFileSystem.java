@@ -0,0 +1,152 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.emulator;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.tc65sh.device.Obex;
+import org.tc65sh.util.ByteArray;
+
+/**
+ * In-memory file system of the emulated device. Paths use '/' as
+ * separator and are relative to the root folder "a:".
+ */
+public class EmulatedFileSystem {
+
+	public static class Entry {
+
+		public final String name;
+		public final boolean directory;
+		public final Entry parent;
+		public ByteArray content;
+		public Date modified;
+		/** Like the flash file system not case sensitive */
+		public final Map<String,Entry> children = new TreeMap<String,Entry>(String.CASE_INSENSITIVE_ORDER);
+
+		Entry(Entry parent, String name, boolean directory) {
+			this.parent = parent;
+			this.name = name;
+			this.directory = directory;
+			this.modified = new Date();
+		}
+
+	}
+
+	private Entry root = new Entry(null, "a:", true);
+
+	public Entry getRoot() {
+		return root;
+	}
+
+	/**
+	 * Stores a file, creating missing folders on the way.
+	 */
+	public Entry putFile(String path, byte[] content) {
+		String[] names = splitPath(path);
+		if ( names.length == 0 ) throw new RuntimeException("invalid file path '"+path+"'");
+		Entry folder = root;
+		for( int i=0 ; i<names.length-1 ; i++ ) {
+			folder = mkdir(folder, names[i]);
+		}
+		return putFile(folder, names[names.length-1], new ByteArray(content), new Date());
+	}
+
+	public Entry mkdirs(String path) {
+		Entry folder = root;
+		for( String name : splitPath(path) ) {
+			folder = mkdir(folder, name);
+		}
+		return folder;
+	}
+
+	/**
+	 * The entry at path or null if there is none.
+	 */
+	public Entry lookup(String path) {
+		Entry entry = root;
+		for( String name : splitPath(path) ) {
+			entry = entry.children.get(name);
+			if ( entry == null ) return null;
+		}
+		return entry;
+	}
+
+	public void erase() {
+		root = new Entry(null, "a:", true);
+	}
+
+	Entry mkdir(Entry folder, String name) {
+		Entry entry = folder.children.get(name);
+		if ( entry == null ) {
+			entry = new Entry(folder, name, true);
+			folder.children.put(name, entry);
+			folder.modified = new Date();
+		}
+		return entry;
+	}
+
+	Entry putFile(Entry folder, String name, ByteArray content, Date modified) {
+		Entry existing = folder.children.get(name);
+		if ( existing != null ) {
+			name = existing.name; // an overwritten file keeps its spelling
+		}
+		Entry entry = new Entry(folder, name, false);
+		entry.content = content;
+		entry.modified = modified != null ? modified : new Date();
+		folder.children.put(name, entry);
+		folder.modified = new Date();
+		return entry;
+	}
+
+	boolean delete(Entry folder, String name) {
+		Entry entry = folder.children.remove(name);
+		if ( entry != null ) {
+			folder.modified = new Date();
+		}
+		return entry != null;
+	}
+
+	/**
+	 * Folder listing in the x-obex/folder-listing format the TC65 sends.
+	 */
+	String folderListing(Entry folder) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<?xml version=\"1.0\"?>\n");
+		sb.append("<!DOCTYPE folder-listing SYSTEM \"obex-folder-listing.dtd\">\n");
+		sb.append("<folder-listing version=\"1.0\">\n");
+		for( Entry entry : folder.children.values() ) {
+			if ( entry.directory ) {
+				sb.append("<folder name=\"").append(entry.name).append("\" modified=\"").append(Obex.encodeXmlDateTime(entry.modified)).append("\"/>\n");
+			} else {
+				sb.append("<file name=\"").append(entry.name).append("\" size=\"").append(entry.content.length()).append("\" modified=\"").append(Obex.encodeXmlDateTime(entry.modified)).append("\"/>\n");
+			}
+		}
+		sb.append("</folder-listing>\n");
+		return sb.toString();
+	}
+
+	private String[] splitPath(String path) {
+		String norm = path.replace('\\', '/');
+		while( norm.startsWith("/") ) {
+			norm = norm.substring(1);
+		}
+		if ( norm.length() == 0 ) return new String[0];
+		return norm.split("/+");
+	}
+
+}
@@ -0,0 +1,213 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.emulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * One direction of an emulated serial line. Bytes written to the output
+ * stream become readable from the input stream after the time the line
+ * needs to transfer them: 10 bit times per byte at the given baudrate
+ * plus a per-byte latency, plus an optional fixed delay with random
+ * jitter. Bytes may be dropped or garbled with a given probability.
+ */
+public class EmulatedLink {
+
+	private static class Chunk {
+		byte[] data;
+		int position;
+		long deliveryNanos;
+	}
+
+	private final LinkedList<Chunk> queue = new LinkedList<Chunk>();
+	private final long nanosPerByte;
+	private long delayNanos = 0;
+	private long jitterNanos = 0;
+	private double dropProbability = 0;
+	private double garbleProbability = 0;
+	private Random random = new Random();
+	private long lastSerializationNanos = 0;
+	private long lastDeliveryNanos = 0;
+	private long byteCount = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param baudrate line speed, 0 for no limit
+	 * @param latencyNanosPerByte additional delay per byte
+	 */
+	public EmulatedLink(int baudrate, long latencyNanosPerByte) {
+		long bitNanos = baudrate > 0 ? 10L * 1000000000L / baudrate : 0;
+		this.nanosPerByte = bitNanos + latencyNanosPerByte;
+	}
+
+	/**
+	 * Delays every chunk by delayNanos plus a random value up to
+	 * jitterNanos, like half the round trip time of a network link.
+	 */
+	public synchronized void setDelay(long delayNanos, long jitterNanos) {
+		this.delayNanos = delayNanos;
+		this.jitterNanos = jitterNanos;
+	}
+
+	/**
+	 * Drops or garbles each byte with the given probabilities.
+	 */
+	public synchronized void setErrorRates(double dropProbability, double garbleProbability, long seed) {
+		this.dropProbability = dropProbability;
+		this.garbleProbability = garbleProbability;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Number of bytes written to the link so far.
+	 */
+	public synchronized long getByteCount() {
+		return byteCount;
+	}
+
+	private synchronized void write(byte[] b, int off, int len) throws IOException {
+		if ( closed ) throw new IOException("link closed");
+		if ( len == 0 ) return;
+		byteCount += len;
+		Chunk chunk = new Chunk();
+		chunk.data = distort(b, off, len);
+		long start = Math.max(System.nanoTime(), lastSerializationNanos);
+		lastSerializationNanos = start + len * nanosPerByte;
+		long jitter = jitterNanos > 0 ? (long) (random.nextDouble() * jitterNanos) : 0;
+		// chunks never overtake each other
+		chunk.deliveryNanos = Math.max(lastSerializationNanos + delayNanos + jitter, lastDeliveryNanos);
+		lastDeliveryNanos = chunk.deliveryNanos;
+		if ( chunk.data.length > 0 ) {
+			queue.add(chunk);
+			notifyAll();
+		}
+	}
+
+	private byte[] distort(byte[] b, int off, int len) {
+		if ( dropProbability <= 0 && garbleProbability <= 0 ) {
+			byte[] data = new byte[len];
+			System.arraycopy(b, off, data, 0, len);
+			return data;
+		}
+		byte[] data = new byte[len];
+		int n = 0;
+		for( int i=off ; i<off+len ; i++ ) {
+			if ( random.nextDouble() < dropProbability ) continue;
+			byte v = b[i];
+			if ( random.nextDouble() < garbleProbability ) {
+				v ^= (byte) (1 << random.nextInt(8));
+			}
+			data[n++] = v;
+		}
+		if ( n == len ) return data;
+		byte[] result = new byte[n];
+		System.arraycopy(data, 0, result, 0, n);
+		return result;
+	}
+
+	private synchronized int read(byte[] b, int off, int len) throws IOException {
+		while( true ) {
+			if ( queue.isEmpty() ) {
+				if ( closed ) return -1;
+				waitNanos(0);
+				continue;
+			}
+			Chunk chunk = queue.getFirst();
+			long delay = chunk.deliveryNanos - System.nanoTime();
+			if ( delay > 0 ) {
+				waitNanos(delay);
+				continue;
+			}
+			int n = Math.min(len, chunk.data.length - chunk.position);
+			System.arraycopy(chunk.data, chunk.position, b, off, n);
+			chunk.position += n;
+			if ( chunk.position == chunk.data.length ) {
+				queue.removeFirst();
+			}
+			return n;
+		}
+	}
+
+	private synchronized int available() {
+		if ( queue.isEmpty() ) return 0;
+		Chunk chunk = queue.getFirst();
+		if ( chunk.deliveryNanos > System.nanoTime() ) return 0;
+		return chunk.data.length - chunk.position;
+	}
+
+	private void waitNanos(long nanos) throws IOException {
+		try {
+			if ( nanos <= 0 ) {
+				wait();
+			} else {
+				wait(nanos / 1000000, (int) (nanos % 1000000));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted");
+		}
+	}
+
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	public InputStream getInputStream() {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				int n = EmulatedLink.this.read(b, 0, 1);
+				return n < 0 ? -1 : b[0] & 0xFF;
+			}
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return EmulatedLink.this.read(b, off, len);
+			}
+			@Override
+			public int available() {
+				return EmulatedLink.this.available();
+			}
+			@Override
+			public void close() {
+				EmulatedLink.this.close();
+			}
+		};
+	}
+
+	public OutputStream getOutputStream() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				EmulatedLink.this.write(new byte[] { (byte) b }, 0, 1);
+			}
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				EmulatedLink.this.write(b, off, len);
+			}
+			@Override
+			public void close() {
+				EmulatedLink.this.close();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,454 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.emulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+
+import org.tc65sh.device.Obex;
+import org.tc65sh.device.Transport;
+import org.tc65sh.util.ByteArray;
+import org.tc65sh.util.Log;
+
+/**
+ * Emulates the part of the TC65 serial protocol that tc65sh uses: AT
+ * commands, switching to OBEX with AT^SQWE=3, the +++ escape and the OBEX
+ * file transfer requests, backed by an EmulatedFileSystem. The emulator
+ * is connected to Device as a Transport.
+ */
+public class Tc65Emulator implements Transport, Runnable {
+
+	public static final String IDENTITY = "Cinterion\r\nTC65i\r\nREVISION 02.000";
+
+	private static final byte RESPONSE_SUCCESS = (byte) 0xA0;
+	private static final byte RESPONSE_CONTINUE = (byte) 0x90;
+	private static final byte RESPONSE_BAD_REQUEST = (byte) 0xC0;
+	private static final byte RESPONSE_NOT_FOUND = (byte) 0xC4;
+	private static final long CONNECTION_ID = 1;
+
+	private final EmulatedFileSystem fileSystem;
+	private final int maxPacketLength;
+	private final boolean srmSupported;
+	private final EmulatedLink toDevice;
+	private final EmulatedLink fromDevice;
+	private final InputStream in;
+	private final OutputStream out;
+	private Thread thread;
+	private volatile boolean mustShutdown = false;
+	private volatile int requestCount = 0;
+
+	private ByteArray received = new ByteArray(1024);
+	private boolean obexMode = false;
+	private boolean echo = true;
+	private int clientMaxPacketLength = 255;
+	private EmulatedFileSystem.Entry currentFolder;
+
+	// PUT in progress
+	private String putName;
+	private Date putDate;
+	private ByteArray putContent;
+	private boolean putSrm;
+
+	// GET in progress
+	private ByteArray getContent;
+	private int getOffset;
+	private boolean getSrm;
+
+	public Tc65Emulator() {
+		this(new EmulatedFileSystem(), 0, 0, 0xffff, false);
+	}
+
+	/**
+	 * @param baudrate emulated line speed, 0 for no limit
+	 * @param latencyNanosPerByte additional delay per byte and direction
+	 * @param maxPacketLength max OBEX packet length the emulator accepts and sends
+	 * @param srmSupported whether OBEX single response mode is confirmed
+	 */
+	public Tc65Emulator(EmulatedFileSystem fileSystem, int baudrate, long latencyNanosPerByte, int maxPacketLength, boolean srmSupported) {
+		this(fileSystem, new EmulatedLink(baudrate, latencyNanosPerByte), new EmulatedLink(baudrate, latencyNanosPerByte), maxPacketLength, srmSupported);
+	}
+
+	/**
+	 * Emulator on the given links, toDevice carries the bytes tc65sh sends.
+	 */
+	public Tc65Emulator(EmulatedFileSystem fileSystem, EmulatedLink toDevice, EmulatedLink fromDevice, int maxPacketLength, boolean srmSupported) {
+		this.fileSystem = fileSystem;
+		this.maxPacketLength = maxPacketLength;
+		this.srmSupported = srmSupported;
+		this.toDevice = toDevice;
+		this.fromDevice = fromDevice;
+		this.in = toDevice.getInputStream();
+		this.out = fromDevice.getOutputStream();
+		this.currentFolder = fileSystem.getRoot();
+		thread = new Thread(this, "tc65sh-emulator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public EmulatedFileSystem getFileSystem() {
+		return fileSystem;
+	}
+
+	/**
+	 * Number of AT commands and OBEX requests received so far, i.e. the
+	 * round trips tc65sh made.
+	 */
+	public int getRequestCount() {
+		return requestCount;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return fromDevice.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return toDevice.getOutputStream();
+	}
+
+	@Override
+	public void close() {
+		mustShutdown = true;
+		toDevice.close();
+		fromDevice.close();
+	}
+
+	@Override
+	public void run() {
+		byte[] buf = new byte[4096];
+		try {
+			send("\r\n^SYSSTART\r\n");
+			while( ! mustShutdown ) {
+				int n = in.read(buf, 0, buf.length);
+				if ( n < 0 ) break;
+				received.append(buf, 0, n);
+				while( obexMode ? processObex() : processAt() ) {
+					// process everything that is complete
+				}
+			}
+		} catch (IOException e) {
+			if ( ! mustShutdown ) {
+				Log.info("emulator stopped", e);
+			}
+		}
+	}
+
+	// AT mode
+
+	private boolean processAt() throws IOException {
+		int end = -1;
+		for( int i=0 ; i<received.length() && end < 0 ; i++ ) {
+			if ( received.byteAt(i) == '\r' ) end = i;
+		}
+		if ( end < 0 ) return false;
+		String line = received.subArray(0, end).toString("ISO-8859-1");
+		received.skip(end+1);
+		// leftovers of +++ escape attempts and line feeds
+		line = line.replace("\n", "");
+		while( line.startsWith("+") ) {
+			line = line.substring(1);
+		}
+		if ( line.length() == 0 ) return true;
+		if ( echo ) {
+			send(line+"\r");
+		}
+		requestCount++;
+		executeAtCommand(line.trim().toUpperCase());
+		return true;
+	}
+
+	private void executeAtCommand(String cmd) throws IOException {
+		if ( ! cmd.startsWith("AT") ) {
+			send("\r\nERROR\r\n");
+		} else if ( cmd.equals("ATE") || cmd.equals("ATE0") ) {
+			echo = false;
+			send("\r\nOK\r\n");
+		} else if ( cmd.equals("ATE1") ) {
+			echo = true;
+			send("\r\nOK\r\n");
+		} else if ( cmd.equals("ATI") ) {
+			send("\r\n"+IDENTITY+"\r\n\r\nOK\r\n");
+		} else if ( cmd.equals("AT^SQWE=3") ) {
+			send("\r\nOK\r\n");
+			obexMode = true;
+		} else {
+			// AT, AT\Q3, AT^SQWE=0 and anything else
+			send("\r\nOK\r\n");
+		}
+	}
+
+	// OBEX mode
+
+	private boolean processObex() throws IOException {
+		if ( received.length() >= 3 && received.byteAt(0) == '+' && received.byteAt(1) == '+' && received.byteAt(2) == '+' ) {
+			received.skip(3);
+			obexMode = false;
+			echo = true;
+			send("\r\nOK\r\n");
+			return true;
+		}
+		if ( received.length() < 3 ) return false;
+		int frameLength = (received.intAt(1) << 8) | received.intAt(2);
+		if ( frameLength < 3 ) {
+			// garbage, resynchronize on the next byte
+			received.skip(1);
+			return true;
+		}
+		if ( received.length() < frameLength ) return false;
+		ByteArray frame = new ByteArray(received.array(), received.arrayOffset(), frameLength);
+		received.skip(frameLength);
+		requestCount++;
+		processObexRequest(frame);
+		return true;
+	}
+
+	private void processObexRequest(ByteArray frame) throws IOException {
+		int opcode = frame.intAt(0);
+		switch ( opcode & 0x7F ) {
+		case Obex.REQUEST_CONNECT & 0x7F:
+			if ( frame.length() >= 7 ) {
+				clientMaxPacketLength = (frame.intAt(5) << 8) | frame.intAt(6);
+			}
+			currentFolder = fileSystem.getRoot();
+			ByteArray connectResponse = new ByteArray();
+			connectResponse.append(0x10); // obex version
+			connectResponse.append(0x00); // flags
+			connectResponse.append(Obex.shortToBytes(maxPacketLength));
+			connectResponse.append(Obex.HEADER_CONNECTION_ID);
+			connectResponse.append(Obex.intToBytes((int) CONNECTION_ID));
+			sendResponse(RESPONSE_SUCCESS, connectResponse);
+			break;
+		case Obex.REQUEST_DISCONNECT & 0x7F:
+			sendResponse(RESPONSE_SUCCESS, null);
+			break;
+		case Obex.REQUEST_SETPATH & 0x7F:
+			setPath(frame);
+			break;
+		case Obex.REQUEST_PUT:
+			put(frame, (opcode & Obex.REQUEST_FINAL & 0xFF) != 0);
+			break;
+		case Obex.REQUEST_GET:
+			get(frame);
+			break;
+		case Obex.REQUEST_ABORT & 0x7F:
+			putName = null;
+			putContent = null;
+			getContent = null;
+			sendResponse(RESPONSE_SUCCESS, null);
+			break;
+		default:
+			sendResponse(RESPONSE_BAD_REQUEST, null);
+		}
+	}
+
+	private void setPath(ByteArray frame) throws IOException {
+		int flags = frame.intAt(3);
+		Headers h = new Headers(frame, 5);
+		if ( h.name == null ) {
+			if ( currentFolder.parent != null ) {
+				currentFolder = currentFolder.parent;
+			}
+			sendResponse(RESPONSE_SUCCESS, null);
+			return;
+		}
+		EmulatedFileSystem.Entry entry = currentFolder.children.get(h.name);
+		if ( entry == null && flags == (Obex.FLAG_SETPATH_CREATE & 0xFF) ) {
+			entry = fileSystem.mkdir(currentFolder, h.name);
+		}
+		if ( entry == null || ! entry.directory ) {
+			sendResponse(RESPONSE_NOT_FOUND, null);
+		} else {
+			currentFolder = entry;
+			sendResponse(RESPONSE_SUCCESS, null);
+		}
+	}
+
+	private void put(ByteArray frame, boolean isFinal) throws IOException {
+		Headers h = new Headers(frame, 3);
+		if ( h.appParameters != null && h.appParameters.length() >= 1 && h.appParameters.intAt(0) == 0x31 ) {
+			// erase disk
+			fileSystem.erase();
+			currentFolder = fileSystem.getRoot();
+			sendResponse(RESPONSE_SUCCESS, null);
+			return;
+		}
+		if ( putName == null ) {
+			if ( h.name == null ) {
+				sendResponse(RESPONSE_BAD_REQUEST, null);
+				return;
+			}
+			if ( h.body == null && isFinal ) {
+				// PUT without body deletes, the TC65 does not complain about missing files
+				fileSystem.delete(currentFolder, h.name);
+				sendResponse(RESPONSE_SUCCESS, null);
+				return;
+			}
+			putName = h.name;
+			putDate = h.time;
+			putContent = new ByteArray(h.length > 0 ? (int) h.length : 512);
+			putSrm = h.srm && srmSupported;
+			if ( h.body != null ) {
+				putContent.append(h.body);
+			}
+			if ( putSrm && ! isFinal ) {
+				// the first response confirms single response mode
+				ByteArray srmHeader = new ByteArray();
+				srmHeader.append(Obex.HEADER_SRM);
+				srmHeader.append(Obex.SRM_ENABLE);
+				sendResponse(RESPONSE_CONTINUE, srmHeader);
+				return;
+			}
+		} else if ( h.body != null ) {
+			putContent.append(h.body);
+		}
+		if ( isFinal ) {
+			fileSystem.putFile(currentFolder, putName, putContent, putDate);
+			putName = null;
+			putContent = null;
+			sendResponse(RESPONSE_SUCCESS, null);
+		} else if ( ! putSrm ) {
+			sendResponse(RESPONSE_CONTINUE, null);
+		}
+	}
+
+	private void get(ByteArray frame) throws IOException {
+		Headers h = new Headers(frame, 3);
+		ByteArray extra = new ByteArray();
+		if ( h.type != null || h.name != null ) {
+			if ( "x-obex/folder-listing".equals(h.type) ) {
+				getContent = new ByteArray(fileSystem.folderListing(currentFolder), "UTF-8");
+			} else {
+				EmulatedFileSystem.Entry entry = h.name != null ? currentFolder.children.get(h.name) : null;
+				if ( entry == null || entry.directory ) {
+					sendResponse(RESPONSE_NOT_FOUND, null);
+					return;
+				}
+				getContent = entry.content;
+				extra.append(Obex.HEADER_LENGTH);
+				extra.append(Obex.intToBytes(getContent.length()));
+			}
+			getOffset = 0;
+			getSrm = h.srm && srmSupported;
+			if ( getSrm ) {
+				extra.append(Obex.HEADER_SRM);
+				extra.append(Obex.SRM_ENABLE);
+			}
+		} else if ( getContent == null ) {
+			sendResponse(RESPONSE_BAD_REQUEST, null);
+			return;
+		}
+		sendGetPart(extra);
+		while( getSrm && getContent != null ) {
+			sendGetPart(new ByteArray());
+		}
+	}
+
+	private void sendGetPart(ByteArray headers) throws IOException {
+		int packetLength = Math.min(maxPacketLength, clientMaxPacketLength);
+		int partLength = Math.max(packetLength - 3 - headers.length() - 3, 0);
+		partLength = Math.min(partLength, getContent.length() - getOffset);
+		boolean last = getOffset + partLength >= getContent.length();
+		headers.append(last ? Obex.HEADER_END_OF_BODY : Obex.HEADER_BODY);
+		headers.append(Obex.shortToBytes(3+partLength));
+		headers.append(getContent.subArray(getOffset, partLength));
+		getOffset += partLength;
+		if ( last ) {
+			getContent = null;
+		}
+		sendResponse(last ? RESPONSE_SUCCESS : RESPONSE_CONTINUE, headers);
+	}
+
+	private void sendResponse(byte code, ByteArray payload) throws IOException {
+		ByteArray response = new ByteArray();
+		response.append(code);
+		int length = 3 + (payload != null ? payload.length() : 0);
+		response.append(Obex.shortToBytes(length));
+		if ( payload != null ) {
+			response.append(payload);
+		}
+		response.writeTo(out);
+	}
+
+	private void send(String s) throws IOException {
+		out.write(s.getBytes("ISO-8859-1"));
+	}
+
+	/**
+	 * The request headers the emulator cares about.
+	 */
+	private static class Headers {
+
+		String name;
+		String type;
+		Date time;
+		long length = -1;
+		ByteArray body;
+		ByteArray appParameters;
+		boolean srm;
+
+		Headers(ByteArray frame, int position) throws IOException {
+			while( position < frame.length() ) {
+				byte id = frame.byteAt(position);
+				int headerLength;
+				switch ( id & 0xC0 ) {
+				case 0x80:
+					headerLength = 2;
+					break;
+				case 0xC0:
+					headerLength = 5;
+					break;
+				default:
+					headerLength = (frame.intAt(position+1) << 8) | frame.intAt(position+2);
+				}
+				if ( headerLength < 2 || position + headerLength > frame.length() || ((id & 0x80) == 0 && headerLength < 3) ) {
+					throw new IOException("invalid obex header 0x"+Integer.toHexString(id & 0xFF));
+				}
+				ByteArray value = (id & 0x80) == 0 ? frame.subArray(position+3, headerLength-3) : null;
+				if ( id == Obex.HEADER_NAME ) {
+					name = decodeUtf16(value);
+				} else if ( id == Obex.HEADER_TYPE ) {
+					type = value.toString("ISO-8859-1").replace("\0", "");
+				} else if ( id == Obex.HEADER_TIME ) {
+					time = Obex.decodeXmlDateTime(value.toString("ISO-8859-1"));
+				} else if ( id == Obex.HEADER_LENGTH ) {
+					length = ((long) frame.intAt(position+1) << 24) | (frame.intAt(position+2) << 16) | (frame.intAt(position+3) << 8) | frame.intAt(position+4);
+				} else if ( id == Obex.HEADER_BODY || id == Obex.HEADER_END_OF_BODY ) {
+					body = value;
+				} else if ( id == Obex.HEADER_APP_PARAMETERS ) {
+					appParameters = value;
+				} else if ( id == Obex.HEADER_SRM ) {
+					srm = frame.byteAt(position+1) == Obex.SRM_ENABLE;
+				}
+				position += headerLength;
+			}
+		}
+
+		private static String decodeUtf16(ByteArray b) {
+			StringBuilder sb = new StringBuilder();
+			for( int i=0 ; i+1<b.length() ; i+=2 ) {
+				char c = (char) ((b.intAt(i) << 8) | b.intAt(i+1));
+				if ( c == 0 ) break;
+				sb.append(c);
+			}
+			return sb.toString();
+		}
+
+	}
+
+}
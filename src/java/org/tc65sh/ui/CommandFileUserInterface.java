@@ -20,7 +20,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * sample command file:
@@ -31,50 +32,68 @@ import java.util.LinkedList;
  * get test.txt device_test.txt
  * disconnect
  *    
+ * The file is read while the commands run. Planning works on one segment
+ * at a time, a segment ends after a barrier command or MAX_SEGMENT_LENGTH
+ * commands, see CommandPlanner.
  */
-public class CommandFileUserInterface implements UserInterface {
+public class CommandFileUserInterface extends BatchUserInterface {
+
+	public static final int MAX_SEGMENT_LENGTH = 100;
+
+	private final File inputFile;
+	private LineNumberReader reader;
+	private boolean plan = false;
+	private boolean reorder = false;
 
-	private LinkedList<String> commands = new LinkedList<String>();
-	
 	public CommandFileUserInterface(File inputFile) throws IOException {
-		LineNumberReader r = null;
-		try {
-			r = new LineNumberReader(new InputStreamReader(new FileInputStream(inputFile)));
-			String line;
-			while( (line=r.readLine()) != null ) {
-				line = line.trim();
-				if ( line.length() > 0 && ! line.startsWith("#") && ! line.startsWith("//") ) {
-					commands.add(line);
-				}
-			}
-		} finally {
-			if ( r != null ) r.close();
-		}
+		this.inputFile = inputFile;
+		reader = new LineNumberReader(new InputStreamReader(new FileInputStream(inputFile)));
 	}
-	
+
 	@Override
-	public String readCommand() {
-		if ( commands.isEmpty() ) return null;
-		return commands.removeFirst();
+	public void planCommands(boolean reorder) {
+		this.plan = true;
+		this.reorder = reorder;
+		super.planCommands(reorder);
 	}
 
 	@Override
-	public void println(String message) {
-		println(message, null);
+	public String peekCommand() {
+		readSegment();
+		return super.peekCommand();
 	}
 
 	@Override
-	public void println(String message, Throwable t) {
-		System.out.println(message);
-		if ( t != null ) {
-			t.printStackTrace(System.out);
-		}
+	public String readCommand() {
+		readSegment();
+		return super.readCommand();
 	}
 
-	@Override
-	public void echoCommand(String cmdline) {
-		System.out.println(cmdline);
+	/**
+	 * Reads the next segment once all commands of the previous one are
+	 * taken.
+	 */
+	private void readSegment() {
+		if ( ! commands.isEmpty() || reader == null ) return;
+		List<String> segment = new ArrayList<String>();
+		try {
+			while( segment.size() < MAX_SEGMENT_LENGTH ) {
+				String line = reader.readLine();
+				if ( line == null ) {
+					reader.close();
+					reader = null;
+					break;
+				}
+				line = line.trim();
+				if ( line.length() > 0 && ! line.startsWith("#") && ! line.startsWith("//") ) {
+					segment.add(line);
+					if ( CommandPlanner.isBarrier(line) ) break;
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("cannot read " + inputFile + " at line " + reader.getLineNumber() + ": " + e.getMessage(), e);
+		}
+		commands.addAll(plan ? CommandPlanner.plan(segment, reorder) : segment);
 	}
 
-	
 }
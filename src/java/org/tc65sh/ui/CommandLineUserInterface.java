@@ -15,13 +15,10 @@
 // 
 package org.tc65sh.ui;
 
-import java.util.LinkedList;
 import java.util.StringTokenizer;
 
-public class CommandLineUserInterface implements UserInterface {
+public class CommandLineUserInterface extends BatchUserInterface {
 
-	private LinkedList<String> commands = new LinkedList<String>();
-	
 	public CommandLineUserInterface( String commandLineCommands ) {
 		StringTokenizer tok = new StringTokenizer(commandLineCommands,";");
 		
@@ -32,29 +29,5 @@ public class CommandLineUserInterface implements UserInterface {
 			}
 		}
 	}
-	
-	@Override
-	public String readCommand() {
-		if ( commands.isEmpty() ) return null;
-		return commands.removeFirst();
-	}
-	
-	@Override
-	public void println(String message) {
-		println(message, null);
-	}
-
-	@Override
-	public void println(String message, Throwable t) {
-		System.out.println(message);
-		if ( t != null ) {
-			t.printStackTrace(System.out);
-		}
-	}
-
-	@Override
-	public void echoCommand(String cmdline) {
-		System.out.println(cmdline);
-	}
 
 }
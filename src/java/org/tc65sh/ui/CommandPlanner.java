@@ -0,0 +1,141 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rearranges batch commands so the device switches between AT and OBEX
+ * mode less often. Every switch costs an OBEX DISCONNECT, the +++ escape
+ * and the AT^SQWE sequence to get back.
+ *
+ * Consecutive extended AT commands (AT+..., AT^...) are chained into one
+ * V.25ter command line, e.g. "AT+CSQ;+CREG?". With reorder set, AT
+ * commands are moved in front of the file commands around them. Commands
+ * that change the mode or state of the device (dial, reset, shutdown,
+ * baudrate, SMS prompt, ...) and sleep are never moved or chained, and
+ * nothing moves across them.
+ */
+public abstract class CommandPlanner {
+
+	/** Kept short, V.25ter only requires devices to accept 40 characters */
+	public static final int MAX_CHAINED_LINE_LENGTH = 128;
+
+	private static final String[] BASIC_BARRIERS = { "A", "D", "H", "O", "Z", "&F", "&W" };
+	private static final String[] EXTENDED_BARRIERS = { "+CFUN", "+CMGS", "+CMGW", "+IPR", "^SMSO", "^SQWE", "^SJRA", "^SPOW" };
+
+	public static List<String> plan(List<String> commands, boolean reorder) {
+		List<String> result = reorder ? reorder(commands) : new ArrayList<String>(commands);
+		return chain(result);
+	}
+
+	public static boolean isAtCommand(String command) {
+		return command.length() >= 2 && command.substring(0, 2).equalsIgnoreCase("AT");
+	}
+
+	/**
+	 * Moves AT commands in front of the other commands between two barriers,
+	 * keeping the order within each kind.
+	 */
+	private static List<String> reorder(List<String> commands) {
+		List<String> result = new ArrayList<String>();
+		List<String> atCommands = new ArrayList<String>();
+		List<String> others = new ArrayList<String>();
+		for( String command : commands ) {
+			if ( isBarrier(command) ) {
+				result.addAll(atCommands);
+				result.addAll(others);
+				result.add(command);
+				atCommands.clear();
+				others.clear();
+			} else if ( isAtCommand(command) ) {
+				atCommands.add(command);
+			} else {
+				others.add(command);
+			}
+		}
+		result.addAll(atCommands);
+		result.addAll(others);
+		return result;
+	}
+
+	private static List<String> chain(List<String> commands) {
+		List<String> result = new ArrayList<String>();
+		List<String> group = new ArrayList<String>();
+		int lineLength = 0;
+		for( String command : commands ) {
+			if ( isChainable(command) ) {
+				String body = command.substring(2).trim();
+				if ( ! group.isEmpty() && lineLength + 1 + body.length() > MAX_CHAINED_LINE_LENGTH ) {
+					result.add(join(group));
+					group.clear();
+				}
+				lineLength = group.isEmpty() ? 2 + body.length() : lineLength + 1 + body.length();
+				group.add(command);
+			} else {
+				if ( ! group.isEmpty() ) {
+					result.add(join(group));
+					group.clear();
+				}
+				result.add(command);
+			}
+		}
+		if ( ! group.isEmpty() ) {
+			result.add(join(group));
+		}
+		return result;
+	}
+
+	private static String join(List<String> group) {
+		if ( group.size() == 1 ) return group.get(0);
+		StringBuilder line = new StringBuilder("AT");
+		for( String command : group ) {
+			if ( line.length() > 2 ) {
+				line.append(';');
+			}
+			line.append(command.substring(2).trim());
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Extended commands can be separated by semicolon. Basic commands are
+	 * not chained, their parameters make concatenation ambiguous.
+	 */
+	private static boolean isChainable(String command) {
+		if ( ! isAtCommand(command) || isBarrier(command) ) return false;
+		String body = command.substring(2).trim();
+		if ( body.length() == 0 || body.indexOf(';') >= 0 ) return false;
+		return body.charAt(0) == '+' || body.charAt(0) == '^';
+	}
+
+	/**
+	 * Commands that nothing is moved across or chained with.
+	 */
+	static boolean isBarrier(String command) {
+		if ( command.startsWith("sleep") ) return true;
+		if ( ! isAtCommand(command) ) return false;
+		String body = command.substring(2).trim().toUpperCase();
+		if ( body.length() == 0 ) return false;
+		String[] barriers = body.charAt(0) == '+' || body.charAt(0) == '^' ? EXTENDED_BARRIERS : BASIC_BARRIERS;
+		for( String barrier : barriers ) {
+			if ( body.startsWith(barrier) ) return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,156 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.ui;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedList;
+import java.util.StringTokenizer;
+
+import org.tc65sh.util.Log;
+
+/**
+ * Serves clients on a localhost port while the device session stays
+ * open. A client sends one line of commands separated by semicolon and
+ * receives the output, followed by a line EXIT_MARKER and the exit code
+ * (0 if all commands ran, 1 if one failed). Clients are served one after
+ * the other, one that does not send its line within 10 s is dropped.
+ * The command "shutdown" ends the daemon. Local file paths in commands
+ * are relative to the working directory of the daemon.
+ */
+public class DaemonUserInterface implements UserInterface {
+
+	public static final String EXIT_MARKER = "#tc65sh-exit ";
+	public static final String SHUTDOWN_COMMAND = "shutdown";
+
+	/** Time a client has to send its command line after connecting */
+	private static final int READ_TIMEOUT_MILLIS = 10000;
+
+	private final ServerSocket serverSocket;
+	private Socket clientSocket = null;
+	private PrintStream out = null;
+	private LinkedList<String> commands = new LinkedList<String>();
+	private int exitCode = 0;
+
+	public DaemonUserInterface(int port) throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		Log.info("daemon listening on " + serverSocket.getLocalSocketAddress());
+	}
+
+	/**
+	 * Drops the remaining commands of the current client, which will get
+	 * exit code 1.
+	 */
+	public void failCommands() {
+		commands.clear();
+		exitCode = 1;
+	}
+
+	@Override
+	public String readCommand() {
+		while( commands.isEmpty() ) {
+			finishClient();
+			if ( ! acceptClient() ) return null;
+		}
+		String command = commands.removeFirst();
+		if ( command.equals(SHUTDOWN_COMMAND) ) {
+			Log.info("daemon shutting down");
+			finishClient();
+			safeClose(serverSocket);
+			return null;
+		}
+		return command;
+	}
+
+	private boolean acceptClient() {
+		Socket socket = null;
+		try {
+			socket = serverSocket.accept();
+			Log.debug(getClass(), "client connection from " + socket.getRemoteSocketAddress());
+			socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			String line = in.readLine();
+			clientSocket = socket;
+			out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+			exitCode = 0;
+			if ( line != null ) {
+				StringTokenizer tok = new StringTokenizer(line, ";");
+				while( tok.hasMoreTokens() ) {
+					String cmd = tok.nextToken().trim();
+					if ( cmd.length() > 0 && ! cmd.equals("exit") ) {
+						commands.add(cmd);
+					}
+				}
+			}
+			Log.setThreadOutput(out);
+			return true;
+		} catch (IOException e) {
+			if ( serverSocket.isClosed() ) return false;
+			Log.info("client connection failed", e);
+			safeClose(socket);
+			clientSocket = null;
+			out = null;
+			commands.clear();
+			return true;
+		}
+	}
+
+	private void finishClient() {
+		if ( clientSocket == null ) return;
+		Log.setThreadOutput(null);
+		out.println(EXIT_MARKER + exitCode);
+		out.flush();
+		safeClose(clientSocket);
+		clientSocket = null;
+		out = null;
+	}
+
+	@Override
+	public void println(String message) {
+		println(message, null);
+	}
+
+	@Override
+	public void println(String message, Throwable t) {
+		if ( out == null ) return;
+		out.println(message);
+		if ( t != null ) {
+			t.printStackTrace(out);
+		}
+	}
+
+	@Override
+	public void echoCommand(String cmdline) {
+		Log.debug(getClass(), "executing " + cmdline);
+	}
+
+	private void safeClose(Closeable closeable) {
+		try {
+			if ( closeable != null ) {
+				closeable.close();
+			}
+		} catch (Exception e) {
+			Log.debug(getClass(), "cannot close a socket", e);
+		}
+	}
+
+}
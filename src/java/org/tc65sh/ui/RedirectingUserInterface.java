@@ -0,0 +1,72 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.ui;
+
+import java.io.PrintStream;
+
+/**
+ * Reads the commands of another user interface and prints everything to
+ * a stream, e.g. the log file of one device in fleet mode. "${port}" in a
+ * command is replaced by the given port id, so each device can use its
+ * own local files.
+ */
+public class RedirectingUserInterface implements UserInterface {
+
+	private final UserInterface commands;
+	private final PrintStream out;
+	private final String portId;
+	private int commandCount = 0;
+
+	public RedirectingUserInterface(UserInterface commands, PrintStream out, String portId) {
+		this.commands = commands;
+		this.out = out;
+		this.portId = portId;
+	}
+
+	/**
+	 * Number of commands read so far.
+	 */
+	public int getCommandCount() {
+		return commandCount;
+	}
+
+	@Override
+	public String readCommand() {
+		String cmd = commands.readCommand();
+		if ( cmd == null ) return null;
+		commandCount++;
+		return cmd.replace("${port}", portId);
+	}
+
+	@Override
+	public void println(String message) {
+		println(message, null);
+	}
+
+	@Override
+	public void println(String message, Throwable t) {
+		out.println(message);
+		if ( t != null ) {
+			t.printStackTrace(out);
+		}
+	}
+
+	@Override
+	public void echoCommand(String cmdline) {
+		out.println(cmdline);
+	}
+
+}
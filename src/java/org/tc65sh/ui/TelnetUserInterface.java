@@ -15,89 +15,295 @@
 // 
 package org.tc65sh.ui;
 
+import org.tc65sh.util.ByteArray;
 import org.tc65sh.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
+/**
+ * Telnet server for any number of clients. One selector thread does all
+ * network I/O: it splits the input of each client into lines and queues
+ * them as commands, and writes the buffered output of each client when
+ * the socket can take it. The commands of all clients run one after the
+ * other in the order they arrived; the output of a command goes to the
+ * client that sent it. "exit" closes the connection of the client,
+ * "shutdown" closes all of them and ends the session.
+ */
 public class TelnetUserInterface implements UserInterface, Runnable {
 
-	private int port;
-	private Socket clientSocket;
-	private boolean mustShutdown = false;
+	public static final String PROMPT = "tc65sh>";
+	public static final String SHUTDOWN_COMMAND = "shutdown";
+
+	private static final int READ_BUFFER_SIZE = 4096;
+	private static final int MAX_LINE_LENGTH = 4096;
+	private static final int MAX_PENDING_OUTPUT = 1024 * 1024;
+
+	private static class Client {
+
+		final SocketChannel channel;
+		final String name;
+		final StringBuilder line = new StringBuilder();
+		final ByteArray output = new ByteArray(1024); // guarded by itself
+		volatile boolean closing = false;
+		volatile boolean closed = false;
+
+		Client(SocketChannel channel) {
+			this.channel = channel;
+			this.name = channel.socket().getRemoteSocketAddress().toString();
+		}
+
+	}
+
+	private static class Command {
+
+		final Client client;
+		final String line;
+
+		Command(Client client, String line) {
+			this.client = client;
+			this.line = line;
+		}
+
+	}
+
+	private final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private final LinkedBlockingQueue<Command> commands = new LinkedBlockingQueue<Command>();
+	private final ConcurrentLinkedQueue<Client> outputPending = new ConcurrentLinkedQueue<Client>();
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private Client current = null;
+	private volatile boolean mustShutdown = false;
 
 	public TelnetUserInterface(int port) throws IOException {
 		super();
-		this.port = port;
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 
-		Thread thread = new Thread(this);
+		Thread thread = new Thread(this, "tc65sh-telnet");
 		thread.setDaemon(true);
 		thread.start();
 	}
 
 	@Override
 	public void run() {
+		Log.info("waiting for telnet connections on port " + serverChannel.socket().getLocalPort());
 		try {
-			ServerSocket serverSocket = new ServerSocket(port);
-			Log.info("waiting for telnet connection");
 			while (!mustShutdown) {
-				Socket socket = serverSocket.accept();
-				Log.info("new telnet connection from "+socket.getRemoteSocketAddress().toString());
-				if (clientSocket == null) {
-					clientSocket = socket;
-				} else {
-					socket.getOutputStream().write("another user is currently logged in, please try again later\r\n".getBytes());
-					safeClose(socket);
+				selector.select();
+				Client pending;
+				while ((pending = outputPending.poll()) != null) {
+					updateInterest(pending);
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Client client = (Client) key.attachment();
+					try {
+						if (key.isReadable()) {
+							read(client);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(client);
+						}
+					} catch (IOException e) {
+						Log.info("telnet connection from " + client.name + " failed: " + e.getMessage());
+						close(client);
+					}
 				}
 			}
-			serverSocket.close();
 		} catch (Throwable t) {
 			Log.info("unexpected error in run()", t);
 		}
+		closeAll();
 	}
 
-	@Override
-	public String readCommand() {
-		while (clientSocket == null) {
-			sleep(500);
+	/**
+	 * Selector thread only: writes what output the sockets take at once
+	 * and closes all connections and the server socket.
+	 */
+	private void closeAll() {
+		for (SelectionKey key : selector.keys()) {
+			Client client = (Client) key.attachment();
+			if (client == null) {
+				continue;
+			}
+			try {
+				write(client);
+			} catch (IOException e) {
+				Log.debug(getClass(), "cannot write to " + client.name, e);
+			}
+			close(client);
 		}
-		String command = null;
 		try {
-			clientSocket.getOutputStream().write("tc65sh>".getBytes());
-			StringBuilder buf = new StringBuilder();
-			while (command == null) {
-				int c = clientSocket.getInputStream().read();
-				if (c != 13) {
-					if (c == 10) {
-						command = buf.toString();
-					} else {
-						buf.append((char) c);
-					}
-				}
-				if (c == -1)
-					return null;
-			}
-			if (command.trim().startsWith("exit")) {
-				safeClose(clientSocket);
-				clientSocket = null;
-				command = null;
+			serverChannel.close();
+			selector.close();
+		} catch (IOException e) {
+			Log.debug(getClass(), "cannot close the server socket", e);
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Client client = new Client(channel);
+		channel.register(selector, SelectionKey.OP_READ, client);
+		Log.info("new telnet connection from " + client.name);
+		send(client, PROMPT);
+	}
+
+	/**
+	 * Queues each complete line as a command.
+	 */
+	private void read(Client client) throws IOException {
+		readBuffer.clear();
+		int n = client.channel.read(readBuffer);
+		if (n < 0) {
+			Log.info("telnet connection from " + client.name + " closed");
+			close(client);
+			return;
+		}
+		for (int i = 0; i < n; i++) {
+			char c = (char) (readBuffer.get(i) & 0xFF);
+			if (c == '\n') {
+				commands.add(new Command(client, client.line.toString()));
+				client.line.setLength(0);
+			} else if (c != '\r' && client.line.length() < MAX_LINE_LENGTH) {
+				client.line.append(c);
 			}
+		}
+	}
+
+	private void write(Client client) throws IOException {
+		synchronized (client.output) {
+			ByteArray output = client.output;
+			int n = client.channel.write(ByteBuffer.wrap(output.array(), output.arrayOffset(), output.length()));
+			output.skip(n);
+		}
+		updateInterest(client);
+	}
+
+	/**
+	 * Selector thread only: waits for OP_WRITE while output is pending,
+	 * closes the client once a requested close is due.
+	 */
+	private void updateInterest(Client client) {
+		SelectionKey key = client.channel.keyFor(selector);
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		boolean hasOutput;
+		synchronized (client.output) {
+			hasOutput = client.output.length() > 0;
+		}
+		if (!hasOutput && client.closing) {
+			close(client);
+			return;
+		}
+		key.interestOps(hasOutput ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	private void close(Client client) {
+		client.closed = true;
+		SelectionKey key = client.channel.keyFor(selector);
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			client.channel.close();
 		} catch (IOException e) {
-			Log.info("client connection closed", e);
-			safeClose(clientSocket);
-			clientSocket = null;
+			Log.debug(getClass(), "cannot close a socket", e);
 		}
-		return command;
 	}
 
-	private void sleep(long millis) {
+	/**
+	 * Appends text to the output of the client, the selector thread
+	 * writes it. A client that does not read its output is dropped.
+	 */
+	private void send(Client client, String text) {
+		if (client.closed) {
+			return;
+		}
+		byte[] bytes;
 		try {
-			Thread.sleep(millis);
-		} catch (InterruptedException ex) {
-			// ignore
+			bytes = text.getBytes("ISO-8859-1");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		synchronized (client.output) {
+			if (client.output.length() + bytes.length > MAX_PENDING_OUTPUT) {
+				Log.info("telnet client " + client.name + " does not read its output, closing");
+				client.output.clear();
+				client.closing = true;
+			} else {
+				client.output.append(bytes);
+			}
+		}
+		outputPending.add(client);
+		selector.wakeup();
+	}
+
+	/**
+	 * Prompts the client of the previous command and waits for the next
+	 * command of any client.
+	 */
+	@Override
+	public String readCommand() {
+		if (current != null) {
+			send(current, PROMPT);
+			current = null;
+		}
+		while (true) {
+			Command command;
+			try {
+				command = commands.take();
+			} catch (InterruptedException e) {
+				return null;
+			}
+			if (command.client.closed || command.client.closing) {
+				continue;
+			}
+			if (command.line.trim().startsWith("exit")) {
+				command.client.closing = true;
+				outputPending.add(command.client);
+				selector.wakeup();
+				continue;
+			}
+			if (command.line.trim().equals(SHUTDOWN_COMMAND)) {
+				Log.info("telnet server shutting down, requested by " + command.client.name);
+				send(command.client, "disconnecting the device\r\n");
+				mustShutdown = true;
+				selector.wakeup();
+				return null;
+			}
+			current = command.client;
+			return command.line;
 		}
 	}
 
@@ -108,36 +314,22 @@ public class TelnetUserInterface implements UserInterface, Runnable {
 
 	@Override
 	public void println(String message, Throwable t) {
-		if (clientSocket == null) {
+		if (current == null) {
 			return;
 		}
-		try {
-			OutputStream out = clientSocket.getOutputStream();
-			out.write((message + "\r\n").getBytes());
-			if (t != null) {
-				PrintWriter pw = new PrintWriter(out);
-				t.printStackTrace(pw);
-			}
-			out.flush();
-		} catch (Exception e) {
-			Log.debug(getClass(), "", e);
-		}
-	}
-
-	private void safeClose(Socket sock) {
-		try {
-			if ( sock != null ) {
-				sock.close();
-				sock = null;
-			}
-		} catch (Exception e) {
-			Log.debug(getClass(), "cannot close a socket", e);
+		StringBuilder sb = new StringBuilder(message.length() + 2);
+		sb.append(message).append("\r\n");
+		if (t != null) {
+			ByteArrayOutputStream trace = new ByteArrayOutputStream();
+			t.printStackTrace(new PrintStream(trace, true));
+			sb.append(trace.toString().replace("\n", "\r\n"));
 		}
+		send(current, sb.toString());
 	}
 
 	@Override
 	public void echoCommand(String cmdline) {
-		System.out.println(cmdline);
+		System.out.println(current != null ? current.name + " " + cmdline : cmdline);
 	}
 
 }
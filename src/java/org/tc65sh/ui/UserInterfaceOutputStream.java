@@ -0,0 +1,81 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.ui;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import org.tc65sh.util.ByteArray;
+
+/**
+ * Prints the written bytes line by line through a UserInterface, so large
+ * outputs never have to be held in memory as a whole.
+ */
+public class UserInterfaceOutputStream extends OutputStream {
+
+	private UserInterface ui;
+	private String charsetName;
+	private ByteArray line = new ByteArray(256);
+
+	public UserInterfaceOutputStream(UserInterface ui) {
+		this(ui, Charset.defaultCharset().name());
+	}
+
+	public UserInterfaceOutputStream(UserInterface ui, String charsetName) {
+		this.ui = ui;
+		this.charsetName = charsetName;
+	}
+
+	@Override
+	public void write(int b) {
+		if ( b == '\n' ) {
+			printLine();
+		} else if ( b != '\r' ) {
+			line.append(b);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		int start = off;
+		for( int i=off ; i<off+len ; i++ ) {
+			if ( b[i] == '\n' || b[i] == '\r' ) {
+				line.append(b, start, i-start);
+				if ( b[i] == '\n' ) {
+					printLine();
+				}
+				start = i+1;
+			}
+		}
+		line.append(b, start, off+len-start);
+	}
+
+	/**
+	 * Prints a pending incomplete line.
+	 */
+	@Override
+	public void close() {
+		if ( line.length() > 0 ) {
+			printLine();
+		}
+	}
+
+	private void printLine() {
+		ui.println(line.toString(charsetName));
+		line.clear();
+	}
+
+}
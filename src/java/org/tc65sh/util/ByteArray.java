@@ -15,8 +15,17 @@
 // 
 package org.tc65sh.util;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 
+/**
+ * Growable byte buffer. The backing array grows by doubling, so appending
+ * n bytes costs O(n) in total. subArray() returns a view sharing the
+ * backing array; a view copies its content on the first append.
+ */
 public class ByteArray {
 
 	public static void main(String[] args) {
@@ -27,15 +36,47 @@ public class ByteArray {
 		System.out.println("ABC = "+b.toPrintableString());
 		b = b.subArray(1, 1);
 		System.out.println("B = "+b.toPrintableString());
+		b.append((byte)'X');
+		System.out.println("BX = "+b.toPrintableString());
 		b = new ByteArray(new byte[]{(byte)0x80, 0x13});
 		System.out.println("80 13 = "+b.toHexString());
+		b = new ByteArray("ABCDEF","ISO-8859-1");
+		ByteBuffer bb = ByteBuffer.allocate(4);
+		b.drainTo(bb);
+		System.out.println("EF = "+b.toPrintableString()+", ABCD = "+new String(bb.array(),0,bb.position()));
+		// append cost must grow linearly with the total size
+		byte[] chunk = new byte[512];
+		for( int round=0 ; round<3 ; round++ ) {
+			for( int kb=1024 ; kb<=8192 ; kb*=2 ) {
+				long t1 = System.nanoTime();
+				ByteArray big = new ByteArray();
+				int chunks = kb*1024/chunk.length;
+				for( int i=0 ; i<chunks ; i++ ) {
+					big.append(chunk);
+				}
+				long t2 = System.nanoTime();
+				if ( round == 2 ) {
+					System.out.println("append "+kb+" KB in 512 byte chunks: "+((t2-t1)/1000)+" us, "+((t2-t1)/chunks)+" ns/append");
+				}
+			}
+		}
 	}
 	
+	private static final int MIN_CAPACITY = 16;
+	private static final byte[] EMPTY = new byte[0];
 	
 	private byte[] buffer;
+	private int offset;
+	private int length;
+	private boolean view;   // buffer belongs to another ByteArray
+	private boolean shared; // views of this buffer have been handed out
 
 	public ByteArray() {
-		buffer = new byte[0];
+		buffer = EMPTY;
+	}
+
+	public ByteArray(int initialCapacity) {
+		buffer = new byte[initialCapacity];
 	}
 
 	public ByteArray(String input, String charsetName) {
@@ -44,41 +85,154 @@ public class ByteArray {
 		} catch (UnsupportedEncodingException e) {
 			throw new RuntimeException(e);
 		}
+		length = buffer.length;
 	}
 
 	public ByteArray(byte[] input, int offset, int length) {
-		buffer = new byte[0];
+		buffer = new byte[length];
 		append(input, offset, length);
 	}
 
 	public ByteArray(byte[] input) {
-		buffer = new byte[0];
-		append(input,0,input.length);
+		this(input,0,input.length);
+	}
+
+	private ByteArray(byte[] buffer, int offset, int length, boolean view) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+		this.view = view;
+	}
+
+	/**
+	 * Wraps the remaining bytes of the given buffer without copying if it
+	 * is backed by an accessible array. The position of src is not changed.
+	 */
+	public static ByteArray wrap(ByteBuffer src) {
+		if ( src.hasArray() ) {
+			return new ByteArray(src.array(), src.arrayOffset()+src.position(), src.remaining(), true);
+		}
+		ByteArray r = new ByteArray(src.remaining());
+		r.append(src.duplicate());
+		return r;
 	}
 
 	public byte[] toNewByteArray() {
-		byte[] result = new byte[buffer.length];
-		System.arraycopy(buffer, 0, result, 0, buffer.length);
+		byte[] result = new byte[length];
+		System.arraycopy(buffer, offset, result, 0, length);
 		return result;
 	}
 
+	/**
+	 * Content as an array of exactly length() bytes. Returns the backing
+	 * array if it happens to fit, a copy otherwise. Prefer array(),
+	 * arrayOffset() and length() on hot paths.
+	 */
 	public byte[] getBuffer() {
+		if ( offset == 0 && buffer.length == length ) {
+			return buffer;
+		}
+		return toNewByteArray();
+	}
+
+	/**
+	 * The backing array; content starts at arrayOffset() and is length() bytes long.
+	 */
+	public byte[] array() {
 		return buffer;
 	}
 
+	public int arrayOffset() {
+		return offset;
+	}
+
 	public int length() {
-		return buffer.length;
+		return length;
+	}
+
+	public int capacity() {
+		return buffer.length - offset;
+	}
+
+	public byte byteAt(int index) {
+		if ( index < 0 || index >= length ) {
+			throw new IndexOutOfBoundsException("index "+index+", length "+length);
+		}
+		return buffer[offset+index];
+	}
+
+	/**
+	 * Unsigned value of the byte at the given index.
+	 */
+	public int intAt(int index) {
+		return byteAt(index) & 0xFF;
+	}
+
+	/**
+	 * Forgets the content but keeps the allocated capacity.
+	 */
+	public void clear() {
+		if ( view ) {
+			buffer = EMPTY;
+			view = false;
+		} else if ( shared ) {
+			buffer = new byte[buffer.length];
+			shared = false;
+		}
+		offset = 0;
+		length = 0;
+	}
+
+	/**
+	 * Removes the first n bytes.
+	 */
+	public void skip(int n) {
+		if ( n < 0 || n > length ) {
+			throw new IndexOutOfBoundsException("skip "+n+", length "+length);
+		}
+		offset += n;
+		length -= n;
+		if ( length == 0 && ! view && ! shared ) {
+			// nothing points into the buffer, start over at the front
+			offset = 0;
+		}
+	}
+
+	public void ensureCapacity(int minCapacity) {
+		if ( view ) {
+			reallocate(Math.max(minCapacity, length));
+			view = false;
+		} else if ( offset + minCapacity > buffer.length ) {
+			if ( minCapacity <= buffer.length && offset >= buffer.length / 2 ) {
+				// enough room if the content is moved to the front
+				if ( shared ) {
+					reallocate(buffer.length);
+				} else {
+					System.arraycopy(buffer, offset, buffer, 0, length);
+					offset = 0;
+				}
+			} else {
+				reallocate(Math.max(minCapacity, Math.max(MIN_CAPACITY, buffer.length * 2)));
+			}
+		}
+	}
+
+	private void reallocate(int newCapacity) {
+		byte[] b = new byte[newCapacity];
+		System.arraycopy(buffer, offset, b, 0, length);
+		buffer = b;
+		offset = 0;
+		shared = false;
 	}
 
 	public void append(ByteArray input) {
-		append(input.getBuffer());
+		append(input.buffer, input.offset, input.length);
 	}
 
 	public void append(byte[] input, int offset, int length) {
-		byte[] b = new byte[buffer.length + length];
-		System.arraycopy(buffer, 0, b, 0, buffer.length);
-		System.arraycopy(input, offset, b, buffer.length, length);
-		buffer = b;
+		ensureCapacity(this.length + length);
+		System.arraycopy(input, offset, buffer, this.offset + this.length, length);
+		this.length += length;
 	}
 
 	public void append(byte[] input) {
@@ -86,10 +240,9 @@ public class ByteArray {
 	}
 
 	public void append(byte input) {
-		byte[] b = new byte[buffer.length + 1];
-		System.arraycopy(buffer, 0, b, 0, buffer.length);
-		b[b.length-1] = input;
-		buffer = b;
+		ensureCapacity(length + 1);
+		buffer[offset + length] = input;
+		length++;
 	}
 
 	public void append(String input, String charsetName) {
@@ -107,9 +260,76 @@ public class ByteArray {
 		append((byte)input);
 	}
 
+	/**
+	 * Appends the remaining bytes of src and advances its position.
+	 */
+	public void append(ByteBuffer src) {
+		int n = src.remaining();
+		ensureCapacity(length + n);
+		src.get(buffer, offset + length, n);
+		length += n;
+	}
+
+	/**
+	 * Reads up to maxLength bytes from in, stopping early only at the end
+	 * of the stream. Returns the number of bytes appended.
+	 */
+	public int append(ReadableByteChannel in, int maxLength) throws IOException {
+		ensureCapacity(length + maxLength);
+		ByteBuffer bb = ByteBuffer.wrap(buffer, offset + length, maxLength);
+		while( bb.hasRemaining() && in.read(bb) >= 0 ) {
+			// read until full or end of stream
+		}
+		int n = maxLength - bb.remaining();
+		length += n;
+		return n;
+	}
+
+	/**
+	 * Overwrites the byte at the given index. Views of this array see the change.
+	 */
+	public void set(int index, int value) {
+		if ( index < 0 || index >= length ) {
+			throw new IndexOutOfBoundsException("index "+index+", length "+length);
+		}
+		buffer[offset+index] = (byte) value;
+	}
+
+	/**
+	 * Read-only ByteBuffer sharing this content, no bytes are copied.
+	 */
+	public ByteBuffer toByteBuffer() {
+		shared = true;
+		return ByteBuffer.wrap(buffer, offset, length).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Moves as many bytes as fit into dst and removes them from this array.
+	 * Returns the number of bytes moved.
+	 */
+	public int drainTo(ByteBuffer dst) {
+		int n = Math.min(length, dst.remaining());
+		dst.put(buffer, offset, n);
+		skip(n);
+		return n;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buffer, offset, length);
+	}
+
+	public String toString(String charsetName) {
+		try {
+			return new String(buffer, offset, length, charsetName);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public String toPrintableString() {
-		StringBuilder sb = new StringBuilder(buffer.length);
-		for (byte b : buffer) {
+		StringBuilder sb = new StringBuilder(length);
+		for ( int i=offset ; i<offset+length ; i++ ) {
+			byte b = buffer[i];
 			if (b < 0x20 || b > 0x7F) {
 				sb.append('.');
 			} else {
@@ -120,26 +340,29 @@ public class ByteArray {
 	}
 
 	public String toHexString() {
-		StringBuilder sb = new StringBuilder(buffer.length * 4);
-		for (byte b : buffer) {
+		StringBuilder sb = new StringBuilder(length * 5);
+		for ( int i=offset ; i<offset+length ; i++ ) {
+			int v = buffer[i] & 0xFF;
 			sb.append('0');
 			sb.append('x');
-			int i = b;
-			if ( i < 0 ) {
-				i += 0x100;
-			}
-			if ( i < 16 ) {
+			if ( v < 16 ) {
 				sb.append('0');
 			}
-			sb.append( Integer.toHexString(i) );
+			sb.append( Integer.toHexString(v) );
 			sb.append(' ');
 		}
 		return sb.toString();
 	}
 
+	/**
+	 * View of a part of this array, the bytes are not copied.
+	 */
 	public ByteArray subArray(int offset, int length) {
-		ByteArray r = new ByteArray(buffer, offset, length);
-		return r;
+		if ( offset < 0 || length < 0 || offset + length > this.length ) {
+			throw new IndexOutOfBoundsException("subArray "+offset+"+"+length+", length "+this.length);
+		}
+		shared = true;
+		return new ByteArray(buffer, this.offset + offset, length, true);
 	}
 
 }
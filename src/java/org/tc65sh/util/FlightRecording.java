@@ -0,0 +1,74 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+/**
+ * A Java Flight Recorder recording of the whole run, written to a file
+ * when it is stopped. Uses the low overhead "default" settings of the
+ * JVM plus the tc65sh device events. Needs Java 11.
+ */
+public class FlightRecording {
+
+	private final File file;
+	private Recording recording;
+
+	public FlightRecording(File file) {
+		this.file = file;
+	}
+
+	public void start() throws IOException {
+		try {
+			Class.forName("jdk.jfr.Recording");
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException("flight recording needs Java 11 or later");
+		}
+		try {
+			recording = new Recording(Configuration.getConfiguration("default"));
+		} catch (ParseException e) {
+			throw new IOException("cannot read the default flight recorder settings: " + e.getMessage());
+		}
+		recording.setName("tc65sh");
+		recording.enable("tc65sh.SerialWrite");
+		recording.enable("tc65sh.SerialRead");
+		recording.enable("tc65sh.ObexRequest");
+		recording.enable("tc65sh.ObexResponse");
+		recording.enable("tc65sh.AtCommand");
+		recording.enable("tc65sh.ModeTransition");
+		recording.setToDisk(true);
+		recording.setDestination(file.toPath());
+		recording.start();
+		Log.info("flight recording to " + file);
+	}
+
+	/**
+	 * Stops the recording and writes it to the file.
+	 */
+	public void stop() {
+		if ( recording == null ) return;
+		recording.stop();
+		recording.close();
+		recording = null;
+		Log.info("flight recording written to " + file);
+	}
+
+}
@@ -15,47 +15,383 @@
 // 
 package org.tc65sh.util;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 
+/**
+ * Messages are put into a bounded ring buffer and written by a background
+ * thread, so the caller does not wait for formatting and output. Debug
+ * messages may carry up to two arguments for {} placeholders that are
+ * only formatted by the writer; ByteArray arguments are written as hex
+ * dump. Callers must not change arguments after logging them.
+ *
+ * Info messages are user output: info() returns when the message and all
+ * messages before it are written, so they keep their order with other
+ * console output.
+ */
 public abstract class Log {
 
 	public static int LOG_NONE = 0;
 	public static int LOG_INFO = 1;
 	public static int LOG_DEBUG = 2;
-	
+
 	public static int logLevel = LOG_INFO;
-	public static SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-	
-	
+
+	public static final int BUFFER_SIZE = 8192;
+	public static final long DEFAULT_LOG_FILE_SIZE = 10 * 1024 * 1024;
+	public static final int DEFAULT_LOG_FILE_COUNT = 5;
+
+	private static final DateTimeFormatter df = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+	private static final long FLUSH_TIMEOUT_MILLIS = 5000;
+
+	private static InheritableThreadLocal<PrintStream> threadOutput = new InheritableThreadLocal<PrintStream>();
+
+	/**
+	 * A slot of the ring buffer. The slots are allocated once and reused.
+	 */
+	private static class Entry {
+
+		long millis;
+		int level;
+		Class<?> klass;
+		String msg;
+		int argCount; // placeholders in msg are only replaced if > 0
+		Object arg1;
+		Object arg2;
+		Throwable t;
+		PrintStream out;
+
+		void copyFrom(Entry e) {
+			millis = e.millis;
+			level = e.level;
+			klass = e.klass;
+			msg = e.msg;
+			argCount = e.argCount;
+			arg1 = e.arg1;
+			arg2 = e.arg2;
+			t = e.t;
+			out = e.out;
+		}
+
+		void clear() {
+			klass = null;
+			msg = null;
+			arg1 = null;
+			arg2 = null;
+			t = null;
+			out = null;
+		}
+
+	}
+
+	private static final Object lock = new Object();
+	private static final Object fileLock = new Object();
+	private static final Entry[] ring = newEntries(BUFFER_SIZE);
+	private static long putSequence = 0; // entries put so far
+	private static long takeSequence = 0; // entries taken by the writer so far
+	private static long writtenSequence = 0; // entries written so far
+	private static Thread writer = null;
+
+	private static PrintStream logFileOut = null;
+	private static File logFile = null;
+	private static long logFileSize = 0;
+	private static long logFileMaxSize = DEFAULT_LOG_FILE_SIZE;
+	private static int logFileCount = DEFAULT_LOG_FILE_COUNT;
+
+	/**
+	 * Sends the messages of the current thread and the threads it starts
+	 * to out instead of System.out, null to reset. Pending messages are
+	 * written first, so the previous output can be closed afterwards.
+	 */
+	public static void setThreadOutput(PrintStream out) {
+		flush();
+		threadOutput.set(out);
+	}
+
+	/**
+	 * Writes all messages to the file as well, debug messages only there.
+	 * The file is renamed to file.1 when it reaches maxSize bytes, older
+	 * ones to file.2 and so on, at most maxCount files are kept.
+	 */
+	public static void setLogFile(File file, long maxSize, int maxCount) throws IOException {
+		flush();
+		synchronized( fileLock ) {
+			if ( logFileOut != null ) {
+				logFileOut.close();
+			}
+			logFile = file;
+			logFileMaxSize = maxSize;
+			logFileCount = maxCount;
+			logFileOut = new PrintStream(new FileOutputStream(file, true), false, "UTF-8");
+			logFileSize = file.length();
+		}
+	}
+
+
 	public static void info(String msg) {
 		info(msg,null);
 	}
-	
+
 	public static void info(String msg, Throwable t) {
 		if ( logLevel >= LOG_INFO ) {
-			System.out.println(msg);
-			if ( t != null ) {
-				t.printStackTrace();
-			}
+			long sequence = put(LOG_INFO, null, msg, 0, null, null, t);
+			awaitWritten(sequence);
 		}
 	}
-	
+
 	public static boolean isDebugEnabled() {
 		return logLevel >= LOG_DEBUG;
 	}
-	
+
 	public static void debug(Class<?> klass, String msg) {
 		debug(klass,msg,null);
 	}
-	
+
 	public static void debug(Class<?> klass, String msg, Throwable t) {
 		if ( logLevel >= LOG_DEBUG ) {
-			System.out.println(df.format(new Date())+" ["+klass.getName()+"] " +msg);
-			if ( t != null ) {
-				t.printStackTrace();
+			put(LOG_DEBUG, klass, msg, 0, null, null, t);
+		}
+	}
+
+	/**
+	 * Replaces {} in format by arg when the message is written.
+	 */
+	public static void debug(Class<?> klass, String format, Object arg) {
+		if ( logLevel >= LOG_DEBUG ) {
+			put(LOG_DEBUG, klass, format, 1, arg, null, null);
+		}
+	}
+
+	/**
+	 * Replaces the first {} in format by arg1, the second by arg2 when the
+	 * message is written.
+	 */
+	public static void debug(Class<?> klass, String format, Object arg1, Object arg2) {
+		if ( logLevel >= LOG_DEBUG ) {
+			put(LOG_DEBUG, klass, format, 2, arg1, arg2, null);
+		}
+	}
+
+	/**
+	 * Waits until all messages logged so far are written.
+	 */
+	public static void flush() {
+		long sequence;
+		synchronized( lock ) {
+			sequence = putSequence;
+		}
+		awaitWritten(sequence);
+	}
+
+	/**
+	 * Returns the sequence number of the entry, waits while the buffer is
+	 * full.
+	 */
+	private static long put(int level, Class<?> klass, String msg, int argCount, Object arg1, Object arg2, Throwable t) {
+		long millis = System.currentTimeMillis();
+		PrintStream out = threadOutput.get();
+		synchronized( lock ) {
+			startWriter();
+			while( putSequence - takeSequence >= ring.length ) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			Entry e = ring[(int) (putSequence % ring.length)];
+			e.millis = millis;
+			e.level = level;
+			e.klass = klass;
+			e.msg = msg;
+			e.argCount = argCount;
+			e.arg1 = arg1;
+			e.arg2 = arg2;
+			e.t = t;
+			e.out = out;
+			putSequence++;
+			lock.notifyAll();
+			return putSequence;
+		}
+	}
+
+	private static void awaitWritten(long sequence) {
+		if ( Thread.currentThread() == writer ) return;
+		long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MILLIS;
+		synchronized( lock ) {
+			while( writtenSequence < sequence ) {
+				long wait = deadline - System.currentTimeMillis();
+				if ( wait <= 0 ) return; // do not hang on a blocked output
+				try {
+					lock.wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private static void startWriter() {
+		if ( writer != null ) return;
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "tc65sh-log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, "tc65sh-log-flush"));
+	}
+
+	/**
+	 * Takes all pending entries at once and writes them outside the lock.
+	 */
+	private static void writeLoop() {
+		Entry[] batch = newEntries(ring.length);
+		while( true ) {
+			int count;
+			synchronized( lock ) {
+				while( takeSequence == putSequence ) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				count = (int) (putSequence - takeSequence);
+				for( int i=0 ; i<count ; i++ ) {
+					Entry e = ring[(int) ((takeSequence + i) % ring.length)];
+					batch[i].copyFrom(e);
+					e.clear();
+				}
+				takeSequence += count;
+				lock.notifyAll();
+			}
+			PrintStream lastOut = null;
+			for( int i=0 ; i<count ; i++ ) {
+				PrintStream out = write(batch[i]);
+				if ( out != lastOut && lastOut != null ) {
+					lastOut.flush();
+				}
+				lastOut = out;
+				batch[i].clear();
+			}
+			if ( lastOut != null ) {
+				lastOut.flush();
+			}
+			synchronized( fileLock ) {
+				if ( logFileOut != null ) {
+					logFileOut.flush();
+				}
+			}
+			synchronized( lock ) {
+				writtenSequence += count;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Returns the console stream written to, null if none.
+	 */
+	private static PrintStream write(Entry e) {
+		String line;
+		if ( e.level == LOG_DEBUG ) {
+			line = df.format(Instant.ofEpochMilli(e.millis)) + " [" + e.klass.getName() + "] " + format(e.msg, e.argCount, e.arg1, e.arg2);
+		} else {
+			line = e.msg;
+		}
+		PrintStream console = null;
+		boolean toFile;
+		synchronized( fileLock ) {
+			toFile = logFileOut != null;
+		}
+		if ( e.level == LOG_INFO || ! toFile ) {
+			console = e.out != null ? e.out : System.out;
+			console.println(line);
+			if ( e.t != null ) {
+				e.t.printStackTrace(console);
+			}
+		}
+		synchronized( fileLock ) {
+			if ( logFileOut != null ) {
+				if ( e.level == LOG_INFO ) {
+					line = df.format(Instant.ofEpochMilli(e.millis)) + " " + line;
+				}
+				logFileOut.println(line);
+				if ( e.t != null ) {
+					e.t.printStackTrace(logFileOut);
+				}
+				logFileSize += line.length() + 1;
+				if ( logFileSize >= logFileMaxSize ) {
+					rotate();
+				}
 			}
 		}
+		return console;
+	}
+
+	private static void rotate() {
+		logFileOut.close();
+		for( int i=logFileCount-1 ; i>=1 ; i-- ) {
+			File from = i == 1 ? logFile : new File(logFile.getPath() + "." + (i-1));
+			File to = new File(logFile.getPath() + "." + i);
+			if ( from.exists() ) {
+				to.delete();
+				from.renameTo(to);
+			}
+		}
+		try {
+			logFileOut = new PrintStream(new FileOutputStream(logFile, false), false, "UTF-8");
+		} catch (IOException ex) {
+			System.out.println("cannot open log file " + logFile + ": " + ex.getMessage());
+			logFileOut = null;
+		}
+		logFileSize = 0;
 	}
-	
+
+	private static String format(String msg, int argCount, Object arg1, Object arg2) {
+		if ( argCount == 0 ) return msg;
+		StringBuilder sb = new StringBuilder(msg.length() + 64);
+		int start = 0;
+		int argIndex = 0;
+		int i;
+		while( argIndex < argCount && (i = msg.indexOf("{}", start)) >= 0 ) {
+			sb.append(msg, start, i);
+			appendArg(sb, argIndex == 0 ? arg1 : arg2);
+			argIndex++;
+			start = i + 2;
+		}
+		sb.append(msg, start, msg.length());
+		return sb.toString();
+	}
+
+	private static void appendArg(StringBuilder sb, Object arg) {
+		if ( arg instanceof ByteArray ) {
+			ByteArray bytes = (ByteArray) arg;
+			sb.append(bytes.toHexString()).append(bytes.toPrintableString());
+		} else {
+			sb.append(arg);
+		}
+	}
+
+	private static Entry[] newEntries(int count) {
+		Entry[] entries = new Entry[count];
+		for( int i=0 ; i<count ; i++ ) {
+			entries[i] = new Entry();
+		}
+		return entries;
+	}
+
 }
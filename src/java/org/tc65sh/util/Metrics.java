@@ -0,0 +1,345 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide registry of counters, gauges and latency histograms.
+ * Metrics are created once and kept in static fields by the code they
+ * measure; updating them does not allocate. A metric may carry one
+ * label, e.g. the command name.
+ */
+public abstract class Metrics {
+
+	/** Upper bounds of the histogram buckets in seconds */
+	public static final double[] BUCKETS = { 0.001, 0.002, 0.005, 0.01, 0.02, 0.05, 0.1, 0.2, 0.5, 1, 2, 5, 10, 30 };
+
+	public static abstract class Metric {
+
+		public final String name;
+		public final String help;
+		public final String labelName;
+		public final String labelValue;
+
+		Metric(String name, String help, String labelName, String labelValue) {
+			this.name = name;
+			this.help = help;
+			this.labelName = labelName;
+			this.labelValue = labelValue;
+		}
+
+		abstract String getType();
+
+		String getLabels(String extra) {
+			StringBuilder sb = new StringBuilder();
+			if ( labelName != null ) {
+				sb.append(labelName).append("=\"").append(escape(labelValue)).append('"');
+			}
+			if ( extra != null ) {
+				if ( sb.length() > 0 ) sb.append(',');
+				sb.append(extra);
+			}
+			return sb.length() > 0 ? "{" + sb + "}" : "";
+		}
+
+	}
+
+	public static class Counter extends Metric {
+
+		private final AtomicLong value = new AtomicLong();
+
+		Counter(String name, String help, String labelName, String labelValue) {
+			super(name, help, labelName, labelValue);
+		}
+
+		public void increment() {
+			value.incrementAndGet();
+		}
+
+		public void add(long n) {
+			value.addAndGet(n);
+		}
+
+		public long get() {
+			return value.get();
+		}
+
+		String getType() {
+			return "counter";
+		}
+
+	}
+
+	public static class Gauge extends Metric {
+
+		private final AtomicLong value = new AtomicLong();
+
+		Gauge(String name, String help, String labelName, String labelValue) {
+			super(name, help, labelName, labelValue);
+		}
+
+		public void set(long v) {
+			value.set(v);
+		}
+
+		public void add(long n) {
+			value.addAndGet(n);
+		}
+
+		public long get() {
+			return value.get();
+		}
+
+		String getType() {
+			return "gauge";
+		}
+
+	}
+
+	public static class Histogram extends Metric {
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sumNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		Histogram(String name, String help, String labelName, String labelValue) {
+			super(name, help, labelName, labelValue);
+		}
+
+		/**
+		 * Records the time since startNanos, a System.nanoTime() value.
+		 */
+		public void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		public void record(long nanos) {
+			double seconds = nanos / 1e9;
+			int i = 0;
+			while( i < BUCKETS.length && seconds > BUCKETS[i] ) {
+				i++;
+			}
+			counts.incrementAndGet(i);
+			count.incrementAndGet();
+			sumNanos.addAndGet(nanos);
+			long max;
+			while( nanos > (max = maxNanos.get()) && ! maxNanos.compareAndSet(max, nanos) ) {
+				// retry
+			}
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public double getSumSeconds() {
+			return sumNanos.get() / 1e9;
+		}
+
+		public double getMaxSeconds() {
+			return maxNanos.get() / 1e9;
+		}
+
+		/**
+		 * Upper bucket bound below which the given share of the values
+		 * lie, e.g. 0.99. Infinity if it is in the overflow bucket.
+		 */
+		public double getQuantileSeconds(double quantile) {
+			long total = count.get();
+			if ( total == 0 ) return 0;
+			long cumulative = 0;
+			for( int i=0 ; i<BUCKETS.length ; i++ ) {
+				cumulative += counts.get(i);
+				if ( cumulative >= quantile * total ) return BUCKETS[i];
+			}
+			return Double.POSITIVE_INFINITY;
+		}
+
+		String getType() {
+			return "histogram";
+		}
+
+	}
+
+	private static final Map<String,Metric> metrics = new LinkedHashMap<String,Metric>();
+
+	public static Counter counter(String name, String help) {
+		return counter(name, help, null, null);
+	}
+
+	public static Counter counter(String name, String help, String labelName, String labelValue) {
+		synchronized( metrics ) {
+			Metric m = metrics.get(key(name, labelValue));
+			if ( m == null ) {
+				m = new Counter(name, help, labelName, labelValue);
+				metrics.put(key(name, labelValue), m);
+			}
+			return (Counter) m;
+		}
+	}
+
+	public static Gauge gauge(String name, String help) {
+		synchronized( metrics ) {
+			Metric m = metrics.get(key(name, null));
+			if ( m == null ) {
+				m = new Gauge(name, help, null, null);
+				metrics.put(key(name, null), m);
+			}
+			return (Gauge) m;
+		}
+	}
+
+	public static Histogram histogram(String name, String help) {
+		return histogram(name, help, null, null);
+	}
+
+	public static Histogram histogram(String name, String help, String labelName, String labelValue) {
+		synchronized( metrics ) {
+			Metric m = metrics.get(key(name, labelValue));
+			if ( m == null ) {
+				m = new Histogram(name, help, labelName, labelValue);
+				metrics.put(key(name, labelValue), m);
+			}
+			return (Histogram) m;
+		}
+	}
+
+	public static List<Metric> getMetrics() {
+		synchronized( metrics ) {
+			return new ArrayList<Metric>(metrics.values());
+		}
+	}
+
+	/**
+	 * One line per metric, for people.
+	 */
+	public static List<String> toText() {
+		List<String> lines = new ArrayList<String>();
+		for( Metric m : getMetrics() ) {
+			String name = m.name + m.getLabels(null);
+			if ( m instanceof Histogram ) {
+				Histogram h = (Histogram) m;
+				if ( h.getCount() == 0 ) continue;
+				lines.add(String.format(Locale.ROOT, "%-48s n=%d avg=%.3fs p50<=%ss p99<=%ss max=%.3fs", name, h.getCount(),
+						h.getSumSeconds() / h.getCount(), formatBound(h.getQuantileSeconds(0.5)), formatBound(h.getQuantileSeconds(0.99)), h.getMaxSeconds()));
+			} else {
+				long value = m instanceof Counter ? ((Counter) m).get() : ((Gauge) m).get();
+				lines.add(String.format(Locale.ROOT, "%-48s %d", name, value));
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Prometheus text exposition format.
+	 */
+	public static String toPrometheus() {
+		// all series of a metric must follow its HELP and TYPE lines
+		Map<String,List<Metric>> byName = new LinkedHashMap<String,List<Metric>>();
+		for( Metric m : getMetrics() ) {
+			List<Metric> series = byName.get(m.name);
+			if ( series == null ) {
+				series = new ArrayList<Metric>();
+				byName.put(m.name, series);
+			}
+			series.add(m);
+		}
+		StringBuilder sb = new StringBuilder();
+		for( List<Metric> series : byName.values() ) {
+			Metric first = series.get(0);
+			sb.append("# HELP ").append(first.name).append(' ').append(first.help).append('\n');
+			sb.append("# TYPE ").append(first.name).append(' ').append(first.getType()).append('\n');
+			for( Metric m : series ) {
+				appendPrometheus(sb, m);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void appendPrometheus(StringBuilder sb, Metric m) {
+		if ( m instanceof Histogram ) {
+			Histogram h = (Histogram) m;
+			long cumulative = 0;
+			for( int i=0 ; i<BUCKETS.length ; i++ ) {
+				cumulative += h.counts.get(i);
+				sb.append(m.name).append("_bucket").append(m.getLabels("le=\"" + BUCKETS[i] + "\"")).append(' ').append(cumulative).append('\n');
+			}
+			sb.append(m.name).append("_bucket").append(m.getLabels("le=\"+Inf\"")).append(' ').append(h.getCount()).append('\n');
+			sb.append(m.name).append("_sum").append(m.getLabels(null)).append(' ').append(h.getSumSeconds()).append('\n');
+			sb.append(m.name).append("_count").append(m.getLabels(null)).append(' ').append(h.getCount()).append('\n');
+		} else {
+			long value = m instanceof Counter ? ((Counter) m).get() : ((Gauge) m).get();
+			sb.append(m.name).append(m.getLabels(null)).append(' ').append(value).append('\n');
+		}
+	}
+
+	public static String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n  \"metrics\": [\n");
+		List<Metric> list = getMetrics();
+		for( int i=0 ; i<list.size() ; i++ ) {
+			Metric m = list.get(i);
+			sb.append("    {\"name\": \"").append(m.name).append("\", \"type\": \"").append(m.getType()).append('"');
+			if ( m.labelName != null ) {
+				sb.append(", \"labels\": {\"").append(m.labelName).append("\": \"").append(escape(m.labelValue)).append("\"}");
+			}
+			if ( m instanceof Histogram ) {
+				Histogram h = (Histogram) m;
+				sb.append(", \"count\": ").append(h.getCount());
+				sb.append(", \"sumSeconds\": ").append(h.getSumSeconds());
+				sb.append(", \"maxSeconds\": ").append(h.getMaxSeconds());
+				sb.append(", \"buckets\": [");
+				for( int b=0 ; b<=BUCKETS.length ; b++ ) {
+					if ( b > 0 ) sb.append(", ");
+					sb.append(h.counts.get(b));
+				}
+				sb.append(']');
+			} else {
+				long value = m instanceof Counter ? ((Counter) m).get() : ((Gauge) m).get();
+				sb.append(", \"value\": ").append(value);
+			}
+			sb.append('}').append(i < list.size() - 1 ? ",\n" : "\n");
+		}
+		sb.append("  ],\n  \"bucketsSeconds\": [");
+		for( int b=0 ; b<BUCKETS.length ; b++ ) {
+			if ( b > 0 ) sb.append(", ");
+			sb.append(BUCKETS[b]);
+		}
+		sb.append("]\n}\n");
+		return sb.toString();
+	}
+
+	private static String formatBound(double seconds) {
+		return Double.isInfinite(seconds) ? "inf" : "" + seconds;
+	}
+
+	private static String key(String name, String labelValue) {
+		return labelValue == null ? name : name + "\u0000" + labelValue;
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+}
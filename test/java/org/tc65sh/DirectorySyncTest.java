@@ -0,0 +1,158 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tc65sh.device.Device;
+import org.tc65sh.emulator.EmulatedFileSystem;
+import org.tc65sh.emulator.Tc65Emulator;
+
+public class DirectorySyncTest {
+
+	private EmulatedFileSystem fs;
+	private Device device;
+	private File localDir;
+
+	@Before
+	public void setUp() throws Exception {
+		fs = new EmulatedFileSystem();
+		device = new Device();
+		device.connect(new Tc65Emulator(fs, 0, 0, Device.MAX_OBEX_MAX_PACKET_LENGTH, false));
+		device.initDevice();
+		device.obexOpenObexMode();
+		localDir = File.createTempFile("tc65sh-sync", "");
+		localDir.delete();
+		localDir.mkdir();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		device.disconnect();
+		delete(localDir);
+	}
+
+	@Test
+	public void matchesNamesIgnoringCase() throws IOException {
+		fs.putFile("APP.JAR", new byte[10]);
+		fs.putFile("LIB/UTIL.JAR", new byte[20]);
+		writeLocal("App.jar", 11);
+		writeLocal("lib/Util.jar", 21);
+
+		List<DirectorySync.Action> actions = new DirectorySync(device, localDir, null, true).plan();
+		assertEquals(2, actions.size());
+		for( DirectorySync.Action action : actions ) {
+			assertEquals(DirectorySync.ACTION_PUT, action.type);
+			assertEquals("size", action.reason);
+		}
+		// existing folders are entered with their device spelling
+		assertEquals("a:/LIB", actions.get(1).folderPath);
+	}
+
+	@Test
+	public void deletesOnlyOrphans() throws IOException {
+		fs.putFile("APP.JAR", new byte[10]);
+		fs.putFile("OLD.TXT", new byte[5]);
+		fs.putFile("LIB/UTIL.JAR", new byte[20]);
+		fs.putFile("LIB/STALE.JAR", new byte[20]);
+		fs.putFile("GONE/X.BIN", new byte[1]);
+		writeLocal("App.jar", 11);
+		writeLocal("lib/Util.jar", 21);
+
+		DirectorySync sync = new DirectorySync(device, localDir, null, true);
+		List<String> deleted = new ArrayList<String>();
+		for( DirectorySync.Action action : sync.plan() ) {
+			if ( action.type == DirectorySync.ACTION_DELETE ) {
+				deleted.add(action.getPath());
+			}
+		}
+		assertTrue(deleted.toString(), deleted.contains("a:/OLD.TXT"));
+		assertTrue(deleted.toString(), deleted.contains("a:/LIB/STALE.JAR"));
+		assertTrue(deleted.toString(), deleted.contains("a:/GONE/X.BIN"));
+		assertTrue(deleted.toString(), deleted.contains("a:/GONE"));
+		assertEquals(deleted.toString(), 4, deleted.size());
+
+		sync.execute(null);
+		assertEquals(11, fs.lookup("APP.JAR").content.length());
+		assertEquals(21, fs.lookup("lib/util.jar").content.length());
+		assertNull(fs.lookup("OLD.TXT"));
+		assertNull(fs.lookup("LIB/STALE.JAR"));
+		assertNull(fs.lookup("GONE"));
+		assertNotNull(fs.lookup(DirectorySync.MANIFEST_FILENAME));
+	}
+
+	@Test
+	public void keepsFilesWithoutDeleteOption() throws IOException {
+		fs.putFile("OLD.TXT", new byte[5]);
+		writeLocal("new.txt", 3);
+
+		List<DirectorySync.Action> actions = new DirectorySync(device, localDir, null, false).plan();
+		assertEquals(1, actions.size());
+		assertEquals(DirectorySync.ACTION_PUT, actions.get(0).type);
+		assertEquals("new", actions.get(0).reason);
+	}
+
+	@Test
+	public void leavesManifestAloneWhenNothingChanged() throws IOException {
+		writeLocal("App.jar", 11);
+		writeLocal("lib/Util.jar", 21);
+		DirectorySync first = new DirectorySync(device, localDir, null, true);
+		assertEquals(3, first.plan().size());
+		first.execute(null);
+		EmulatedFileSystem.Entry manifest = fs.lookup(DirectorySync.MANIFEST_FILENAME);
+		assertNotNull(manifest);
+
+		DirectorySync second = new DirectorySync(device, localDir, null, true);
+		assertTrue(second.plan().isEmpty());
+		assertEquals(2, second.getUnchangedCount());
+		second.execute(null);
+		assertTrue(manifest == fs.lookup(DirectorySync.MANIFEST_FILENAME));
+	}
+
+	private void writeLocal(String path, int size) throws IOException {
+		File f = new File(localDir, path);
+		f.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(new byte[size]);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if ( children != null ) {
+			for( File child : children ) {
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+
+}
@@ -0,0 +1,272 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.device;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+import org.tc65sh.util.ByteArray;
+
+public class ObexFrameDecoderTest {
+
+	private static final int SUCCESS_FINAL = 0xA0;
+	private static final int CONTINUE_FINAL = 0x90;
+
+	private final ObexFrameDecoder decoder = new ObexFrameDecoder();
+
+	@Test
+	public void decodesCompleteFrame() throws IOException {
+		byte[] bytes = frame(SUCCESS_FINAL, length(300), connectionId(7), body(Obex.HEADER_END_OF_BODY, "hello"));
+		ByteArray buffer = new ByteArray(bytes);
+		decoder.reset(buffer, false);
+		assertTrue(decoder.decode());
+		assertTrue(decoder.isComplete());
+		assertEquals(SUCCESS_FINAL, decoder.getResponseCode());
+		assertEquals(bytes.length, decoder.getFrameLength());
+		assertFalse(decoder.isContinue());
+		assertEquals(300, decoder.getLength());
+		assertEquals(7, decoder.getConnectionId());
+		assertEquals(-1, decoder.getMaxPacketLength());
+		assertTrue(decoder.isEndOfBody());
+		assertBody(decoder.getBodySegments(), "hello");
+	}
+
+	@Test
+	public void decodesFrameArrivingByteByByte() throws IOException {
+		byte[] bytes = frame(CONTINUE_FINAL, length(0xFFFFFFFFL), body(Obex.HEADER_BODY, "first"), body(Obex.HEADER_BODY, "second"), srm(), srmWait());
+		ByteArray buffer = new ByteArray();
+		decoder.reset(buffer, false);
+		for( int i=0 ; i<bytes.length-1 ; i++ ) {
+			buffer.append(bytes[i]);
+			assertFalse("complete after " + (i+1) + " bytes", decoder.decode());
+		}
+		buffer.append(bytes[bytes.length-1]);
+		assertTrue(decoder.decode());
+		assertTrue(decoder.isContinue());
+		assertEquals(0xFFFFFFFFL, decoder.getLength());
+		assertFalse(decoder.isEndOfBody());
+		assertBody(decoder.getBodySegments(), "first", "second");
+	}
+
+	@Test
+	public void decodesFrameSplitAnywhere() throws IOException {
+		byte[] bytes = frame(SUCCESS_FINAL, connectionId(1), body(Obex.HEADER_BODY, "abc"), body(Obex.HEADER_END_OF_BODY, "defg"));
+		for( int split=1 ; split<bytes.length ; split++ ) {
+			ByteArray buffer = new ByteArray();
+			decoder.reset(buffer, false);
+			buffer.append(bytes, 0, split);
+			assertFalse("complete after " + split + " bytes", decoder.decode());
+			buffer.append(bytes, split, bytes.length - split);
+			assertTrue(decoder.decode());
+			assertEquals(1, decoder.getConnectionId());
+			assertTrue(decoder.isEndOfBody());
+			assertBody(decoder.getBodySegments(), "abc", "defg");
+		}
+	}
+
+	@Test
+	public void decodesFrameWithoutHeaders() throws IOException {
+		ByteArray buffer = new ByteArray(frame(SUCCESS_FINAL));
+		decoder.reset(buffer, false);
+		assertTrue(decoder.decode());
+		assertEquals(3, decoder.getFrameLength());
+		assertEquals(-1, decoder.getLength());
+		assertEquals(-1, decoder.getConnectionId());
+		assertTrue(decoder.getBodySegments().isEmpty());
+	}
+
+	@Test
+	public void stopsAtFrameLengthOfCoalescedFrames() throws IOException {
+		byte[] first = frame(CONTINUE_FINAL, body(Obex.HEADER_BODY, "one"));
+		byte[] second = frame(SUCCESS_FINAL, body(Obex.HEADER_END_OF_BODY, "two"));
+		ByteArray buffer = new ByteArray(concat(first, second));
+		decoder.reset(buffer, false);
+		assertTrue(decoder.decode());
+		assertEquals(first.length, decoder.getFrameLength());
+		assertTrue(decoder.isContinue());
+		assertFalse(decoder.isEndOfBody());
+		assertBody(decoder.getBodySegments(), "one");
+
+		// what Device keeps as unread for the next response
+		ByteArray unread = new ByteArray();
+		unread.append(buffer.subArray(decoder.getFrameLength(), buffer.length() - decoder.getFrameLength()));
+		assertArrayEquals(second, unread.toNewByteArray());
+		ObexFrameDecoder next = new ObexFrameDecoder();
+		next.reset(unread, false);
+		assertTrue(next.decode());
+		assertFalse(next.isContinue());
+		assertTrue(next.isEndOfBody());
+		assertBody(next.getBodySegments(), "two");
+		// the first frame's body views are not affected
+		assertBody(decoder.getBodySegments(), "one");
+	}
+
+	@Test
+	public void completesFrameFollowedByPartOfTheNext() throws IOException {
+		byte[] first = frame(CONTINUE_FINAL, srm(), body(Obex.HEADER_BODY, "one"));
+		byte[] second = frame(SUCCESS_FINAL, body(Obex.HEADER_END_OF_BODY, "two"));
+		ByteArray buffer = new ByteArray();
+		buffer.append(first);
+		buffer.append(second, 0, 4);
+		decoder.reset(buffer, false);
+		assertTrue(decoder.decode());
+		assertEquals(first.length, decoder.getFrameLength());
+		assertBody(decoder.getBodySegments(), "one");
+
+		ByteArray unread = new ByteArray();
+		unread.append(buffer.subArray(first.length, 4));
+		decoder.reset(unread, false);
+		assertFalse(decoder.decode());
+		unread.append(second, 4, second.length - 4);
+		assertTrue(decoder.decode());
+		assertBody(decoder.getBodySegments(), "two");
+	}
+
+	@Test
+	public void decodesConnectResponse() throws IOException {
+		// version 1.0, no flags, max packet length 0x2000
+		byte[] bytes = frame(SUCCESS_FINAL, new byte[] { 0x10, 0x00, 0x20, 0x00 }, connectionId(0x12345678L));
+		ByteArray buffer = new ByteArray();
+		decoder.reset(buffer, true);
+		buffer.append(bytes, 0, 6);
+		assertFalse(decoder.decode());
+		assertEquals(-1, decoder.getMaxPacketLength());
+		buffer.append(bytes, 6, bytes.length - 6);
+		assertTrue(decoder.decode());
+		assertEquals(bytes.length, decoder.getFrameLength());
+		assertEquals(0x2000, decoder.getMaxPacketLength());
+		assertEquals(0x12345678L, decoder.getConnectionId());
+	}
+
+	@Test
+	public void decodesConnectResponseWithoutHeaders() throws IOException {
+		ByteArray buffer = new ByteArray(frame(SUCCESS_FINAL, new byte[] { 0x10, 0x00, (byte) 0xFF, (byte) 0xFE }));
+		decoder.reset(buffer, true);
+		assertTrue(decoder.decode());
+		assertEquals(7, decoder.getFrameLength());
+		assertEquals(0xFFFE, decoder.getMaxPacketLength());
+		assertEquals(-1, decoder.getConnectionId());
+	}
+
+	@Test
+	public void decodesSrmHeaders() throws IOException {
+		ByteArray buffer = new ByteArray(frame(CONTINUE_FINAL, connectionId(1), srm(), srmWait()));
+		decoder.reset(buffer, false);
+		assertTrue(decoder.decode());
+		assertTrue(decoder.isContinue());
+		assertTrue(decoder.isSrmEnabled());
+		assertTrue(decoder.isSrmWait());
+
+		buffer = new ByteArray(frame(CONTINUE_FINAL, new byte[] { Obex.HEADER_SRM, Obex.SRM_DISABLE }));
+		decoder.reset(buffer, false);
+		assertTrue(decoder.decode());
+		assertFalse(decoder.isSrmEnabled());
+		assertFalse(decoder.isSrmWait());
+	}
+
+	@Test
+	public void resetForgetsThePreviousFrame() throws IOException {
+		decoder.reset(new ByteArray(frame(CONTINUE_FINAL, length(5), srm(), srmWait(), body(Obex.HEADER_END_OF_BODY, "x"))), false);
+		assertTrue(decoder.decode());
+		decoder.reset(new ByteArray(frame(SUCCESS_FINAL)), false);
+		assertTrue(decoder.decode());
+		assertEquals(-1, decoder.getLength());
+		assertFalse(decoder.isSrmEnabled());
+		assertFalse(decoder.isSrmWait());
+		assertFalse(decoder.isEndOfBody());
+		assertTrue(decoder.getBodySegments().isEmpty());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsFrameLengthBelowFixedFields() throws IOException {
+		decoder.reset(new ByteArray(new byte[] { (byte) SUCCESS_FINAL, 0x00, 0x05, 0x10, 0x00 }), true);
+		decoder.decode();
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsHeaderExceedingFrame() throws IOException {
+		byte[] bytes = frame(SUCCESS_FINAL, body(Obex.HEADER_BODY, "abc"));
+		bytes[5] += 10; // body header claims 10 bytes more than the frame has
+		decoder.reset(new ByteArray(bytes), false);
+		decoder.decode();
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsInvalidHeaderLength() throws IOException {
+		decoder.reset(new ByteArray(frame(SUCCESS_FINAL, new byte[] { Obex.HEADER_BODY, 0x00, 0x01 })), false);
+		decoder.decode();
+	}
+
+	private static void assertBody(List<ByteArray> segments, String... expected) {
+		assertEquals(expected.length, segments.size());
+		for( int i=0 ; i<expected.length ; i++ ) {
+			assertEquals(expected[i], new String(segments.get(i).toNewByteArray()));
+		}
+	}
+
+	private static byte[] frame(int responseCode, byte[]... parts) {
+		byte[] content = concat(parts);
+		int length = 3 + content.length;
+		return concat(new byte[] { (byte) responseCode, (byte) (length >> 8), (byte) length }, content);
+	}
+
+	private static byte[] body(byte id, String content) {
+		byte[] bytes = content.getBytes();
+		int length = 3 + bytes.length;
+		return concat(new byte[] { id, (byte) (length >> 8), (byte) length }, bytes);
+	}
+
+	private static byte[] length(long value) {
+		return fourByteHeader(Obex.HEADER_LENGTH, value);
+	}
+
+	private static byte[] connectionId(long value) {
+		return fourByteHeader(Obex.HEADER_CONNECTION_ID, value);
+	}
+
+	private static byte[] srm() {
+		return new byte[] { Obex.HEADER_SRM, Obex.SRM_ENABLE };
+	}
+
+	private static byte[] srmWait() {
+		return new byte[] { Obex.HEADER_SRM_PARAMETERS, Obex.SRMP_WAIT };
+	}
+
+	private static byte[] fourByteHeader(byte id, long value) {
+		return new byte[] { id, (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value };
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for( byte[] part : parts ) {
+			length += part.length;
+		}
+		byte[] result = new byte[length];
+		int position = 0;
+		for( byte[] part : parts ) {
+			System.arraycopy(part, 0, result, position, part.length);
+			position += part.length;
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,105 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tc65sh.emulator.EmulatedFileSystem;
+import org.tc65sh.emulator.Tc65Emulator;
+
+public class TreeIndexTest {
+
+	private EmulatedFileSystem fs;
+	private Tc65Emulator emulator;
+	private Device device;
+	private TreeIndex index;
+
+	@Before
+	public void setUp() throws Exception {
+		fs = new EmulatedFileSystem();
+		fs.putFile("DATA/README.TXT", new byte[100]);
+		fs.putFile("DATA/LOGS/A.LOG", new byte[10]);
+		device = new Device();
+		emulator = new Tc65Emulator(fs, 0, 0, Device.MAX_OBEX_MAX_PACKET_LENGTH, false);
+		device.connect(emulator);
+		device.initDevice();
+		device.obexOpenObexMode();
+		index = new TreeIndex(new File("unused.idx"));
+		index.refresh(device, true);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		device.disconnect();
+	}
+
+	@Test
+	public void looksUpPathsIgnoringCase() throws IOException {
+		device.obexChangeDir("data");
+		TreeIndex.Node folder = index.lookup(device.getCurrentPath());
+		assertNotNull(folder);
+		assertTrue(folder.listed);
+		assertEquals("DATA", folder.name);
+		assertNotNull(index.lookup("a:/Data/logs/a.log"));
+	}
+
+	@Test
+	public void updateReplacesEntryWithOtherSpelling() {
+		index.update("a:/data", new FileInfo(false, "readme.txt", 50, new Date()));
+		TreeIndex.Node folder = index.lookup("a:/DATA");
+		assertEquals(2, folder.children.size());
+		assertEquals(60, folder.totalSize());
+		index.remove("a:/DATA", "Readme.Txt");
+		assertEquals(10, index.getRoot().totalSize());
+	}
+
+	@Test
+	public void changeToPathKeepsCommonFoldersOfOtherSpelling() throws IOException {
+		TreeIndex.changeToPath(device, "a:/data");
+		int requests = emulator.getRequestCount();
+		TreeIndex.changeToPath(device, "a:/DATA/logs");
+		assertEquals(1, emulator.getRequestCount() - requests);
+		assertNotNull(index.lookup(device.getCurrentPath() + "/a.log"));
+	}
+
+	@Test
+	public void refreshRestoresFolderAfterFailure() throws IOException {
+		// the cached listing of DATA still has a folder that is gone
+		fs.mkdirs("DATA/NEW");
+		TreeIndex.changeToPath(device, "a:/DATA");
+		device.obexGetFolderListing(false);
+		fs.lookup("DATA").children.remove("NEW");
+		TreeIndex.changeToPath(device, "a:/DATA/LOGS");
+		String startPath = device.getCurrentPath();
+		try {
+			index.refresh(device, true);
+			fail("refresh should fail entering the missing folder");
+		} catch (IOException e) {
+			assertEquals(startPath, device.getCurrentPath());
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CommandPlannerTest {
+
+	private static List<String> plan(boolean reorder, String... commands) {
+		return CommandPlanner.plan(Arrays.asList(commands), reorder);
+	}
+
+	@Test
+	public void chainsConsecutiveExtendedCommands() {
+		assertEquals(Arrays.asList("AT+CSQ;+CREG?;^SCID", "ls"), plan(false, "AT+CSQ", "at+CREG?", "AT^SCID", "ls"));
+	}
+
+	@Test
+	public void keepsSingleCommandsUnchanged() {
+		assertEquals(Arrays.asList("AT+CSQ", "ls", "at+creg?"), plan(false, "AT+CSQ", "ls", "at+creg?"));
+	}
+
+	@Test
+	public void neverChainsBasicCommands() {
+		assertEquals(Arrays.asList("ATE0", "ATI", "AT+CSQ;+CREG?", "ATS0=1"), plan(false, "ATE0", "ATI", "AT+CSQ", "AT+CREG?", "ATS0=1"));
+	}
+
+	@Test
+	public void neverChainsCommandsWithSemicolon() {
+		assertEquals(Arrays.asList("AT+CSQ", "AT+CGMI;+CGMM", "AT+CREG?"), plan(false, "AT+CSQ", "AT+CGMI;+CGMM", "AT+CREG?"));
+	}
+
+	@Test
+	public void barriersStopChaining() {
+		assertEquals(Arrays.asList("AT+CSQ", "AT+CFUN=1,1", "AT+CREG?"), plan(false, "AT+CSQ", "AT+CFUN=1,1", "AT+CREG?"));
+		assertEquals(Arrays.asList("AT+CSQ", "AT^SMSO", "AT+CREG?"), plan(false, "AT+CSQ", "AT^SMSO", "AT+CREG?"));
+		assertEquals(Arrays.asList("AT+CSQ", "sleep 1000", "AT+CREG?"), plan(false, "AT+CSQ", "sleep 1000", "AT+CREG?"));
+	}
+
+	@Test
+	public void reorderMovesAtCommandsInFrontOfFileCommands() {
+		assertEquals(Arrays.asList("AT+CSQ;+CREG?", "ls", "get a.txt"), plan(true, "ls", "AT+CSQ", "get a.txt", "AT+CREG?"));
+	}
+
+	@Test
+	public void reorderKeepsOrderWithoutOption() {
+		assertEquals(Arrays.asList("ls", "AT+CSQ", "get a.txt", "AT+CREG?"), plan(false, "ls", "AT+CSQ", "get a.txt", "AT+CREG?"));
+	}
+
+	@Test
+	public void nothingMovesAcrossBarriers() {
+		assertEquals(Arrays.asList("AT+CSQ", "ls", "ATZ", "AT+CREG?", "get a.txt"),
+				plan(true, "ls", "AT+CSQ", "ATZ", "get a.txt", "AT+CREG?"));
+		assertEquals(Arrays.asList("ls", "AT+IPR=115200", "AT+CSQ", "put a.txt"),
+				plan(true, "ls", "AT+IPR=115200", "put a.txt", "AT+CSQ"));
+		assertEquals(Arrays.asList("AT+CSQ", "ls", "sleep 500", "AT+CREG?", "put a.txt"),
+				plan(true, "ls", "AT+CSQ", "sleep 500", "put a.txt", "AT+CREG?"));
+	}
+
+	@Test
+	public void splitsLinesLongerThanTheLimit() {
+		// "AT" plus 30 bodies of 4 characters, separated by semicolons
+		String[] commands = new String[30];
+		for( int i=0 ; i<commands.length ; i++ ) {
+			commands[i] = String.format("AT+C%02d", i);
+		}
+		List<String> lines = plan(false, commands);
+		assertEquals(2, lines.size());
+		int chained = 0;
+		for( String line : lines ) {
+			assertTrue(line, line.length() <= CommandPlanner.MAX_CHAINED_LINE_LENGTH);
+			assertTrue(line, line.startsWith("AT+C"));
+			chained += line.split(";").length;
+		}
+		assertEquals(commands.length, chained);
+		// the first line is filled up to the limit: 2 + 25 * 5 - 1 = 126
+		assertEquals(126, lines.get(0).length());
+	}
+
+	@Test
+	public void lineOfExactlyTheLimitIsKept() {
+		// "AT" + "+C1" + ";" + 122 characters = 128
+		String longBody = "+X" + new String(new char[120]).replace('\0', 'A');
+		List<String> lines = plan(false, "AT+C1", "AT" + longBody);
+		assertEquals(1, lines.size());
+		assertEquals(CommandPlanner.MAX_CHAINED_LINE_LENGTH, lines.get(0).length());
+		lines = plan(false, "AT+C1", "AT" + longBody + "A");
+		assertEquals(2, lines.size());
+	}
+
+	@Test
+	public void recognizesAtCommandsInAnyCase() {
+		assertTrue(CommandPlanner.isAtCommand("AT+CSQ"));
+		assertTrue(CommandPlanner.isAtCommand("at+csq"));
+		assertTrue(CommandPlanner.isAtCommand("At"));
+		assertFalse(CommandPlanner.isAtCommand("a"));
+		assertFalse(CommandPlanner.isAtCommand("ls"));
+	}
+
+}
@@ -0,0 +1,75 @@
+// This file is part of TC65SH.
+// 
+// TC65SH is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// TC65SH is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+// 
+// You should have received a copy of the GNU Lesser General Public License
+// along with TC65SH. If not, see <http://www.gnu.org/licenses/>.
+// 
+package org.tc65sh.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ByteArrayTest {
+
+	@Test
+	public void skipKeepsSubArraysIntact() {
+		ByteArray a = new ByteArray(16);
+		a.append(new byte[] { 1, 2, 3, 4 });
+		ByteArray view = a.subArray(0, 4);
+		a.skip(4);
+		a.append(new byte[] { 9, 9, 9, 9 });
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, view.toNewByteArray());
+		assertArrayEquals(new byte[] { 9, 9, 9, 9 }, a.toNewByteArray());
+	}
+
+	@Test
+	public void skipKeepsByteBuffersIntact() {
+		ByteArray a = new ByteArray(16);
+		a.append(new byte[] { 1, 2, 3 });
+		ByteBuffer bb = a.toByteBuffer();
+		a.skip(3);
+		a.append(new byte[] { 7, 7, 7 });
+		assertEquals(1, bb.get(0));
+		assertEquals(3, bb.get(2));
+	}
+
+	@Test
+	public void skipReusesUnsharedBuffer() {
+		ByteArray a = new ByteArray(16);
+		a.append(new byte[] { 1, 2, 3 });
+		byte[] buffer = a.array();
+		a.skip(3);
+		a.append(new byte[] { 4, 5 });
+		assertSame(buffer, a.array());
+		assertEquals(0, a.arrayOffset());
+		assertArrayEquals(new byte[] { 4, 5 }, a.toNewByteArray());
+	}
+
+	@Test
+	public void skipPartOfTheContent() {
+		ByteArray a = new ByteArray(new byte[] { 1, 2, 3, 4, 5 });
+		a.skip(2);
+		assertEquals(3, a.length());
+		assertEquals(3, a.intAt(0));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void skipMoreThanTheLength() {
+		new ByteArray(new byte[] { 1, 2 }).skip(3);
+	}
+
+}